@@ -0,0 +1,15 @@
+package com.adroll.cantor;
+
+/**
+   The HyperLogLog++ estimator that <code>HLLCounter</code> has
+   always used: LINEARCOUNTING for low cardinalities, then the raw
+   estimate corrected by interpolation in empirical bias tables.
+*/
+final class BiasCorrectedEstimator extends HLLEstimator {
+
+  @Override
+  public double estimate(int[] hist, byte p) {
+    int m = 1 << p;
+    return HLLCounter.estimateSize(hist, m, HLLCounter.getAlpha(m));
+  }
+}
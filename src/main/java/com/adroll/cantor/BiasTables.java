@@ -0,0 +1,130 @@
+package com.adroll.cantor;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+   The empirical bias tables of HyperLogLog++, used by the
+   bias-corrected estimator at cardinalities where the raw HLL
+   estimate is biased.
+   <p>
+   These data are empirical estimates of given cardinalities at
+   particular precisions, with the bias of the raw estimate at each.
+   They come from <a href="http://goo.gl/iU8Ig">this addendum</a>.
+   <p>
+   They are kept in the <code>bias.bin</code> resource rather than
+   in static initializers, and each precision is only read the first
+   time an estimate at that precision needs it. The resource starts
+   with the number of points of each precision as <code>int</code>s,
+   followed for each precision by its raw estimates, then its biases,
+   as <code>double</code>s.
+*/
+final class BiasTables {
+
+  private static final String RESOURCE = "bias.bin";
+
+  /** number of precisions in the resource */
+  private static final int N = HLLCounter.MAX_P - HLLCounter.MIN_P + 1;
+
+  /** raw estimates and biases of each precision, once read */
+  private static final AtomicReferenceArray<double[][]> TABLES = new AtomicReferenceArray<double[][]>(N);
+
+  private BiasTables() {
+  }
+
+  /**
+     Returns an estimate of the bias given our current
+     estimate of size and our precision.
+     <p>
+     This performs a simple linear interpolation based
+     on empirical results.
+
+     @param E the <code>double</code> estimate of cardinality
+     @param w the <code>byte</code> precision of HLL structure
+              used for estimate
+
+     @return  the <code>double</code> bias estimate
+  */
+  static double bias(double E, byte w) {
+    double[][] t = table(w);
+    double[] red = t[0];
+    double[] bd = t[1];
+    if(E <= red[0]) {
+      return bd[0];
+    }
+    if(E > red[red.length - 1]) {
+      return 0.0;
+    }
+    for(int i = 0; i < red.length - 2; i++) {
+      if(red[i] < E && E < red[i + 1]) {
+        double slope = (bd[i + 1] - bd[i])/(red[i + 1] - red[i]);
+        double intercept = bd[i + 1] - (slope * red[i + 1]);
+        return (slope * E) + intercept;
+      }
+    }
+    return 0.0;
+  }
+
+  /**
+     Returns the raw estimates and biases of a precision, reading
+     them on first use.
+
+     @param w the <code>byte</code> precision
+
+     @return  the <code>double[][]</code> of the raw estimates and
+              the biases
+  */
+  private static double[][] table(byte w) {
+    int idx = w - HLLCounter.MIN_P;
+    double[][] t = TABLES.get(idx);
+    if(t == null) {
+      // Several threads may read it at once, which is harmless
+      t = read(idx);
+      TABLES.set(idx, t);
+    }
+    return t;
+  }
+
+  private static double[][] read(int idx) {
+    InputStream is = BiasTables.class.getResourceAsStream(RESOURCE);
+    if(is == null) {
+      throw new IllegalStateException("Missing HLL bias tables " + RESOURCE + ".");
+    }
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(is));
+      try {
+        int[] counts = new int[N];
+        for(int i = 0; i < N; i++) {
+          counts[i] = in.readInt();
+        }
+        for(int i = 0; i < idx; i++) {
+          skip(in, 16L * counts[i]);
+        }
+        double[][] t = new double[2][counts[idx]];
+        for(double[] a : t) {
+          for(int i = 0; i < a.length; i++) {
+            a[i] = in.readDouble();
+          }
+        }
+        return t;
+      } finally {
+        in.close();
+      }
+    } catch(IOException e) {
+      throw new IllegalStateException("Failed to read HLL bias tables " + RESOURCE + ".", e);
+    }
+  }
+
+  private static void skip(DataInputStream in, long n) throws IOException {
+    while(n > 0) {
+      int s = in.skipBytes((int)Math.min(n, Integer.MAX_VALUE));
+      if(s <= 0) {
+        throw new IOException("Truncated HLL bias tables.");
+      }
+      n -= s;
+    }
+  }
+}
@@ -0,0 +1,184 @@
+package com.adroll.cantor;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+
+/**
+   A bottom-<code>k</code> structure like {@link MinHash}, kept in
+   a <code>ByteBuffer</code> that may be direct or mapped rather than
+   on the heap. Its capacity is fixed when it is created.
+*/
+final class BufferMinHash {
+
+  /** maximum number of hashes to keep */
+  private int k;
+  /** number of hashes kept */
+  private int s;
+  /** sorted hashes, only the first <code>s</code> are valid */
+  private final LongBuffer v;
+
+  /**
+     Constructs an empty structure over the first <code>8 * k</code>
+     bytes of a buffer, from its current position.
+
+     @param k the <code>int</code> number of least hashes to keep
+     @param B the <code>ByteBuffer</code> with at least
+              <code>8 * k</code> bytes remaining
+  */
+  BufferMinHash(int k, ByteBuffer B) {
+    if(B.remaining() < 8 * k) {
+      throw new IllegalArgumentException("Buffer must have at least 8 * k bytes remaining.");
+    }
+    this.k = k;
+    ByteBuffer b = B.slice();
+    b.limit(8 * k);
+    v = b.asLongBuffer();
+  }
+
+  /**
+     Offers a hash to this structure, which keeps it if it is one of
+     the <code>k</code> least distinct hashes seen so far.
+
+     @param x the <code>long</code> hash
+
+     @return  <code>true</code> if the structure changed
+  */
+  boolean offer(long x) {
+    int n = offer(v, 0, s, k, x);
+    if(n < 0) {
+      return false;
+    }
+    s = n;
+    return true;
+  }
+
+  /**
+     Offers a hash to a bottom-<code>k</code> structure kept in a
+     buffer at some offset.
+
+     @param v   the <code>LongBuffer</code> holding the structure
+     @param off the <code>int</code> offset of the structure
+     @param s   the <code>int</code> number of hashes kept
+     @param k   the <code>int</code> number of least hashes to keep
+     @param x   the <code>long</code> hash
+
+     @return    the <code>int</code> new number of hashes kept if
+                the structure changed, -1 otherwise
+  */
+  static int offer(LongBuffer v, int off, int s, int k, long x) {
+    if(s == k && x >= v.get(off + s - 1)) {
+      return -1;
+    }
+    int i = find(v, off, s, x);
+    if(i >= 0) {
+      return -1;
+    }
+    i = -i - 1;
+    int last = s == k ? s - 1 : s;
+    for(int j = last; j > i; j--) {
+      v.put(off + j, v.get(off + j - 1));
+    }
+    v.put(off + i, x);
+    return s < k ? s + 1 : s;
+  }
+
+  /**
+     Binary search for a hash among the ones kept.
+
+     @return the <code>int</code> position of the hash if found,
+             <code>-(insertion point) - 1</code> otherwise
+  */
+  private static int find(LongBuffer v, int off, int s, long x) {
+    int lo = 0;
+    int hi = s - 1;
+    while(lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      long y = v.get(off + mid);
+      if(y < x) {
+        lo = mid + 1;
+      } else if(y > x) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(lo + 1);
+  }
+
+  /**
+     Merges a <code>MinHash</code> into this one, keeping the
+     <code>newK</code> least distinct hashes of both.
+
+     @param o    the other <code>MinHash</code>
+     @param newK the <code>int</code> new number of hashes to keep,
+                 at most <code>k</code>
+  */
+  void union(MinHash o, int newK) {
+    long[] r = new long[newK];
+    s = MinHash.merge(values(), s, o.values(), o.size(), r, newK);
+    k = newK;
+    for(int i = 0; i < s; i++) {
+      v.put(i, r[i]);
+    }
+  }
+
+  /** Removes all hashes. */
+  void clear() {
+    s = 0;
+  }
+
+  /**
+     Returns the number of hashes kept.
+
+     @return the <code>int</code> number of hashes
+  */
+  int size() {
+    return s;
+  }
+
+  /**
+     Returns the maximum number of hashes kept.
+
+     @return the <code>int</code> <code>k</code>
+  */
+  int getK() {
+    return k;
+  }
+
+  /**
+     Returns a copy of the hashes kept.
+
+     @return the <code>long[]</code> of the sorted hashes
+  */
+  long[] values() {
+    return values(v, 0, s);
+  }
+
+  /**
+     Returns a copy of the hashes of a bottom-<code>k</code>
+     structure kept in a buffer at some offset.
+
+     @param v   the <code>LongBuffer</code> holding the structure
+     @param off the <code>int</code> offset of the structure
+     @param s   the <code>int</code> number of hashes kept
+
+     @return    the <code>long[]</code> of the sorted hashes
+  */
+  static long[] values(LongBuffer v, int off, int s) {
+    long[] x = new long[s];
+    LongBuffer b = v.duplicate();
+    b.clear();
+    b.position(off);
+    b.get(x);
+    return x;
+  }
+
+  /**
+     Returns a copy of this structure on the heap.
+
+     @return the <code>MinHash</code>
+  */
+  MinHash toMinHash() {
+    return new MinHash(k, values(), s);
+  }
+}
@@ -0,0 +1,182 @@
+package com.adroll.cantor;
+
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+
+/**
+   An HLL structure with one byte per register, like
+   {@link DenseRegisters}, kept in a <code>ByteBuffer</code> that
+   may be direct or mapped rather than on the heap.
+   <p>
+   They are serialized as <code>DenseRegisters</code>.
+*/
+final class BufferRegisters extends Registers {
+
+  private static final long serialVersionUID = 1L;
+
+  /** precision */
+  private final byte p;
+  /** the registers, from index 0 */
+  private final ByteBuffer B;
+
+  /**
+     Wraps the first 2^<code>p</code> bytes of a buffer, from its
+     current position, which must be zeroed or hold registers
+     already.
+
+     @param p the <code>byte</code> precision
+     @param B the <code>ByteBuffer</code> with at least
+              2^<code>p</code> bytes remaining
+  */
+  BufferRegisters(byte p, ByteBuffer B) {
+    if(B.remaining() < (1 << p)) {
+      throw new IllegalArgumentException("Buffer must have at least 2^precision bytes remaining.");
+    }
+    this.p = p;
+    this.B = B.slice();
+  }
+
+  @Override
+  byte getP() {
+    return p;
+  }
+
+  @Override
+  int get(int idx) {
+    return B.get(idx);
+  }
+
+  @Override
+  int setMax(int idx, int v) {
+    int old = B.get(idx);
+    if(v > old) {
+      B.put(idx, (byte)v);
+    }
+    return old;
+  }
+
+  /** Sets all registers to 0. */
+  void clear() {
+    int m = 1 << p;
+    for(int i = 0; i < m; i += 8) {
+      B.putLong(i, 0L);
+    }
+  }
+
+  @Override
+  byte[] toByteArray() {
+    byte[] M = new byte[1 << p];
+    ByteBuffer b = B.duplicate();
+    b.clear();
+    b.get(M);
+    return M;
+  }
+
+  @Override
+  Registers fold(byte q) {
+    if(q >= p) {
+      return new DenseRegisters(toByteArray());
+    }
+    DenseRegisters R = new DenseRegisters(q);
+    maxInto(R);
+    return R;
+  }
+
+  /**
+     Folds these registers to precision <code>q</code> within the
+     same buffer. Register <code>i</code> only depends on registers
+     from <code>i &lt;&lt; d</code> on, so they can be folded in
+     order without overwriting any that are still to be read.
+
+     @param q the <code>byte</code> new precision, at most
+              <code>p</code>
+
+     @return  the <code>BufferRegisters</code> over the first
+              2^<code>q</code> bytes of the buffer
+  */
+  BufferRegisters foldInPlace(byte q) {
+    if(q >= p) {
+      return this;
+    }
+    int d = p - q;
+    int n = 1 << q;
+    for(int i = 0; i < n; i++) {
+      int v = 0;
+      for(int j = i << d; j < (i + 1) << d; j++) {
+        v = Math.max(v, foldRank(j, B.get(j), d));
+      }
+      B.put(i, (byte)v);
+    }
+    // Keep the rest zeroed for a later clear at this precision
+    for(int i = n; i < (1 << p); i++) {
+      B.put(i, (byte)0);
+    }
+    return new BufferRegisters(q, B);
+  }
+
+  @Override
+  void maxInto(Registers dest) {
+    maxInto(B, 0, p, dest);
+  }
+
+  @Override
+  void histogram(int[] hist) {
+    histogram(B, 0, p, hist);
+  }
+
+  /**
+     Raises the registers of <code>dest</code> with the values of
+     registers kept in a buffer at some offset, folded down to the
+     precision of <code>dest</code>.
+
+     @param B    the <code>ByteBuffer</code> holding the registers
+     @param off  the <code>int</code> offset of the registers, a
+                 multiple of 8
+     @param p    the <code>byte</code> precision of the registers
+     @param dest the <code>Registers</code> to raise, with a
+                 precision of at most <code>p</code>
+  */
+  static void maxInto(ByteBuffer B, int off, byte p, Registers dest) {
+    int d = p - dest.getP();
+    int m = 1 << p;
+    for(int i = 0; i < m; i += 8) {
+      if(B.getLong(off + i) == 0) {
+        continue;
+      }
+      for(int j = i; j < i + 8; j++) {
+        int v = B.get(off + j);
+        if(v != 0) {
+          dest.setMax(j >>> d, foldRank(j, v, d));
+        }
+      }
+    }
+  }
+
+  /**
+     Counts registers kept in a buffer at some offset by value,
+     eight at a time when they are all 0.
+
+     @param B    the <code>ByteBuffer</code> holding the registers
+     @param off  the <code>int</code> offset of the registers, a
+                 multiple of 8
+     @param p    the <code>byte</code> precision of the registers
+     @param hist the <code>int[]</code> of length 65 to add the
+                 counts to, indexed by register value
+  */
+  static void histogram(ByteBuffer B, int off, byte p, int[] hist) {
+    int m = 1 << p;
+    for(int i = 0; i < m; i += 8) {
+      if(B.getLong(off + i) == 0) {
+        hist[0] += 8;
+        continue;
+      }
+      for(int j = i; j < i + 8; j++) {
+        hist[cap(B.get(off + j), p)]++;
+      }
+    }
+  }
+
+  private Object writeReplace() throws ObjectStreamException {
+    return new DenseRegisters(toByteArray());
+  }
+}
@@ -0,0 +1,430 @@
+package com.adroll.cantor;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+   <code>ConcurrentHLLCounter</code> is an {@link HLLCounter} that
+   many threads can insert into at once.
+   <p>
+   The HLL structure is packed four registers to an
+   <code>int</code> of an <code>AtomicIntegerArray</code>, and each
+   insertion raises its register with a compare-and-set loop, without
+   locking. Most insertions into a large set don't raise their
+   register at all, and only read it.
+   <p>
+   The MinHash structure is updated under a lock. Until it holds
+   <code>k</code> hashes, every insertion into an intersectable
+   counter takes that lock. After that, hashes that are not below
+   its current <code>k</code>-th least one are rejected without
+   locking, and only the few that are accepted take it.
+   <p>
+   {@link #size()}, {@link #getByteArray()} and {@link #getMinHash()}
+   work on consistent snapshots taken while insertions go on.
+   {@link #fold(byte q)}, and {@link #combine(HLLCounter h)} with a
+   less precise counter, swap in a new, folded array. Insertions
+   that raised the old one too late to be copied are made again
+   into the new one.
+*/
+public class ConcurrentHLLCounter extends HLLCounter {
+
+  private static final long serialVersionUID = 1L;
+
+  /** packed HLL array, register <code>i</code> is byte
+      <code>i &amp; 3</code> of <code>int i &gt;&gt; 2</code>,
+      replaced when folded */
+  private volatile AtomicIntegerArray R;
+  /** MinHash structure, also the lock guarding it, until this
+      is made non-intersectable */
+  private volatile MinHash cmh;
+  /** whether <code>cmh</code> holds <code>k</code> hashes */
+  private volatile boolean full;
+  /** greatest hash in <code>cmh</code> once it is full */
+  private volatile long threshold;
+
+  /**
+     Constructs a non-intersectable <code>ConcurrentHLLCounter</code>
+     with precision <code>DEFAULT_P</code>.
+   */
+  public ConcurrentHLLCounter() {
+    this(DEFAULT_P, false, 0, HLLHash.MD5);
+  }
+
+  /**
+     Constructs a non-intersectable <code>ConcurrentHLLCounter</code>
+     with specified precision.
+
+     @param p the <code>byte</code> precision of the HLL structure,
+              <code>MIN_P &lt;= p &lt;= MAX_P</code>
+   */
+  public ConcurrentHLLCounter(byte p) {
+    this(p, false, 0, HLLHash.MD5);
+  }
+
+  /**
+     Constructs a <code>ConcurrentHLLCounter</code> with
+     <code>DEFAULT_P</code> and, if <code>intersectable</code> is
+     <code>true</code>, <code>DEFAULT_K</code>.
+
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+   */
+  public ConcurrentHLLCounter(boolean intersectable) {
+    this(DEFAULT_P, intersectable, DEFAULT_K, HLLHash.MD5);
+  }
+
+  /**
+     Constructs a <code>ConcurrentHLLCounter</code> with specified
+     precision and, if <code>intersectable</code> is
+     <code>true</code>, the same <code>k</code> as
+     {@link HLLCounter#HLLCounter(byte p, boolean intersectable)}.
+
+     @param p             the <code>byte</code> precision of the
+                          HLL structure, <code>MIN_P &lt;= p &lt;=
+                          MAX_P</code>
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+   */
+  public ConcurrentHLLCounter(byte p, boolean intersectable) {
+    this(p, intersectable, (int)Math.max(Math.pow(2, p - 5), 128), HLLHash.MD5);
+  }
+
+  /**
+     Constructs a <code>ConcurrentHLLCounter</code> with
+     <code>DEFAULT_P</code> and, if <code>intersectable</code> is
+     <code>true</code>, specified <code>k</code>.
+
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structure
+   */
+  public ConcurrentHLLCounter(boolean intersectable, int k) {
+    this(DEFAULT_P, intersectable, k, HLLHash.MD5);
+  }
+
+  /**
+     Constructs a <code>ConcurrentHLLCounter</code> with specified
+     precision and, if <code>intersectable</code> is
+     <code>true</code>, specified <code>k</code>.
+
+     @param p             the <code>byte</code> precision of the
+                          HLL structure, <code>MIN_P &lt;= p &lt;=
+                          MAX_P</code>
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structure
+   */
+  public ConcurrentHLLCounter(byte p, boolean intersectable, int k) {
+    this(p, intersectable, k, HLLHash.MD5);
+  }
+
+  /**
+     Constructs a <code>ConcurrentHLLCounter</code> with specified
+     precision and, if <code>intersectable</code> is
+     <code>true</code>, specified <code>k</code>, hashing its
+     elements with the given {@link HLLHash}.
+
+     @param p             the <code>byte</code> precision of the
+                          HLL structure, <code>MIN_P &lt;= p &lt;=
+                          MAX_P</code>
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structure
+     @param hash          the <code>HLLHash</code> used to hash
+                          inserted elements
+   */
+  public ConcurrentHLLCounter(byte p, boolean intersectable, int k, HLLHash hash) {
+    super(p, intersectable, k, null, hash);
+    R = new AtomicIntegerArray((1 << p) >> 2);
+    cmh = intersectable ? new MinHash(k) : null;
+  }
+
+  /**
+     Insert an already hashed element into the
+     <code>ConcurrentHLLCounter</code> structure. This is safe
+     to call from many threads at once, as are all the
+     <code>put</code> methods.
+
+     @param x the <code>long</code> hash of the element
+   */
+  @Override
+  public void putHash(long x) {
+    MinHash mh = cmh;
+    if(mh != null && !(full && x >= threshold)) {
+      synchronized(mh) {
+        if(mh.offer(x) && mh.size() == mh.getK()) {
+          threshold = mh.values()[mh.size() - 1];
+          full = true;
+        }
+      }
+    }
+    AtomicIntegerArray r = R;
+    while(true) {
+      byte p = precision(r);
+      setMax(r, (int)(x >>> (64 - p)), Registers.rank(x, p));
+      // If the registers were folded meanwhile, this may not have been copied
+      AtomicIntegerArray n = R;
+      if(n == r) {
+        return;
+      }
+      r = n;
+    }
+  }
+
+  /**
+     The registers may be folded while this runs, so the hash is
+     ranked against the ones it raises.
+  */
+  @Override
+  void putHash(long x, int idx, int v) {
+    putHash(x);
+  }
+
+  /**
+     Returns the precision of a packed HLL array.
+
+     @param r the <code>AtomicIntegerArray</code> of registers
+
+     @return  the <code>byte</code> precision
+  */
+  private static byte precision(AtomicIntegerArray r) {
+    return (byte)(Integer.numberOfTrailingZeros(r.length()) + 2);
+  }
+
+  /**
+     Raises register <code>idx</code> of a packed HLL array to
+     <code>v</code>, if it is lower.
+
+     @param r   the <code>AtomicIntegerArray</code> of registers
+     @param idx the <code>int</code> register
+     @param v   the <code>int</code> new value
+  */
+  private static void setMax(AtomicIntegerArray r, int idx, int v) {
+    int i = idx >> 2;
+    int shift = (idx & 3) << 3;
+    while(true) {
+      int cur = r.get(i);
+      if(((cur >>> shift) & 0xff) >= v) {
+        return;
+      }
+      int next = (cur & ~(0xff << shift)) | (v << shift);
+      if(r.compareAndSet(i, cur, next)) {
+        return;
+      }
+    }
+  }
+
+  /**
+     Returns the estimated number of unique insertions into
+     the <code>ConcurrentHLLCounter</code> structure, from a
+     snapshot of its registers.
+
+     @param e the <code>HLLEstimator</code> to use
+
+     @return  the <code>long</code> estimated size of unique
+              insertions
+  */
+  @Override
+  public long size(HLLEstimator e) {
+    MinHash mh = cmh;
+    if(mh != null) {
+      synchronized(mh) {
+        if(mh.size() < mh.getK()) {
+          return mh.size();
+        }
+      }
+    }
+    byte[] M = getByteArray();
+    byte p = (byte)Integer.numberOfTrailingZeros(M.length);
+    int[] hist = new int[65];
+    for(byte b : M) {
+      hist[Registers.cap(b, p)]++;
+    }
+    return (long)Math.round(e.estimate(hist, p));
+  }
+
+  /**
+     Clears all data in the HLL and MinHash structures.
+     <p>
+     Insertions made while clearing may or may not be kept.
+  */
+  @Override
+  public synchronized void clear() {
+    MinHash mh = cmh;
+    if(mh != null) {
+      synchronized(mh) {
+        full = false;
+        mh.clear();
+      }
+    }
+    AtomicIntegerArray r = R;
+    for(int i = 0; i < r.length(); i++) {
+      r.set(i, 0);
+    }
+  }
+
+  /**
+     Performs a destructive union of this
+     <code>ConcurrentHLLCounter</code> and the one passed in,
+     which is safe while other threads insert.
+     <p>
+     As for an <code>HLLCounter</code>, the precisions become the
+     smaller of the two, and the result is only intersectable if
+     both are.
+
+     @param h the <code>HLLCounter</code> to combine into this one
+   */
+  @Override
+  public void combine(HLLCounter h) {
+    checkHash(h);
+    // Read h before locking this, in case h is combining this too
+    byte[] M = h.getByteArray();
+    MinHash o = h.isIntersectable() ? h.minHash() : null;
+    synchronized(this) {
+      fold((byte)Integer.numberOfTrailingZeros(M.length));
+      AtomicIntegerArray r = R;
+      byte[] N = safeFold(M, precision(r));
+      for(int i = 0; i < N.length; i++) {
+        if(N[i] != 0) {
+          setMax(r, i, N[i]);
+        }
+      }
+      MinHash mh = cmh;
+      if(mh == null) {
+        return;
+      }
+      if(o == null) {
+        cmh = null;
+        return;
+      }
+      synchronized(mh) {
+        mh.union(o, Math.min(mh.getK(), o.getK()));
+        if(mh.size() == mh.getK()) {
+          threshold = mh.values()[mh.size() - 1];
+          full = true;
+        } else {
+          full = false;
+        }
+      }
+    }
+  }
+
+  /**
+     Reduces the precision of the HLL structure from
+     <code>p</code> to <code>q</code>, which is safe while other
+     threads insert.
+     <p>
+     The registers are folded into a new array, which replaces
+     the old one, and folded again afterwards, so that
+     insertions that raised the old one meanwhile are kept.
+
+     @param q the <code>byte</code> new precision
+  */
+  @Override
+  public synchronized void fold(byte q) {
+    AtomicIntegerArray r = R;
+    byte p = precision(r);
+    if(q >= p) {
+      return;
+    }
+    AtomicIntegerArray n = new AtomicIntegerArray((1 << q) >> 2);
+    foldInto(r, p, n, q);
+    R = n;
+    foldInto(r, p, n, q);
+  }
+
+  /**
+     Raises the registers of one packed HLL array with the values
+     of another, more precise one.
+  */
+  private static void foldInto(AtomicIntegerArray r, byte p, AtomicIntegerArray n, byte q) {
+    int d = p - q;
+    for(int j = 0; j < 1 << p; j++) {
+      int v = (r.get(j >> 2) >>> ((j & 3) << 3)) & 0xff;
+      if(v != 0) {
+        setMax(n, j >>> d, Registers.foldRank(j, v, d));
+      }
+    }
+  }
+
+  /**
+     Returns a snapshot of the HLL structure.
+
+     @return a new <code>byte[]</code> of the HLL
+  */
+  @Override
+  public byte[] getByteArray() {
+    AtomicIntegerArray r = R;
+    byte[] M = new byte[1 << precision(r)];
+    for(int i = 0; i < M.length; i++) {
+      M[i] = (byte)(r.get(i >> 2) >>> ((i & 3) << 3));
+    }
+    return M;
+  }
+
+  /**
+     Returns the precision of the HLL structure.
+
+     @return the <code>byte</code> precision of the HLL
+  */
+  @Override
+  public byte getP() {
+    return precision(R);
+  }
+
+  /**
+     Returns whether this structure is intersectable.
+
+     @return the <code>boolean</code> that indicates
+             whether this is intersectable
+  */
+  @Override
+  public boolean isIntersectable() {
+    return cmh != null;
+  }
+
+  /**
+     Returns the precision of the MinHash structure.
+
+     @return the <code>int</code> precision of MinHash
+  */
+  @Override
+  public int getK() {
+    MinHash mh = cmh;
+    return mh == null ? 0 : mh.getK();
+  }
+
+  @Override
+  Registers registers() {
+    return new DenseRegisters(getByteArray());
+  }
+
+  @Override
+  MinHash minHash() {
+    MinHash mh = cmh;
+    if(mh == null) {
+      return null;
+    }
+    synchronized(mh) {
+      return new MinHash(mh.getK(), mh.values(), mh.size());
+    }
+  }
+
+  /**
+     Returns a plain <code>HLLCounter</code> holding a snapshot
+     of this one's structures.
+
+     @return the new <code>HLLCounter</code>
+  */
+  public HLLCounter snapshot() {
+    MinHash mh = minHash();
+    byte[] M = getByteArray();
+    byte p = (byte)Integer.numberOfTrailingZeros(M.length);
+    if(mh == null) {
+      return new HLLCounter(p, false, 0, M, (long[])null, 0, getHash());
+    }
+    return new HLLCounter(p, true, mh.getK(), M, mh.values(), mh.size(), getHash());
+  }
+}
@@ -0,0 +1,148 @@
+package com.adroll.cantor;
+
+import java.util.Arrays;
+
+/**
+   The classic HLL structure: a <code>byte[]</code> with one byte
+   per register.
+*/
+final class DenseRegisters extends Registers {
+
+  private static final long serialVersionUID = 1L;
+
+  /** precision */
+  private final byte p;
+  /** HLL array */
+  private final byte[] M;
+
+  /**
+     Constructs empty registers.
+
+     @param p the <code>byte</code> precision
+  */
+  DenseRegisters(byte p) {
+    this.p = p;
+    M = new byte[1 << p];
+  }
+
+  /**
+     Wraps an existing HLL <code>byte[]</code>, which is not
+     copied.
+
+     @param M the <code>byte[]</code> of length a power of 2
+  */
+  DenseRegisters(byte[] M) {
+    this.p = (byte)(31 - Integer.numberOfLeadingZeros(M.length));
+    this.M = M;
+  }
+
+  @Override
+  byte getP() {
+    return p;
+  }
+
+  @Override
+  int get(int idx) {
+    return M[idx];
+  }
+
+  @Override
+  int setMax(int idx, int v) {
+    int old = M[idx];
+    if(v > old) {
+      M[idx] = (byte)v;
+    }
+    return old;
+  }
+
+  /**
+     Returns the backing HLL array itself.
+
+     @return the <code>byte[]</code> of these registers
+  */
+  byte[] array() {
+    return M;
+  }
+
+  @Override
+  byte[] toByteArray() {
+    return Arrays.copyOf(M, M.length);
+  }
+
+  @Override
+  Registers fold(byte q) {
+    if(q >= p) {
+      return new DenseRegisters(toByteArray());
+    }
+    DenseRegisters R = new DenseRegisters(q);
+    maxInto(R);
+    return R;
+  }
+
+  @Override
+  void maxInto(Registers dest) {
+    if(dest instanceof DenseRegisters) {
+      maxInto(M, ((DenseRegisters)dest).M);
+      return;
+    }
+    int d = p - dest.getP();
+    for(int j = 0; j < M.length; j++) {
+      if(M[j] != 0) {
+        dest.setMax(j >>> d, foldRank(j, M[j], d));
+      }
+    }
+  }
+
+  /**
+     Raises the registers of one HLL <code>byte[]</code> with the
+     values of another, folded down to its precision in the same
+     pass.
+
+     @param M the <code>byte[]</code> registers to read
+     @param N the <code>byte[]</code> registers to raise, no longer
+              than <code>M</code>
+  */
+  static void maxInto(byte[] M, byte[] N) {
+    maxInto(M, N, 0, N.length);
+  }
+
+  /**
+     Raises registers <code>lo</code> to <code>hi</code> of one HLL
+     <code>byte[]</code> with the values of another, folded down to
+     its precision. Disjoint ranges can be raised concurrently.
+
+     @param M  the <code>byte[]</code> registers to read
+     @param N  the <code>byte[]</code> registers to raise, no longer
+               than <code>M</code>
+     @param lo the <code>int</code> first register of <code>N</code>
+               to raise
+     @param hi the <code>int</code> register of <code>N</code> to
+               stop at
+  */
+  static void maxInto(byte[] M, byte[] N, int lo, int hi) {
+    if(M.length == N.length) {
+      for(int i = lo; i < hi; i++) {
+        if(M[i] > N[i]) {
+          N[i] = M[i];
+        }
+      }
+      return;
+    }
+    int d = Integer.numberOfTrailingZeros(M.length) - Integer.numberOfTrailingZeros(N.length);
+    for(int j = lo << d; j < hi << d; j++) {
+      if(M[j] != 0) {
+        int v = foldRank(j, M[j], d);
+        if(v > N[j >>> d]) {
+          N[j >>> d] = (byte)v;
+        }
+      }
+    }
+  }
+
+  @Override
+  void histogram(int[] hist) {
+    for(byte b : M) {
+      hist[cap(b, p)]++;
+    }
+  }
+}
@@ -0,0 +1,402 @@
+package com.adroll.cantor;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+/**
+   <code>HLLCounterArena</code> holds many {@link HLLCounter}s of the
+   same precisions as fixed-size slots in large slabs of memory, on
+   the heap or off it, addressed by <code>int</code> id.
+   <p>
+   There are no objects per counter: each slot is a dense HLL
+   structure followed, for intersectable arenas, by its MinHash
+   structure. Slots are reset in place when released and handed out
+   again by {@link #allocate()}, and {@link #sizes()} estimates all
+   of them in one pass over the slabs.
+   <p>
+   Use {@link #get(int id)} or {@link #union(int... ids)} to get
+   ordinary <code>HLLCounter</code>s out of an arena. An
+   <code>HLLCounterArena</code> is not safe to use from several
+   threads at once.
+*/
+public class HLLCounterArena implements Closeable {
+
+  /** Largest slab, in bytes */
+  private static final int MAX_SLAB = 1 << 30;
+
+  /** HLL precision of all slots */
+  private final byte p;
+  /** MinHash precision of all slots, 0 if not intersectable */
+  private final int k;
+  /** hash of all slots */
+  private final HLLHash hash;
+  /** whether slabs are direct buffers */
+  private final boolean direct;
+  /** bytes per slot */
+  private final int slot;
+  /** slots per slab */
+  private final int perSlab;
+  /** the slabs, allocated on first use */
+  private final ByteBuffer[] slabs;
+  /** <code>long</code> views of the slabs, for MinHash structures */
+  private final LongBuffer[] longs;
+  /** number of hashes in the MinHash structure of each slot,
+      -1 for slots that are not allocated */
+  private final int[] counts;
+  /** released slots, ready to be allocated again */
+  private int[] free;
+  /** number of released slots */
+  private int nfree;
+  /** lowest slot that was never allocated */
+  private int next;
+  /** whether {@link #close()} was called */
+  private boolean closed;
+
+  /**
+     Constructs a non-intersectable <code>HLLCounterArena</code>
+     on the heap.
+
+     @param p        the <code>byte</code> precision of the HLL
+                     structures, <code>MIN_P &lt;= p &lt;= MAX_P</code>
+     @param capacity the <code>int</code> number of slots
+   */
+  public HLLCounterArena(byte p, int capacity) {
+    this(p, false, 0, HLLHash.MD5, capacity, false);
+  }
+
+  /**
+     Constructs an <code>HLLCounterArena</code>.
+
+     @param p             the <code>byte</code> precision of the HLL
+                          structures, <code>MIN_P &lt;= p &lt;=
+                          MAX_P</code>
+     @param intersectable <code>boolean</code> to make the structures
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structures
+     @param hash          the <code>HLLHash</code> used to hash
+                          inserted elements
+     @param capacity      the <code>int</code> number of slots
+     @param direct        <code>true</code> to keep the slabs off the
+                          heap, in direct <code>ByteBuffer</code>s
+   */
+  public HLLCounterArena(byte p, boolean intersectable, int k, HLLHash hash, int capacity, boolean direct) {
+    if(p < HLLCounter.MIN_P || p > HLLCounter.MAX_P) {
+      throw new IllegalArgumentException("HLLCounter precisions must be between MIN_P = " + HLLCounter.MIN_P +
+                                         " and MAX_P = " + HLLCounter.MAX_P + ".");
+    }
+    if(intersectable && !(k > 0)) {
+      throw new IllegalArgumentException("Intersectable HLLCounters must have a MinHash precision greater than 0.");
+    }
+    if(hash == null) {
+      throw new IllegalArgumentException("HLLCounters must have a hash.");
+    }
+    if(capacity < 1) {
+      throw new IllegalArgumentException("HLLCounterArenas need at least one slot.");
+    }
+    this.p = p;
+    this.k = intersectable ? k : 0;
+    this.hash = hash;
+    this.direct = direct;
+    long size = (1L << p) + (intersectable ? 8L * k : 0L);
+    if(size > MAX_SLAB) {
+      throw new IllegalArgumentException("MinHash precision is too large for an HLLCounterArena.");
+    }
+    slot = (int)size;
+    perSlab = MAX_SLAB / slot;
+    int n = (capacity + perSlab - 1) / perSlab;
+    slabs = new ByteBuffer[n];
+    longs = new LongBuffer[n];
+    counts = new int[capacity];
+    Arrays.fill(counts, -1);
+    free = new int[16];
+  }
+
+  /**
+     Allocates an empty slot.
+
+     @return the <code>int</code> id of the slot
+     @throws IllegalStateException if all slots are allocated
+   */
+  public int allocate() {
+    ensureOpen();
+    int id;
+    if(nfree > 0) {
+      id = free[--nfree];
+    } else if(next < counts.length) {
+      id = next++;
+      int i = id / perSlab;
+      if(slabs[i] == null) {
+        int n = Math.min(perSlab, counts.length - i * perSlab);
+        slabs[i] = direct ? ByteBuffer.allocateDirect(n * slot) : ByteBuffer.allocate(n * slot);
+        longs[i] = slabs[i].asLongBuffer();
+      }
+    } else {
+      throw new IllegalStateException("HLLCounterArena is full.");
+    }
+    counts[id] = 0;
+    return id;
+  }
+
+  /**
+     Resets a slot and returns it to the arena, to be allocated
+     again.
+
+     @param id the <code>int</code> id of the slot
+   */
+  public void release(int id) {
+    reset(id);
+    counts[id] = -1;
+    if(nfree == free.length) {
+      free = Arrays.copyOf(free, 2 * nfree);
+    }
+    free[nfree++] = id;
+  }
+
+  /**
+     Clears all data in a slot, in place.
+
+     @param id the <code>int</code> id of the slot
+   */
+  public void reset(int id) {
+    check(id);
+    ByteBuffer b = slabs[id / perSlab];
+    int off = offset(id);
+    for(int i = 0; i < (1 << p); i += 8) {
+      b.putLong(off + i, 0L);
+    }
+    counts[id] = 0;
+  }
+
+  /**
+     Insert a <code>String</code> into a slot, as
+     {@link HLLCounter#put(String v)} would.
+
+     @param id the <code>int</code> id of the slot
+     @param v  the <code>String</code> to insert
+   */
+  public void put(int id, String v) {
+    if(HLLCounter.UTF_8_DEFAULT) {
+      putHash(id, hash.hash(v));
+    } else {
+      putHash(id, hash.hash(v.getBytes()));
+    }
+  }
+
+  /**
+     Insert a range of bytes into a slot.
+
+     @param id  the <code>int</code> id of the slot
+     @param b   the <code>byte[]</code> holding the element
+     @param off the <code>int</code> offset of the element
+     @param len the <code>int</code> length of the element
+   */
+  public void put(int id, byte[] b, int off, int len) {
+    putHash(id, hash.hash(b, off, len));
+  }
+
+  /**
+     Insert a <code>byte[]</code> into a slot.
+
+     @param id the <code>int</code> id of the slot
+     @param b  the <code>byte[]</code> to insert
+   */
+  public void put(int id, byte[] b) {
+    putHash(id, hash.hash(b, 0, b.length));
+  }
+
+  /**
+     Insert an already hashed element into a slot.
+
+     @param id the <code>int</code> id of the slot
+     @param x  the <code>long</code> hash of the element
+   */
+  public void putHash(int id, long x) {
+    check(id);
+    int i = id / perSlab;
+    int off = offset(id);
+    if(k > 0) {
+      int s = BufferMinHash.offer(longs[i], (off + (1 << p)) >>> 3, counts[id], k, x);
+      if(s >= 0) {
+        counts[id] = s;
+      }
+    }
+    int idx = off + (int)(x >>> (64 - p));
+    byte v = (byte)Registers.rank(x, p);
+    if(slabs[i].get(idx) < v) {
+      slabs[i].put(idx, v);
+    }
+  }
+
+  /**
+     Returns the estimated number of unique insertions into a slot.
+
+     @param id the <code>int</code> id of the slot
+
+     @return   the <code>long</code> estimated size of unique
+               insertions
+   */
+  public long size(int id) {
+    check(id);
+    return size(id, new int[65]);
+  }
+
+  /**
+     Returns the estimated number of unique insertions into every
+     slot, in a single pass over the slabs.
+
+     @return the <code>long[]</code> of estimated sizes, indexed by
+             id, 0 for slots that are not allocated
+   */
+  public long[] sizes() {
+    ensureOpen();
+    long[] r = new long[counts.length];
+    int[] hist = new int[65];
+    for(int id = 0; id < next; id++) {
+      if(counts[id] >= 0) {
+        Arrays.fill(hist, 0);
+        r[id] = size(id, hist);
+      }
+    }
+    return r;
+  }
+
+  private long size(int id, int[] hist) {
+    if(k > 0 && counts[id] < k) {
+      return counts[id];
+    }
+    BufferRegisters.histogram(slabs[id / perSlab], offset(id), p, hist);
+    int m = 1 << p;
+    return (long)Math.round(HLLCounter.estimateSize(hist, m, HLLCounter.getAlpha(m)));
+  }
+
+  /**
+     Performs a destructive union of a slot and an
+     <code>HLLCounter</code>, which must be at least as precise
+     as the arena and, if the arena is intersectable, intersectable
+     with at least its <code>k</code>.
+
+     @param id the <code>int</code> id of the slot
+     @param h  the <code>HLLCounter</code> to combine into the slot
+   */
+  public void combine(int id, HLLCounter h) {
+    check(id);
+    if(h.getHash().getId() != hash.getId()) {
+      throw new IllegalArgumentException("Can't mix HLLCounters built with different hashes: " +
+                                         hash + " and " + h.getHash() + ".");
+    }
+    if(h.getP() < p) {
+      throw new IllegalArgumentException("Can't lower the precision of an HLLCounterArena slot.");
+    }
+    if(k > 0 && !(h.isIntersectable() && h.getK() >= k)) {
+      throw new IllegalArgumentException("Can't lower the MinHash precision of an HLLCounterArena slot.");
+    }
+    int i = id / perSlab;
+    int off = offset(id);
+    h.registers().maxInto(new BufferRegisters(p, (ByteBuffer)slabs[i].duplicate().position(off)));
+    if(k > 0) {
+      MinHash mh = h.minHash();
+      int moff = (off + (1 << p)) >>> 3;
+      long[] r = new long[k];
+      int s = MinHash.merge(BufferMinHash.values(longs[i], moff, counts[id]), counts[id],
+                            mh.values(), mh.size(), r, k);
+      for(int j = 0; j < s; j++) {
+        longs[i].put(moff + j, r[j]);
+      }
+      counts[id] = s;
+    }
+  }
+
+  /**
+     Returns a new <code>HLLCounter</code> holding a copy of a slot.
+
+     @param id the <code>int</code> id of the slot
+
+     @return   the <code>HLLCounter</code>
+   */
+  public HLLCounter get(int id) {
+    return union(id);
+  }
+
+  /**
+     Returns a new <code>HLLCounter</code> that is the union of
+     the given slots.
+
+     @param ids the <code>int...</code> ids of the slots
+
+     @return    the <code>HLLCounter</code> of the union
+   */
+  public HLLCounter union(int... ids) {
+    ensureOpen();
+    DenseRegisters R = new DenseRegisters(p);
+    MinHash mh = k > 0 ? new MinHash(k) : null;
+    for(int id : ids) {
+      check(id);
+      int i = id / perSlab;
+      int off = offset(id);
+      BufferRegisters.maxInto(slabs[i], off, p, R);
+      if(mh != null) {
+        long[] v = BufferMinHash.values(longs[i], (off + (1 << p)) >>> 3, counts[id]);
+        mh.union(new MinHash(k, v, v.length), k);
+      }
+    }
+    if(mh == null) {
+      return new HLLCounter(p, false, 0, R.array(), (long[])null, 0, hash);
+    }
+    return new HLLCounter(p, true, k, R.array(), mh.values(), mh.size(), hash);
+  }
+
+  /**
+     Returns the number of slots.
+
+     @return the <code>int</code> capacity of this arena
+   */
+  public int capacity() {
+    return counts.length;
+  }
+
+  /**
+     Returns the number of allocated slots.
+
+     @return the <code>int</code> number of slots in use
+   */
+  public int allocated() {
+    return next - nfree;
+  }
+
+  /**
+     Releases the slabs of this <code>HLLCounterArena</code>. It
+     can't be used afterwards.
+   */
+  @Override
+  public void close() {
+    if(closed) {
+      return;
+    }
+    closed = true;
+    for(int i = 0; i < slabs.length; i++) {
+      OffHeapHLLCounter.free(slabs[i]);
+      slabs[i] = null;
+      longs[i] = null;
+    }
+  }
+
+  private int offset(int id) {
+    return (id % perSlab) * slot;
+  }
+
+  private void check(int id) {
+    ensureOpen();
+    if(id < 0 || id >= counts.length || counts[id] < 0) {
+      throw new IllegalArgumentException("Slot " + id + " is not allocated.");
+    }
+  }
+
+  private void ensureOpen() {
+    if(closed) {
+      throw new IllegalStateException("HLLCounterArena is closed.");
+    }
+  }
+}
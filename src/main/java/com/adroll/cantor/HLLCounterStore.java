@@ -0,0 +1,554 @@
+package com.adroll.cantor;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+   <code>HLLCounterStore</code> keeps named {@link HLLCounter}s of
+   the same precisions in a memory-mapped file, so that they outlive
+   the JVM and can be used again right away after a restart.
+   <p>
+   The file starts with a header giving the precisions and the hash
+   of the counters, followed by a directory of fixed-size entries
+   holding the key and the MinHash size of each slot, and then the
+   slots themselves: a dense HLL structure followed, for
+   intersectable stores, by its MinHash structure, laid out as in
+   an {@link HLLCounterArena}. Insertions update the mapped slots in
+   place, and {@link #flush()} forces them to disk. Opening a store
+   only reads its directory; the slots are used straight from the
+   mapping, without deserializing anything.
+   <p>
+   An <code>HLLCounterStore</code> is not safe to use from several
+   threads at once, and a file must not be opened by more than one
+   at a time.
+*/
+public class HLLCounterStore implements Closeable {
+
+  /** First bytes of every store, "HLLS" */
+  private static final int MAGIC = 0x484c4c53;
+  /** Version of the file layout */
+  private static final int VERSION = 1;
+  /** Bytes of the header */
+  private static final int HEADER = 64;
+  /** Largest mapped slab, in bytes */
+  private static final int MAX_SLAB = 1 << 30;
+  /** Longest possible key, in bytes */
+  public static final int MAX_KEY_LENGTH = Short.MAX_VALUE;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /** the mapped file */
+  private final RandomAccessFile file;
+  /** HLL precision of all slots */
+  private final byte p;
+  /** MinHash precision of all slots, 0 if not intersectable */
+  private final int k;
+  /** hash of all slots */
+  private final HLLHash hash;
+  /** number of slots */
+  private final int capacity;
+  /** longest key, in bytes */
+  private final int maxKey;
+  /** bytes per directory entry */
+  private final int entry;
+  /** bytes per slot */
+  private final int slot;
+  /** slots per slab */
+  private final int perSlab;
+  /** the header and directory */
+  private MappedByteBuffer dir;
+  /** the slabs holding the slots */
+  private final MappedByteBuffer[] slabs;
+  /** <code>long</code> views of the slabs, for MinHash structures */
+  private final LongBuffer[] longs;
+  /** slot of each key */
+  private final Map<String, Integer> ids;
+  /** free slots, the lowest last */
+  private int[] free;
+  /** number of free slots */
+  private int nfree;
+
+  private HLLCounterStore(RandomAccessFile file, byte p, int k, HLLHash hash, int capacity, int maxKey)
+    throws IOException {
+    this.file = file;
+    this.p = p;
+    this.k = k;
+    this.hash = hash;
+    this.capacity = capacity;
+    this.maxKey = maxKey;
+    entry = align(6 + maxKey);
+    long dirSize = HEADER + (long)capacity * entry;
+    long size = (1L << p) + 8L * k;
+    if(dirSize > Integer.MAX_VALUE || size > MAX_SLAB) {
+      throw new IllegalArgumentException("HLLCounterStore is too large.");
+    }
+    slot = (int)size;
+    perSlab = MAX_SLAB / slot;
+    FileChannel ch = file.getChannel();
+    long total = dirSize + (long)capacity * slot;
+    if(file.length() < total) {
+      file.setLength(total);
+    }
+    dir = ch.map(FileChannel.MapMode.READ_WRITE, 0, dirSize);
+    int n = (capacity + perSlab - 1) / perSlab;
+    slabs = new MappedByteBuffer[n];
+    longs = new LongBuffer[n];
+    for(int i = 0; i < n; i++) {
+      int slots = Math.min(perSlab, capacity - i * perSlab);
+      slabs[i] = ch.map(FileChannel.MapMode.READ_WRITE, dirSize + (long)i * perSlab * slot, (long)slots * slot);
+      longs[i] = slabs[i].asLongBuffer();
+    }
+    ids = new HashMap<String, Integer>();
+    free = new int[capacity];
+    for(int id = capacity - 1; id >= 0; id--) {
+      int len = dir.getShort(entryOffset(id) + 4);
+      if(len == 0) {
+        free[nfree++] = id;
+      } else {
+        byte[] b = new byte[len];
+        ByteBuffer d = dir.duplicate();
+        d.position(entryOffset(id) + 6);
+        d.get(b);
+        ids.put(new String(b, UTF_8), id);
+      }
+    }
+  }
+
+  /**
+     Creates a new, empty <code>HLLCounterStore</code> in a file,
+     replacing anything the file held.
+
+     @param f             the <code>File</code> to map
+     @param p             the <code>byte</code> precision of the HLL
+                          structures, <code>MIN_P &lt;= p &lt;=
+                          MAX_P</code>
+     @param intersectable <code>boolean</code> to make the structures
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structures
+     @param hash          the <code>HLLHash</code> used to hash
+                          inserted elements
+     @param capacity      the <code>int</code> number of slots
+     @param maxKeyLength  the <code>int</code> length of the longest
+                          key, in UTF-8 bytes
+
+     @return              the new <code>HLLCounterStore</code>
+   */
+  public static HLLCounterStore create(File f, byte p, boolean intersectable, int k, HLLHash hash,
+                                       int capacity, int maxKeyLength) throws IOException {
+    if(p < HLLCounter.MIN_P || p > HLLCounter.MAX_P) {
+      throw new IllegalArgumentException("HLLCounter precisions must be between MIN_P = " + HLLCounter.MIN_P +
+                                         " and MAX_P = " + HLLCounter.MAX_P + ".");
+    }
+    if(intersectable && !(k > 0)) {
+      throw new IllegalArgumentException("Intersectable HLLCounters must have a MinHash precision greater than 0.");
+    }
+    if(hash == null) {
+      throw new IllegalArgumentException("HLLCounters must have a hash.");
+    }
+    if(capacity < 1) {
+      throw new IllegalArgumentException("HLLCounterStores need at least one slot.");
+    }
+    if(maxKeyLength < 1 || maxKeyLength > MAX_KEY_LENGTH) {
+      throw new IllegalArgumentException("HLLCounterStore keys must be between 1 and " + MAX_KEY_LENGTH +
+                                         " bytes long.");
+    }
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    try {
+      raf.setLength(0);
+      HLLCounterStore s = new HLLCounterStore(raf, p, intersectable ? k : 0, hash, capacity, maxKeyLength);
+      s.dir.putInt(0, MAGIC);
+      s.dir.putInt(4, VERSION);
+      s.dir.put(8, p);
+      s.dir.put(9, hash.getId());
+      s.dir.putInt(12, s.k);
+      s.dir.putInt(16, capacity);
+      s.dir.putInt(20, maxKeyLength);
+      return s;
+    } catch(IOException e) {
+      raf.close();
+      throw e;
+    } catch(RuntimeException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  /**
+     Opens an existing <code>HLLCounterStore</code>.
+
+     @param f the <code>File</code> of the store
+
+     @return  the <code>HLLCounterStore</code>
+     @throws IOException if the file can't be read or isn't a store
+   */
+  public static HLLCounterStore open(File f) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    try {
+      if(raf.length() < HEADER) {
+        throw new IOException(f + " is not an HLLCounterStore.");
+      }
+      ByteBuffer h = ByteBuffer.allocate(HEADER);
+      raf.getChannel().read(h, 0);
+      if(h.getInt(0) != MAGIC) {
+        throw new IOException(f + " is not an HLLCounterStore.");
+      }
+      if(h.getInt(4) != VERSION) {
+        throw new IOException("Unsupported HLLCounterStore version " + h.getInt(4) + ".");
+      }
+      byte p = h.get(8);
+      int k = h.getInt(12);
+      int capacity = h.getInt(16);
+      int maxKeyLength = h.getInt(20);
+      // Check the header before mapping anything it sizes
+      if(p < HLLCounter.MIN_P || p > HLLCounter.MAX_P) {
+        throw new IOException("Unsupported HLLCounterStore precision " + p + ".");
+      }
+      if(k < 0) {
+        throw new IOException("Negative HLLCounterStore MinHash precision " + k + ".");
+      }
+      if(capacity < 1 || maxKeyLength < 1 || maxKeyLength > MAX_KEY_LENGTH) {
+        throw new IOException("Corrupt HLLCounterStore header in " + f + ".");
+      }
+      return new HLLCounterStore(raf, p, k, HLLHash.forId(h.get(9)), capacity, maxKeyLength);
+    } catch(IOException e) {
+      raf.close();
+      throw e;
+    } catch(RuntimeException e) {
+      raf.close();
+      throw e;
+    }
+  }
+
+  /**
+     Returns whether a key is in this store.
+
+     @param key the <code>String</code> key
+
+     @return    <code>true</code> if the key has a slot
+   */
+  public boolean contains(String key) {
+    ensureOpen();
+    return ids.containsKey(key);
+  }
+
+  /**
+     Returns the keys in this store.
+
+     @return the unmodifiable <code>Set&lt;String&gt;</code> of keys
+   */
+  public Set<String> keys() {
+    ensureOpen();
+    return Collections.unmodifiableSet(ids.keySet());
+  }
+
+  /**
+     Adds an empty counter for a key, if there isn't one.
+
+     @param key the <code>String</code> key
+
+     @return    <code>true</code> if the key was added
+     @throws IllegalStateException if all slots are used
+   */
+  public boolean add(String key) {
+    ensureOpen();
+    if(ids.containsKey(key)) {
+      return false;
+    }
+    byte[] b = key.getBytes(UTF_8);
+    if(b.length == 0 || b.length > maxKey) {
+      throw new IllegalArgumentException("HLLCounterStore keys must be between 1 and " + maxKey +
+                                         " bytes long.");
+    }
+    if(nfree == 0) {
+      throw new IllegalStateException("HLLCounterStore is full.");
+    }
+    int id = free[--nfree];
+    int off = entryOffset(id);
+    dir.putInt(off, 0);
+    ByteBuffer d = dir.duplicate();
+    d.position(off + 6);
+    d.put(b);
+    // The length goes last, so a crash never leaves a partial key
+    dir.putShort(off + 4, (short)b.length);
+    ids.put(key, id);
+    return true;
+  }
+
+  /**
+     Removes a key and resets its slot, to be used again.
+
+     @param key the <code>String</code> key
+
+     @return    <code>true</code> if the key was in this store
+   */
+  public boolean remove(String key) {
+    ensureOpen();
+    Integer id = ids.remove(key);
+    if(id == null) {
+      return false;
+    }
+    int off = entryOffset(id);
+    dir.putShort(off + 4, (short)0);
+    reset(id);
+    free[nfree++] = id;
+    return true;
+  }
+
+  /**
+     Clears all data in the counter of a key, in place.
+
+     @param key the <code>String</code> key
+   */
+  public void clear(String key) {
+    ensureOpen();
+    Integer id = ids.get(key);
+    if(id != null) {
+      reset(id);
+    }
+  }
+
+  private void reset(int id) {
+    ByteBuffer b = slabs[id / perSlab];
+    int off = offset(id);
+    for(int i = 0; i < slot; i += 8) {
+      b.putLong(off + i, 0L);
+    }
+    setCount(id, 0);
+  }
+
+  /**
+     Insert a <code>String</code> into the counter of a key, as
+     {@link HLLCounter#put(String v)} would, adding the key if
+     needed.
+
+     @param key the <code>String</code> key
+     @param v   the <code>String</code> to insert
+   */
+  public void put(String key, String v) {
+    if(HLLCounter.UTF_8_DEFAULT) {
+      putHash(key, hash.hash(v));
+    } else {
+      putHash(key, hash.hash(v.getBytes()));
+    }
+  }
+
+  /**
+     Insert a range of bytes into the counter of a key, adding the
+     key if needed.
+
+     @param key the <code>String</code> key
+     @param b   the <code>byte[]</code> holding the element
+     @param off the <code>int</code> offset of the element
+     @param len the <code>int</code> length of the element
+   */
+  public void put(String key, byte[] b, int off, int len) {
+    putHash(key, hash.hash(b, off, len));
+  }
+
+  /**
+     Insert an already hashed element into the counter of a key,
+     adding the key if needed.
+
+     @param key the <code>String</code> key
+     @param x   the <code>long</code> hash of the element
+   */
+  public void putHash(String key, long x) {
+    int id = idFor(key);
+    int i = id / perSlab;
+    int off = offset(id);
+    if(k > 0) {
+      int s = BufferMinHash.offer(longs[i], (off + (1 << p)) >>> 3, getCount(id), k, x);
+      if(s >= 0) {
+        setCount(id, s);
+      }
+    }
+    int idx = off + (int)(x >>> (64 - p));
+    byte v = (byte)Registers.rank(x, p);
+    if(slabs[i].get(idx) < v) {
+      slabs[i].put(idx, v);
+    }
+  }
+
+  /**
+     Returns the estimated number of unique insertions into the
+     counter of a key.
+
+     @param key the <code>String</code> key
+
+     @return    the <code>long</code> estimated size of unique
+                insertions, 0 if the key isn't in this store
+   */
+  public long size(String key) {
+    ensureOpen();
+    Integer id = ids.get(key);
+    if(id == null) {
+      return 0L;
+    }
+    int s = getCount(id);
+    if(k > 0 && s < k) {
+      return s;
+    }
+    int[] hist = new int[65];
+    BufferRegisters.histogram(slabs[id / perSlab], offset(id), p, hist);
+    int m = 1 << p;
+    return (long)Math.round(HLLCounter.estimateSize(hist, m, HLLCounter.getAlpha(m)));
+  }
+
+  /**
+     Performs a destructive union of the counter of a key and an
+     <code>HLLCounter</code>, adding the key if needed. The
+     <code>HLLCounter</code> must be at least as precise as the
+     store and, if the store is intersectable, intersectable with
+     at least its <code>k</code>.
+
+     @param key the <code>String</code> key
+     @param h   the <code>HLLCounter</code> to combine into the
+                counter
+   */
+  public void combine(String key, HLLCounter h) {
+    ensureOpen();
+    if(h.getHash().getId() != hash.getId()) {
+      throw new IllegalArgumentException("Can't mix HLLCounters built with different hashes: " +
+                                         hash + " and " + h.getHash() + ".");
+    }
+    if(h.getP() < p) {
+      throw new IllegalArgumentException("Can't lower the precision of an HLLCounterStore counter.");
+    }
+    if(k > 0 && !(h.isIntersectable() && h.getK() >= k)) {
+      throw new IllegalArgumentException("Can't lower the MinHash precision of an HLLCounterStore counter.");
+    }
+    int id = idFor(key);
+    int i = id / perSlab;
+    int off = offset(id);
+    h.registers().maxInto(new BufferRegisters(p, (ByteBuffer)slabs[i].duplicate().position(off)));
+    if(k > 0) {
+      MinHash mh = h.minHash();
+      int moff = (off + (1 << p)) >>> 3;
+      int s = getCount(id);
+      long[] r = new long[k];
+      s = MinHash.merge(BufferMinHash.values(longs[i], moff, s), s, mh.values(), mh.size(), r, k);
+      for(int j = 0; j < s; j++) {
+        longs[i].put(moff + j, r[j]);
+      }
+      setCount(id, s);
+    }
+  }
+
+  /**
+     Returns a new <code>HLLCounter</code> holding a copy of the
+     counter of a key.
+
+     @param key the <code>String</code> key
+
+     @return    the <code>HLLCounter</code>, <code>null</code> if
+                the key isn't in this store
+   */
+  public HLLCounter get(String key) {
+    ensureOpen();
+    Integer id = ids.get(key);
+    if(id == null) {
+      return null;
+    }
+    int i = id / perSlab;
+    int off = offset(id);
+    DenseRegisters R = new DenseRegisters(p);
+    BufferRegisters.maxInto(slabs[i], off, p, R);
+    if(k == 0) {
+      return new HLLCounter(p, false, 0, R.array(), (long[])null, 0, hash);
+    }
+    int s = getCount(id);
+    return new HLLCounter(p, true, k, R.array(), BufferMinHash.values(longs[i], (off + (1 << p)) >>> 3, s), s, hash);
+  }
+
+  /**
+     Returns the number of slots.
+
+     @return the <code>int</code> capacity of this store
+   */
+  public int capacity() {
+    return capacity;
+  }
+
+  /**
+     Forces all changes to this <code>HLLCounterStore</code> to
+     the storage device, as a checkpoint. Changes are otherwise
+     written back whenever the operating system sees fit, page by
+     page and in no particular order, so a crash before this
+     returns may leave any mix of old and new pages on disk.
+   */
+  public void flush() throws IOException {
+    ensureOpen();
+    for(MappedByteBuffer b : slabs) {
+      b.force();
+    }
+    dir.force();
+    file.getChannel().force(true);
+  }
+
+  /**
+     Unmaps and closes this <code>HLLCounterStore</code>, without
+     forcing it to disk. It can't be used afterwards.
+   */
+  @Override
+  public void close() throws IOException {
+    if(dir == null) {
+      return;
+    }
+    OffHeapHLLCounter.free(dir);
+    dir = null;
+    for(int i = 0; i < slabs.length; i++) {
+      OffHeapHLLCounter.free(slabs[i]);
+      slabs[i] = null;
+      longs[i] = null;
+    }
+    file.close();
+  }
+
+  private int idFor(String key) {
+    ensureOpen();
+    Integer id = ids.get(key);
+    if(id == null) {
+      add(key);
+      id = ids.get(key);
+    }
+    return id;
+  }
+
+  private int getCount(int id) {
+    return dir.getInt(entryOffset(id));
+  }
+
+  private void setCount(int id, int s) {
+    dir.putInt(entryOffset(id), s);
+  }
+
+  private int entryOffset(int id) {
+    return HEADER + id * entry;
+  }
+
+  private int offset(int id) {
+    return (id % perSlab) * slot;
+  }
+
+  private static int align(int n) {
+    return (n + 7) & ~7;
+  }
+
+  private void ensureOpen() {
+    if(dir == null) {
+      throw new IllegalStateException("HLLCounterStore is closed.");
+    }
+  }
+}
@@ -0,0 +1,70 @@
+package com.adroll.cantor;
+
+/**
+   <code>HLLEstimator</code> is the strategy used to turn the
+   registers of an HLL structure into an estimate of cardinality.
+   <p>
+   Estimators only look at how many registers hold each value, so
+   the registers are scanned once into a histogram, which
+   {@link HLLCounter} also keeps up to date as elements are
+   inserted. Implementations are stateless and safe to share
+   between threads.
+   <p>
+   {@link #HLL_PLUS_PLUS} is the historical estimator and remains
+   the default. {@link #IMPROVED} and {@link #MAXIMUM_LIKELIHOOD}
+   are the estimators of Otmar Ertl's
+   <a href="https://arxiv.org/abs/1702.01284">New cardinality
+   estimation algorithms for HyperLogLog sketches</a>. They need no
+   empirical tables and have no bias to correct over the whole
+   range of cardinalities.
+*/
+public abstract class HLLEstimator {
+
+  /** Bias-corrected HyperLogLog++ estimator, the default of <code>HLLCounter</code> */
+  public static final HLLEstimator HLL_PLUS_PLUS = new BiasCorrectedEstimator();
+  /** Ertl's improved raw estimator */
+  public static final HLLEstimator IMPROVED = new ImprovedEstimator();
+  /** Ertl's maximum-likelihood estimator */
+  public static final HLLEstimator MAXIMUM_LIKELIHOOD = new MaximumLikelihoodEstimator();
+
+  /**
+     Returns the estimated cardinality of an HLL structure.
+
+     @param hist the <code>int[]</code> of length 65, the number of
+                 registers holding each value
+     @param p    the <code>byte</code> precision of the structure
+
+     @return     the <code>double</code> estimate of the cardinality
+  */
+  public abstract double estimate(int[] hist, byte p);
+
+  /**
+     Returns the number of registers that hold the greatest value
+     possible at precision <code>p</code>, <code>65 - p</code>, or
+     more, as they can once folded.
+
+     @param hist the <code>int[]</code> number of registers holding
+                 each value
+     @param p    the <code>byte</code> precision of the structure
+
+     @return     the <code>int</code> number of saturated registers
+  */
+  static int saturated(int[] hist, byte p) {
+    int c = 0;
+    for(int i = 65 - p; i < hist.length; i++) {
+      c += hist[i];
+    }
+    return c;
+  }
+
+  /**
+     Returns a <code>String</code> representation of this
+     <code>HLLEstimator</code>.
+
+     @return the <code>String</code> name of the estimator
+  */
+  @Override
+  public String toString() {
+    return getClass().getSimpleName();
+  }
+}
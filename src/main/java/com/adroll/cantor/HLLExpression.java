@@ -0,0 +1,492 @@
+package com.adroll.cantor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+   <code>HLLExpression</code> is an expression of unions,
+   intersections and differences of {@link HLLCounter}s, whose size
+   can be estimated as a whole.
+   <p>
+   Before estimating, expressions are planned: nested unions and
+   intersections are flattened, and the counters that are unioned
+   together are merged into one counter, once per distinct set of
+   counters however many times it appears. If what remains is a
+   single counter, its size is the estimate.
+   <p>
+   Otherwise, as for {@link HLLCounter#intersect(HLLCounter... hs)},
+   the least distinct MinHash hashes of all the remaining counters are
+   a sample of their union. Each of them is checked against the
+   expression, with a counter holding it if its MinHash structure
+   does, and the fraction that matches scales the estimated size of
+   the union. This requires the counters to be intersectable. For
+   intersections alone, estimates are the same as those of
+   <code>HLLCounter.intersect</code>.
+   <p>
+   Expressions hold on to their counters, and see the changes made
+   to them up to the time they are estimated.
+*/
+public abstract class HLLExpression {
+
+  private static final int UNION = 0;
+  private static final int INTERSECTION = 1;
+  private static final int DIFFERENCE = 2;
+
+  HLLExpression() {
+  }
+
+  /**
+     Returns an expression of a single <code>HLLCounter</code>.
+
+     @param h the <code>HLLCounter</code>
+
+     @return  the <code>HLLExpression</code> of <code>h</code>
+  */
+  public static HLLExpression of(HLLCounter h) {
+    if(h == null) {
+      throw new IllegalArgumentException("Can't make an expression of a null HLLCounter.");
+    }
+    return new Leaf(h, null);
+  }
+
+  /**
+     Returns an expression of the <code>HLLCounter</code> an
+     <code>HLLWritable</code> represents, as returned by
+     {@link HLLWritable#get()}. That counter is built each time
+     the expression is estimated, so that the records read into
+     <code>w</code> meanwhile are seen.
+
+     @param w the <code>HLLWritable</code>
+
+     @return  the <code>HLLExpression</code> of <code>w</code>
+  */
+  public static HLLExpression of(HLLWritable w) {
+    if(w == null) {
+      throw new IllegalArgumentException("Can't make an expression of a null HLLWritable.");
+    }
+    return new Leaf(null, w);
+  }
+
+  /**
+     Returns the union of the given expressions.
+
+     @param es the <code>HLLExpression...</code> to union, at least
+               one
+
+     @return   the <code>HLLExpression</code> of the union
+  */
+  public static HLLExpression union(HLLExpression ... es) {
+    return new Node(UNION, check(es));
+  }
+
+  /**
+     Returns the intersection of the given expressions.
+
+     @param es the <code>HLLExpression...</code> to intersect, at
+               least one
+
+     @return   the <code>HLLExpression</code> of the intersection
+  */
+  public static HLLExpression intersect(HLLExpression ... es) {
+    return new Node(INTERSECTION, check(es));
+  }
+
+  /**
+     Returns the elements of one expression that are not in
+     another.
+
+     @param a the <code>HLLExpression</code> to take elements from
+     @param b the <code>HLLExpression</code> of elements to leave out
+
+     @return  the <code>HLLExpression</code> of the difference
+  */
+  public static HLLExpression difference(HLLExpression a, HLLExpression b) {
+    return new Node(DIFFERENCE, check(new HLLExpression[] { a, b }));
+  }
+
+  private static HLLExpression[] check(HLLExpression[] es) {
+    if(es.length == 0) {
+      throw new IllegalArgumentException("Can't make an expression of no HLLExpressions.");
+    }
+    for(HLLExpression e : es) {
+      if(e == null) {
+        throw new IllegalArgumentException("Can't make an expression of a null HLLExpression.");
+      }
+    }
+    return es.clone();
+  }
+
+  /**
+     Returns the estimated size of this expression, with the
+     HyperLogLog++ estimator.
+
+     @return the <code>long</code> estimated size
+  */
+  public long size() {
+    return size(HLLEstimator.HLL_PLUS_PLUS);
+  }
+
+  /**
+     Returns the estimated size of this expression.
+
+     @param e the <code>HLLEstimator</code> to use
+
+     @return  the <code>long</code> estimated size
+  */
+  public long size(HLLEstimator e) {
+    return new Plan(this).size(null, e);
+  }
+
+  /**
+     Returns the estimated size of this expression, merging the
+     unions it needs and sampling its MinHash hashes concurrently
+     on a <code>ForkJoinPool</code>. Estimates are the same as those
+     of {@link #size(HLLEstimator e)}.
+
+     @param pool the <code>ForkJoinPool</code> to run on
+     @param e    the <code>HLLEstimator</code> to use
+
+     @return     the <code>long</code> estimated size
+  */
+  public long size(ForkJoinPool pool, HLLEstimator e) {
+    return new Plan(this).size(pool, e);
+  }
+
+  /** An expression of a single counter, or of a writable's. */
+  private static final class Leaf extends HLLExpression {
+
+    private final HLLCounter h;
+    private final HLLWritable w;
+
+    Leaf(HLLCounter h, HLLWritable w) {
+      this.h = h;
+      this.w = w;
+    }
+  }
+
+  /** A union, intersection or difference of expressions. */
+  private static final class Node extends HLLExpression {
+
+    private final int op;
+    private final HLLExpression[] es;
+
+    Node(int op, HLLExpression[] es) {
+      this.op = op;
+      this.es = es;
+    }
+  }
+
+  /**
+     A planned expression. Terms are either atoms, the counters
+     sampled for MinHash hashes, or operations on other terms.
+  */
+  private static final class Term {
+
+    private final int op;
+    private final int atom;
+    private final Term[] ts;
+
+    Term(int atom) {
+      this.op = -1;
+      this.atom = atom;
+      this.ts = null;
+    }
+
+    Term(int op, Term[] ts) {
+      this.op = op;
+      this.atom = -1;
+      this.ts = ts;
+    }
+
+    boolean isAtom() {
+      return op < 0;
+    }
+
+    /**
+       Returns whether a hash is in this term, given which atoms
+       hold it.
+    */
+    boolean contains(boolean[] held) {
+      switch(op) {
+      case UNION:
+        for(Term t : ts) {
+          if(t.contains(held)) {
+            return true;
+          }
+        }
+        return false;
+      case INTERSECTION:
+        for(Term t : ts) {
+          if(!t.contains(held)) {
+            return false;
+          }
+        }
+        return true;
+      case DIFFERENCE:
+        return ts[0].contains(held) && !ts[1].contains(held);
+      default:
+        return held[atom];
+      }
+    }
+  }
+
+  /**
+     The plan of an expression: its atoms, and its counters to
+     union into atoms.
+  */
+  private static final class Plan {
+
+    /** Atom of each counter */
+    private final Map<HLLCounter, Integer> counters = new IdentityHashMap<HLLCounter, Integer>();
+    /** Counter of each writable, built once per plan */
+    private final Map<HLLWritable, HLLCounter> writables = new IdentityHashMap<HLLWritable, HLLCounter>();
+    /** Atom of each set of counters to union */
+    private final Map<List<Integer>, Integer> unions = new HashMap<List<Integer>, Integer>();
+    /** Counters of each atom, unioned for those made of several */
+    private final List<HLLCounter[]> parts = new ArrayList<HLLCounter[]>();
+    private final Term root;
+    private HLLCounter[] atoms;
+
+    Plan(HLLExpression x) {
+      root = plan(x);
+    }
+
+    private Term plan(HLLExpression x) {
+      if(x instanceof Leaf) {
+        return new Term(atom(counter((Leaf)x)));
+      }
+      Node n = (Node)x;
+      if(n.op == DIFFERENCE) {
+        return new Term(DIFFERENCE, new Term[] { plan(n.es[0]), plan(n.es[1]) });
+      }
+      List<HLLExpression> flat = new ArrayList<HLLExpression>();
+      flatten(n, flat);
+      List<Term> ts = new ArrayList<Term>();
+      List<Integer> leaves = new ArrayList<Integer>();
+      for(HLLExpression y : flat) {
+        Term t = plan(y);
+        if(n.op == UNION && t.isAtom() && y instanceof Leaf) {
+          leaves.add(t.atom);
+        } else {
+          ts.add(t);
+        }
+      }
+      if(leaves.size() > 0) {
+        ts.add(new Term(union(leaves)));
+      }
+      if(ts.size() == 1) {
+        return ts.get(0);
+      }
+      return new Term(n.op, ts.toArray(new Term[ts.size()]));
+    }
+
+    /** Lists the operands of nested operations of the same kind. */
+    private static void flatten(Node n, List<HLLExpression> flat) {
+      for(HLLExpression y : n.es) {
+        if(y instanceof Node && ((Node)y).op == n.op) {
+          flatten((Node)y, flat);
+        } else {
+          flat.add(y);
+        }
+      }
+    }
+
+    private HLLCounter counter(Leaf l) {
+      if(l.w == null) {
+        return l.h;
+      }
+      HLLCounter h = writables.get(l.w);
+      if(h == null) {
+        h = l.w.get();
+        writables.put(l.w, h);
+      }
+      return h;
+    }
+
+    private int atom(HLLCounter h) {
+      Integer a = counters.get(h);
+      if(a == null) {
+        a = parts.size();
+        parts.add(new HLLCounter[] { h });
+        counters.put(h, a);
+      }
+      return a;
+    }
+
+    /** Returns the atom of the union of the counters of atoms. */
+    private int union(List<Integer> leaves) {
+      Integer[] sorted = leaves.toArray(new Integer[leaves.size()]);
+      Arrays.sort(sorted);
+      List<Integer> key = new ArrayList<Integer>();
+      for(Integer a : sorted) {
+        if(key.isEmpty() || !key.get(key.size() - 1).equals(a)) {
+          key.add(a);
+        }
+      }
+      if(key.size() == 1) {
+        return key.get(0);
+      }
+      Integer a = unions.get(key);
+      if(a == null) {
+        HLLCounter[] hs = new HLLCounter[key.size()];
+        for(int i = 0; i < hs.length; i++) {
+          hs[i] = parts.get(key.get(i))[0];
+        }
+        a = parts.size();
+        parts.add(hs);
+        unions.put(key, a);
+      }
+      return a;
+    }
+
+    long size(ForkJoinPool pool, HLLEstimator e) {
+      atoms = new HLLCounter[parts.size()];
+      if(pool == null) {
+        merge(0, atoms.length);
+      } else {
+        pool.invoke(new Merge(this, 0, atoms.length));
+      }
+      if(root.isAtom()) {
+        return atoms[root.atom].size(e);
+      }
+      final int[] used = used();
+      final HLLCounter[] hs = new HLLCounter[used.length];
+      for(int j = 0; j < used.length; j++) {
+        hs[j] = atoms[used[j]];
+        hs[0].checkHash(hs[j]);
+        if(!hs[j].isIntersectable()) {
+          throw new IllegalArgumentException("Can't estimate intersections or differences of non-intersectable HLLCounters.");
+        }
+      }
+      if(pool == null) {
+        return (long)Math.round(fraction(hs, used) * HLLCounter.totalSize(e, hs));
+      }
+      final HLLEstimator est = e;
+      ForkJoinTask<Double> total = pool.submit(new Callable<Double>() {
+          @Override
+          public Double call() {
+            return HLLCounter.totalSize(est, hs);
+          }
+        });
+      double f = fraction(hs, used);
+      return (long)Math.round(f * total.join());
+    }
+
+    /** Unions the counters of atoms <code>lo</code> to <code>hi</code>. */
+    void merge(int lo, int hi) {
+      for(int i = lo; i < hi; i++) {
+        HLLCounter[] hs = parts.get(i);
+        atoms[i] = hs.length == 1 ? hs[0] : HLLCounter.union(hs);
+      }
+    }
+
+    /**
+       Returns the atoms the root term refers to. Counters that
+       only appear in unions are left out.
+    */
+    private int[] used() {
+      boolean[] seen = new boolean[atoms.length];
+      mark(root, seen);
+      int n = 0;
+      int[] used = new int[atoms.length];
+      for(int i = 0; i < atoms.length; i++) {
+        if(seen[i]) {
+          used[n++] = i;
+        }
+      }
+      return Arrays.copyOf(used, n);
+    }
+
+    private void mark(Term t, boolean[] seen) {
+      if(t.isAtom()) {
+        seen[t.atom] = true;
+      } else {
+        for(Term u : t.ts) {
+          mark(u, seen);
+        }
+      }
+    }
+
+    /**
+       Returns the fraction of the least distinct hashes of the
+       atoms that are in the expression, from a single merge pass
+       over their MinHash structures.
+    */
+    private double fraction(HLLCounter[] hs, int[] used) {
+      int n = hs.length;
+      MinHash[] mhs = new MinHash[n];
+      int mink = Integer.MAX_VALUE;
+      int maxs = 0;
+      for(int j = 0; j < n; j++) {
+        mhs[j] = hs[j].minHash();
+        mink = Math.min(mink, hs[j].getK());
+        maxs = Math.max(maxs, mhs[j].size());
+      }
+      mink = Math.min(mink, maxs);
+      if(mink == 0) {
+        return 0.0;
+      }
+      int[] c = new int[n];
+      boolean[] held = new boolean[atoms.length];
+      int result = 0;
+      for(int i = 0; i < mink; i++) {
+        long x = Long.MAX_VALUE;
+        boolean left = false;
+        for(int j = 0; j < n; j++) {
+          if(c[j] < mhs[j].size() && (!left || mhs[j].values()[c[j]] < x)) {
+            x = mhs[j].values()[c[j]];
+            left = true;
+          }
+        }
+        if(!left) {
+          break;
+        }
+        for(int j = 0; j < n; j++) {
+          boolean h = c[j] < mhs[j].size() && mhs[j].values()[c[j]] == x;
+          if(h) {
+            c[j]++;
+          }
+          held[used[j]] = h;
+        }
+        if(root.contains(held)) {
+          result++;
+        }
+      }
+      return ((double)result)/((double)mink);
+    }
+  }
+
+  /** Unions the counters of a range of atoms. */
+  private static final class Merge extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Plan plan;
+    private final int lo;
+    private final int hi;
+
+    Merge(Plan plan, int lo, int hi) {
+      this.plan = plan;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+      if(hi - lo <= 1) {
+        plan.merge(lo, hi);
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      invokeAll(new Merge(plan, lo, mid), new Merge(plan, mid, hi));
+    }
+  }
+}
@@ -0,0 +1,169 @@
+package com.adroll.cantor;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+   <code>HLLFanOut</code> inserts each element into a fixed list of
+   {@link HLLCounter}s, hashing it once rather than once per counter.
+   <p>
+   Counters are grouped by {@link HLLHash}, and within each group by
+   precision, so that an element is hashed once per distinct hash and
+   its register and rank are computed once per distinct precision.
+   Counters folded after being added still get the right register,
+   though they lose the sharing.
+   <p>
+   An <code>HLLFanOut</code> is as safe to use from several threads
+   as its counters are.
+*/
+public final class HLLFanOut {
+
+  /** Distinct hashes of the counters */
+  private final HLLHash[] hashes;
+  /** Distinct precisions, by hash */
+  private final byte[][] ps;
+  /** Counters, by hash and precision */
+  private final HLLCounter[][][] targets;
+
+  /**
+     Constructs an <code>HLLFanOut</code> that inserts into the
+     given <code>HLLCounter</code>s.
+
+     @param hs the <code>HLLCounter...</code> to insert into
+  */
+  public HLLFanOut(HLLCounter ... hs) {
+    List<HLLHash> hashList = new ArrayList<HLLHash>();
+    for(HLLCounter h : hs) {
+      if(h == null) {
+        throw new IllegalArgumentException("Can't insert into a null HLLCounter.");
+      }
+      if(!hashList.contains(h.getHash())) {
+        hashList.add(h.getHash());
+      }
+    }
+    hashes = hashList.toArray(new HLLHash[hashList.size()]);
+    ps = new byte[hashes.length][];
+    targets = new HLLCounter[hashes.length][][];
+    for(int i = 0; i < hashes.length; i++) {
+      // Counters of each precision, in increasing order
+      List<List<HLLCounter>> byP = new ArrayList<List<HLLCounter>>();
+      List<Byte> pList = new ArrayList<Byte>();
+      for(byte p = HLLCounter.MIN_P; p <= HLLCounter.MAX_P; p++) {
+        List<HLLCounter> same = new ArrayList<HLLCounter>();
+        for(HLLCounter h : hs) {
+          if(h.getHash() == hashes[i] && h.getP() == p) {
+            same.add(h);
+          }
+        }
+        if(!same.isEmpty()) {
+          byP.add(same);
+          pList.add(p);
+        }
+      }
+      ps[i] = new byte[pList.size()];
+      targets[i] = new HLLCounter[pList.size()][];
+      for(int j = 0; j < ps[i].length; j++) {
+        ps[i][j] = pList.get(j);
+        targets[i][j] = byP.get(j).toArray(new HLLCounter[byP.get(j).size()]);
+      }
+    }
+  }
+
+  /**
+     Insert a <code>String</code> into every counter, like
+     {@link HLLCounter#put(String v)}.
+
+     @param v the <code>String</code> to insert
+  */
+  public void put(String v) {
+    for(int i = 0; i < hashes.length; i++) {
+      if(HLLCounter.UTF_8_DEFAULT) {
+        putHash(i, hashes[i].hash(v));
+      } else {
+        putHash(i, hashes[i].hash(v.getBytes()));
+      }
+    }
+  }
+
+  /**
+     Insert the UTF-8 encoding of a <code>CharSequence</code> into
+     every counter, like {@link HLLCounter#put(CharSequence v)}.
+
+     @param v the <code>CharSequence</code> to insert
+  */
+  public void put(CharSequence v) {
+    for(int i = 0; i < hashes.length; i++) {
+      putHash(i, hashes[i].hash(v));
+    }
+  }
+
+  /**
+     Insert a range of bytes into every counter, like
+     {@link HLLCounter#put(byte[] b, int off, int len)}.
+
+     @param b   the <code>byte[]</code> holding the element
+     @param off the <code>int</code> offset of the element
+     @param len the <code>int</code> length of the element
+  */
+  public void put(byte[] b, int off, int len) {
+    for(int i = 0; i < hashes.length; i++) {
+      putHash(i, hashes[i].hash(b, off, len));
+    }
+  }
+
+  /**
+     Insert a <code>byte[]</code> into every counter.
+
+     @param b the <code>byte[]</code> to insert
+  */
+  public void put(byte[] b) {
+    put(b, 0, b.length);
+  }
+
+  /**
+     Insert the bytes between the position and the limit of a
+     <code>ByteBuffer</code> into every counter, like
+     {@link HLLCounter#put(ByteBuffer buf)}.
+
+     @param buf the <code>ByteBuffer</code> to insert
+  */
+  public void put(ByteBuffer buf) {
+    for(int i = 0; i < hashes.length; i++) {
+      putHash(i, hashes[i].hash(buf));
+    }
+  }
+
+  /**
+     Insert an already hashed element into every counter built
+     with the given hash.
+
+     @param hash the <code>HLLHash</code> that computed
+                 <code>x</code>
+     @param x    the <code>long</code> hash of the element
+  */
+  public void putHash(HLLHash hash, long x) {
+    for(int i = 0; i < hashes.length; i++) {
+      if(hashes[i] == hash) {
+        putHash(i, x);
+      }
+    }
+  }
+
+  private void putHash(int i, long x) {
+    byte[] qs = ps[i];
+    HLLCounter[][] ts = targets[i];
+    for(int j = 0; j < qs.length; j++) {
+      byte p = qs[j];
+      int idx = (int)(x >>> (64 - p));
+      int v = Registers.rank(x, p);
+      for(HLLCounter h : ts[j]) {
+        if(h.getP() == p) {
+          h.putHash(x, idx, v);
+        } else {
+          h.putHash(x);
+        }
+      }
+    }
+  }
+}
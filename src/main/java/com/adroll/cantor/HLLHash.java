@@ -0,0 +1,205 @@
+package com.adroll.cantor;
+
+import java.nio.ByteBuffer;
+
+/**
+   <code>HLLHash</code> is the strategy used by an {@link HLLCounter}
+   to turn inserted elements into 64-bit hashes.
+   <p>
+   Every implementation is identified by a <code>byte</code> id which
+   is recorded in the <code>HLLCounter</code> and in the
+   {@link HLLWritable} format, so that sketches built with different
+   hashes are never merged with one another. Implementations are
+   stateless and safe to share between threads.
+   <p>
+   {@link #MD5} is the historical hash and remains the default.
+   {@link #MURMUR3_128} and {@link #XXHASH64} are much cheaper and
+   do not allocate while hashing.
+*/
+public abstract class HLLHash {
+
+  /** Id of {@link #MD5} */
+  public static final byte MD5_ID = (byte)0;
+  /** Id of {@link #MURMUR3_128} */
+  public static final byte MURMUR3_128_ID = (byte)1;
+  /** Id of {@link #XXHASH64} */
+  public static final byte XXHASH64_ID = (byte)2;
+
+  /** First 64 bits of MD5, the default hash of <code>HLLCounter</code> */
+  public static final HLLHash MD5 = new MD5Hash();
+  /** First 64 bits of the x64 128-bit MurmurHash3, with seed 0 */
+  public static final HLLHash MURMUR3_128 = new Murmur3Hash();
+  /** xxHash64, with seed 0 */
+  public static final HLLHash XXHASH64 = new XXHash64();
+
+  /** Per-thread buffer for encoding characters and copying direct buffers */
+  private static final ThreadLocal<byte[]> SCRATCH = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[256];
+    }
+  };
+
+  /**
+     Returns the <code>HLLHash</code> identified by the given id.
+
+     @param id the <code>byte</code> id of the hash
+
+     @return   the <code>HLLHash</code> with that id
+  */
+  public static HLLHash forId(byte id) {
+    switch (id) {
+    case MD5_ID: return MD5;
+    case MURMUR3_128_ID: return MURMUR3_128;
+    case XXHASH64_ID: return XXHASH64;
+    default: throw new IllegalArgumentException("Unknown hash id " + Byte.toString(id) + ".");
+    }
+  }
+
+  /**
+     Returns the id of this hash, as recorded in serialized
+     sketches.
+
+     @return the <code>byte</code> id
+  */
+  public abstract byte getId();
+
+  /**
+     Hashes a range of a <code>byte[]</code>.
+
+     @param b   the <code>byte[]</code> to hash
+     @param off the <code>int</code> offset of the first byte
+     @param len the <code>int</code> number of bytes to hash
+
+     @return    the <code>long</code> hash
+  */
+  public abstract long hash(byte[] b, int off, int len);
+
+  /**
+     Hashes a whole <code>byte[]</code>.
+
+     @param b the <code>byte[]</code> to hash
+
+     @return  the <code>long</code> hash
+  */
+  public long hash(byte[] b) {
+    return hash(b, 0, b.length);
+  }
+
+  /**
+     Hashes the UTF-8 encoding of a <code>CharSequence</code>.
+     <p>
+     The characters are encoded into a per-thread buffer, so
+     nothing is allocated once that buffer is large enough.
+     Unpaired surrogates are encoded as <code>'?'</code>, as
+     {@link String#getBytes(java.nio.charset.Charset)} does.
+
+     @param cs the <code>CharSequence</code> to hash
+
+     @return   the <code>long</code> hash
+  */
+  public long hash(CharSequence cs) {
+    int n = cs.length();
+    byte[] b = scratch(n * 3);
+    int j = 0;
+    for(int i = 0; i < n; i++) {
+      char c = cs.charAt(i);
+      if(c < 0x80) {
+        b[j++] = (byte)c;
+      } else if(c < 0x800) {
+        b[j++] = (byte)(0xc0 | (c >> 6));
+        b[j++] = (byte)(0x80 | (c & 0x3f));
+      } else if(Character.isSurrogate(c)) {
+        char d;
+        if(Character.isHighSurrogate(c) && i + 1 < n
+           && Character.isLowSurrogate(d = cs.charAt(i + 1))) {
+          int cp = Character.toCodePoint(c, d);
+          b[j++] = (byte)(0xf0 | (cp >> 18));
+          b[j++] = (byte)(0x80 | ((cp >> 12) & 0x3f));
+          b[j++] = (byte)(0x80 | ((cp >> 6) & 0x3f));
+          b[j++] = (byte)(0x80 | (cp & 0x3f));
+          i++;
+        } else {
+          b[j++] = (byte)'?';
+        }
+      } else {
+        b[j++] = (byte)(0xe0 | (c >> 12));
+        b[j++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+        b[j++] = (byte)(0x80 | (c & 0x3f));
+      }
+    }
+    return hash(b, 0, j);
+  }
+
+  /**
+     Hashes the bytes between the position and the limit of a
+     <code>ByteBuffer</code>, without changing its position.
+     <p>
+     Heap buffers are hashed in place. Direct buffers are first
+     copied into a per-thread buffer.
+
+     @param buf the <code>ByteBuffer</code> to hash
+
+     @return    the <code>long</code> hash
+  */
+  public long hash(ByteBuffer buf) {
+    int pos = buf.position();
+    int len = buf.remaining();
+    if(buf.hasArray()) {
+      return hash(buf.array(), buf.arrayOffset() + pos, len);
+    }
+    byte[] b = scratch(len);
+    for(int i = 0; i < len; i++) {
+      b[i] = buf.get(pos + i);
+    }
+    return hash(b, 0, len);
+  }
+
+  /**
+     Returns this thread's scratch buffer, grown to hold at
+     least <code>n</code> bytes.
+
+     @param n the <code>int</code> number of bytes needed
+
+     @return  the <code>byte[]</code> scratch buffer
+  */
+  private static byte[] scratch(int n) {
+    byte[] b = SCRATCH.get();
+    if(b.length < n) {
+      b = new byte[Math.max(n, 2 * b.length)];
+      SCRATCH.set(b);
+    }
+    return b;
+  }
+
+  /** Reads a little-endian <code>long</code> at <code>i</code>. */
+  static long getLong(byte[] b, int i) {
+    return ((long)b[i] & 0xff)
+      | (((long)b[i + 1] & 0xff) << 8)
+      | (((long)b[i + 2] & 0xff) << 16)
+      | (((long)b[i + 3] & 0xff) << 24)
+      | (((long)b[i + 4] & 0xff) << 32)
+      | (((long)b[i + 5] & 0xff) << 40)
+      | (((long)b[i + 6] & 0xff) << 48)
+      | (((long)b[i + 7] & 0xff) << 56);
+  }
+
+  /** Reads a little-endian unsigned <code>int</code> at <code>i</code>. */
+  static long getInt(byte[] b, int i) {
+    return ((long)b[i] & 0xff)
+      | (((long)b[i + 1] & 0xff) << 8)
+      | (((long)b[i + 2] & 0xff) << 16)
+      | (((long)b[i + 3] & 0xff) << 24);
+  }
+
+  /**
+     Returns a <code>String</code> representation of this
+     <code>HLLHash</code>.
+
+     @return the <code>String</code> name of the hash
+  */
+  @Override
+  public String toString() {
+    return getClass().getSimpleName();
+  }
+}
@@ -0,0 +1,203 @@
+package com.adroll.cantor;
+
+import java.io.IOException;
+
+/**
+   <code>HLLRecord</code> reads a serialized {@link HLLWritable}
+   straight from its bytes, in any of the formats it writes, without
+   copying its structures out.
+   <p>
+   Once parsed, the registers and the MinHash hashes of the record
+   are read in order, each through its own cursor. A record is
+   parsed again for each new set of bytes, so one instance can be
+   reused for many.
+*/
+final class HLLRecord {
+
+  byte h;
+  boolean packed;
+  boolean compressed;
+  byte p;
+  /** Whether the HLL structure was written, see HLLWritable */
+  boolean hasM;
+  int k;
+  int s;
+
+  private byte[] b;
+  private int mOff;
+  private int mEnd;
+  private int hOff;
+  private int hEnd;
+
+  // Register cursor
+  private int ri;
+  private final int[] rpos = new int[1];
+  private int runValue;
+  private long runLeft;
+
+  // Hash cursor
+  private int hi;
+  private final int[] hpos = new int[1];
+  private long last;
+
+  /**
+     Parses the header of a record and finds its structures.
+
+     @param b   the <code>byte[]</code> holding the record
+     @param off the <code>int</code> offset of the record
+     @param len the <code>int</code> greatest length of the record
+
+     @return    this <code>HLLRecord</code>
+
+     @throws IOException if the record is malformed or truncated
+  */
+  HLLRecord parse(byte[] b, int off, int len) throws IOException {
+    this.b = b;
+    int limit = off + len;
+    int pos = off;
+    check(pos + 1, limit);
+    byte first = b[pos++];
+    h = HLLHash.MD5_ID;
+    packed = false;
+    compressed = false;
+    if(first == HLLWritable.EXTENDED) {
+      check(pos + 3, limit);
+      h = b[pos++];
+      try {
+        // Make sure we know about it
+        HLLHash.forId(h);
+      } catch(IllegalArgumentException e) {
+        throw new IOException(e);
+      }
+      byte flags = b[pos++];
+      if((flags & ~(HLLWritable.PACKED | HLLWritable.COMPRESSED)) != 0) {
+        throw new IOException("Unsupported HLLWritable flags " + flags);
+      }
+      packed = (flags & HLLWritable.PACKED) != 0;
+      compressed = (flags & HLLWritable.COMPRESSED) != 0;
+      first = b[pos++];
+    }
+    hasM = first >= 0;
+    p = (byte)(hasM ? first : -first);
+    if(p < HLLCounter.MIN_P || p > HLLCounter.MAX_P) {
+      throw new IOException("Unsupported HLLWritable precision " + p);
+    }
+    check(pos + 8, limit);
+    k = readInt(b, pos);
+    s = readInt(b, pos + 4);
+    pos += 8;
+    if(k == 0) {
+      s = 0;
+    }
+    if(s < 0) {
+      throw new IOException("Negative MinHash size " + s);
+    }
+    int m = 1 << p;
+    if(hasM) {
+      int n;
+      if(compressed) {
+        check(pos + 4, limit);
+        n = readInt(b, pos);
+        pos += 4;
+      } else {
+        n = packed ? m / 4 * 3 : m;
+      }
+      mOff = pos;
+      pos += n;
+      mEnd = pos;
+      check(pos, limit);
+    }
+    int n;
+    if(compressed) {
+      check(pos + 4, limit);
+      n = readInt(b, pos);
+      pos += 4;
+    } else {
+      n = 8 * s;
+    }
+    hOff = pos;
+    pos += n;
+    hEnd = pos;
+    check(pos, limit);
+    ri = 0;
+    rpos[0] = mOff;
+    runLeft = 0;
+    hi = 0;
+    hpos[0] = hOff;
+    return this;
+  }
+
+  /**
+     Returns the offset just past the parsed record.
+
+     @return the <code>int</code> end of the record
+  */
+  int end() {
+    return hEnd;
+  }
+
+  /**
+     Returns the next register of the HLL structure, which must
+     have been written.
+
+     @return the <code>int</code> value of the register
+  */
+  int nextRegister() throws IOException {
+    int i = ri++;
+    if(compressed) {
+      if(runLeft > 0) {
+        runLeft--;
+        return runValue;
+      }
+      if(rpos[0] >= mEnd) {
+        throw new IOException("Run-length encoded HLL structure is too short.");
+      }
+      byte t = b[rpos[0]++];
+      if((t & 0x80) == 0) {
+        return t;
+      }
+      runValue = t & 0x7f;
+      runLeft = HLLWritable.readVarint(b, rpos, mEnd) - 1;
+      return runValue;
+    }
+    if(packed) {
+      int j = mOff + (i >>> 2) * 3;
+      int w = ((b[j] & 0xff) << 16) | ((b[j + 1] & 0xff) << 8) | (b[j + 2] & 0xff);
+      return (w >>> (6 * (3 - (i & 3)))) & 0x3f;
+    }
+    return b[mOff + i];
+  }
+
+  /**
+     Returns the next hash of the MinHash structure.
+
+     @return the <code>long</code> hash
+  */
+  long nextHash() throws IOException {
+    int i = hi++;
+    if(!compressed) {
+      return readLong(b, hOff + 8 * i);
+    }
+    if(i == 0) {
+      last = readLong(b, hOff);
+      hpos[0] = hOff + 8;
+    } else {
+      last += HLLWritable.readVarint(b, hpos, hEnd);
+    }
+    return last;
+  }
+
+  private static void check(int pos, int limit) throws IOException {
+    if(pos > limit) {
+      throw new IOException("Truncated HLLWritable record.");
+    }
+  }
+
+  private static int readInt(byte[] b, int i) {
+    return ((b[i] & 0xff) << 24) | ((b[i + 1] & 0xff) << 16) | ((b[i + 2] & 0xff) << 8) | (b[i + 3] & 0xff);
+  }
+
+  private static long readLong(byte[] b, int i) {
+    return ((long)readInt(b, i) << 32) | (readInt(b, i + 4) & 0xffffffffL);
+  }
+}
@@ -3,10 +3,11 @@ package com.adroll.cantor;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.TreeSet;
 
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,11 +17,35 @@ import com.adroll.cantor.HLLCounter;
    <code>HLLWritable</code> allows for serialization and 
    deserialization of {@link HLLCounter} objects in a 
    Hadoop framework.
+   <p>
+   It can also be used as a key: a raw comparator that orders
+   serialized records without deserializing them is registered with
+   {@link WritableComparator}, and {@link HLLWritableMerger} unions
+   serialized records directly.
 */
-public class HLLWritable implements Writable {
+public class HLLWritable implements WritableComparable<HLLWritable> {
   
   private static final Logger LOG = LoggerFactory.getLogger(HLLWritable.class);
 
+  /** 
+      Leading byte of records that carry an extended header.
+      Legacy records start with <code>p</code> or <code>-p</code>,
+      which can never take this value.
+  */
+  static final byte EXTENDED = (byte)0x80;
+
+  /** Flag of records whose HLL structure is packed in 6 bits per register */
+  static final byte PACKED = 0x01;
+
+  /** 
+      Flag of records whose HLL structure is run-length encoded, and
+      whose MinHash structure is written as varint deltas
+  */
+  static final byte COMPRESSED = 0x02;
+
+  /** Registers of at least this many equal values make a run */
+  private static final int MIN_RUN = 3;
+
   /** The HLL precision of the contained <code>HLLCounter</code> represenation. 
       {@link HLLCounter#MIN_P}<code> &lt;= p &lt;= </code>{@link HLLCounter#MAX_P}.
   */
@@ -30,11 +55,29 @@ public class HLLWritable implements Writable {
   /** The number of current elements in the MinHash structure 
       of the contained <code>HLLCounter</code> representation. */
   protected int s;
-  /** The HLL structure of the contained <code>HLLCounter</code> representation. */
+  /** The HLL structure of the contained <code>HLLCounter</code> representation.
+      It is <code>null</code> while the MinHash structure is not full, 
+      <code>s &lt; k</code>, since it can then be rebuilt from the MinHash
+      structure, until {@link #registers()} builds it. */
   protected byte[] M;
   /** The contents of the MinHash structure of the contained 
       <code>HLLCounter</code> representation.*/
   protected long[] minhash;
+  /** The id of the {@link HLLHash} of the contained 
+      <code>HLLCounter</code> representation. */
+  protected byte h;
+  /** Whether the HLL structure is written packed in 6 bits per register. */
+  protected boolean packed;
+  /** Whether the HLL and MinHash structures are written compressed. */
+  protected boolean compressed;
+  /** 
+      An HLL structure allocated by this <code>HLLWritable</code> and
+      shared with no <code>HLLCounter</code>, that the next record
+      can be read or rebuilt into
+  */
+  private byte[] ownM;
+  /** Scratch space for reading encoded structures */
+  private byte[] buf;
 
   /**
      Constructs an <code>HLLWritable</code> that contains a representation 
@@ -70,11 +113,33 @@ public class HLLWritable implements Writable {
                       structure
   */
   public HLLWritable(byte p, int k, int s, byte[] M, long[] minhash){
+    this(p, k, s, M, minhash, HLLHash.MD5_ID);
+  }
+
+  /**
+     Constructs an <code>HLLWritable</code> with the given set of fields,
+     for structures that were built with the {@link HLLHash} of id 
+     <code>h</code>.
+     
+     @param p         the <code>byte</code> precision of the HLL 
+                      structure. {@link HLLCounter#MIN_P}<code> &lt;= p 
+                      &lt;= </code>{@link HLLCounter#MAX_P}.
+     @param k         the <code>int</code> precision of the MinHash 
+                      structure
+     @param s         the <code>int</code> number of elements in the 
+                      MinHash structure
+     @param M         the <code>byte[]</code> HLL structure
+     @param minhash   the <code>long[]</code> elements in the MinHash 
+                      structure
+     @param h         the <code>byte</code> id of the hash
+  */
+  public HLLWritable(byte p, int k, int s, byte[] M, long[] minhash, byte h){
     this.p = p;
     this.k = k;
     this.s = s;
     this.M = M;
     this.minhash = minhash;
+    this.h = h;
   }
 
   /**
@@ -84,43 +149,142 @@ public class HLLWritable implements Writable {
      @param h the <code>HLLCounter</code> to represent and contain
   */
   public void set(HLLCounter h) {
+    this.h = h.getHash().getId();
     p = h.getP();
-    M = h.getByteArray();
     k = h.getK();
-    if(h.isIntersectable()){
-      s = h.getMinHash().size();
+    MinHash mh = h.minHash();
+    if(mh != null){
+      s = mh.size();
     } else {
       s = 0;
     }
+    // Until the MinHash structure is full, it holds the HLL structure
+    M = s < k ? null : h.getByteArray();
     if(minhash == null || minhash.length != s){
       minhash = new long[s];
     }
-    int i = 0;
-    if(h.getMinHash() != null){
-      for(Long l : h.getMinHash()){
-        minhash[i] = l;
-        i++;
-      }
+    if(mh != null){
+      System.arraycopy(mh.values(), 0, minhash, 0, s);
     }
   }
 
+  /**
+     Sets whether to write the HLL structure packed in 6 bits per
+     register, which takes a quarter less space. Such records
+     always carry an extended header, and can't be read by
+     versions that predate it.
+     <p>
+     It is set when reading a packed record, so that it is written
+     back the same way.
+
+     @param packed <code>true</code> to write packed records
+  */
+  public void setPacked(boolean packed) {
+    this.packed = packed;
+  }
+
+  /**
+     Returns whether the HLL structure is written packed in 6 bits 
+     per register.
+
+     @return <code>true</code> if records are written packed
+  */
+  public boolean isPacked() {
+    return packed;
+  }
+
+  /**
+     Sets whether to write records compressed. The HLL structure is
+     then run-length encoded, which shrinks the long runs of zeros
+     and equal values of all but the fullest structures, and the
+     sorted MinHash structure is written as the differences between
+     its hashes, in as few bytes as each takes. Compression takes
+     precedence over packing. Such records always carry an extended
+     header, and can't be read by versions that predate it.
+     <p>
+     It is set when reading a compressed record, so that it is
+     written back the same way.
+
+     @param compressed <code>true</code> to write compressed records
+  */
+  public void setCompressed(boolean compressed) {
+    this.compressed = compressed;
+  }
+
+  /**
+     Returns whether records are written compressed.
+
+     @return <code>true</code> if records are written compressed
+  */
+  public boolean isCompressed() {
+    return compressed;
+  }
+
   /**
      Returns a new <code>HLLCounter</code> that is constructed 
      from the internal representation of the <code>HLLCounter</code> 
      that this <code>HLLWritable</code> contains.
+     <p>
+     While the MinHash structure is not full, the counter rebuilds
+     its HLL structure from it sparse, without the dense 
+     <code>M</code>.
 
      @return the <code>HLLCounter</code> this <code>HLLWritable</code>
              represents.
   */
   public HLLCounter get() {
-    TreeSet<Long> ts = new TreeSet<Long>();
-    for(long l : minhash){
-      ts.add(l);
+    if(M == null && s < k) {
+      return new HLLCounter(p, k, minhash, s, HLLHash.forId(h));
+    }
+    HLLCounter hll = new HLLCounter(p, k > 0, k, registers(), minhash, s, HLLHash.forId(h));
+    // The counter now holds M, the next record can't be read into it
+    if(M == ownM) {
+      ownM = null;
     }
-    HLLCounter hll = new HLLCounter(p, k > 0, k, M, ts);
     return hll; 
   }
 
+  /**
+     Returns the HLL structure of the contained 
+     <code>HLLCounter</code> representation, rebuilding it from
+     the MinHash structure if it was left out.
+
+     @return the <code>byte[]</code> HLL structure
+  */
+  protected byte[] registers() {
+    if(M == null) {
+      int m = 1 << p;
+      if(ownM != null && ownM.length == m) {
+        Arrays.fill(ownM, (byte)0);
+      } else {
+        ownM = new byte[m];
+      }
+      M = ownM;
+      raise(M, p, minhash, s);
+    }
+    return M;
+  }
+
+  /**
+     Raises an HLL structure with the ranks of MinHash elements,
+     as inserting them would.
+
+     @param M       the <code>byte[]</code> HLL structure to raise
+     @param p       the <code>byte</code> precision of <code>M</code>
+     @param minhash the <code>long[]</code> MinHash elements
+     @param s       the <code>int</code> number of elements to use
+  */
+  static void raise(byte[] M, byte p, long[] minhash, int s) {
+    for(int i = 0; i < s; i++) {
+      long x = minhash[i];
+      int idx = (int)(x >>> (64 - p));
+      int rank = Registers.rank(x, p);
+      if(rank > M[idx]) {
+        M[idx] = (byte)rank;
+      }
+    }
+  }
+
   /**
      Returns a new <code>HLLWritable</code> that contains a 
      representation of combining its internal 
@@ -139,55 +303,44 @@ public class HLLWritable implements Writable {
               the union, <code>null</code> if fails,
               <code>this</code> if <code>other</code>
               is <code>null</code>.
+     @throws  IllegalArgumentException if the two were built
+              with different hashes
   */
   public HLLWritable combine(HLLWritable other){
     if(other == null){
       return this;
     }
+    if(h != other.h){
+      throw new IllegalArgumentException("Can't combine HLLWritables built with different hashes: " +
+                                         HLLHash.forId(h) + " and " + HLLHash.forId(other.h) + ".");
+    }
 
     byte newP = (byte)Math.min(p, other.p);
     int newK = Math.min(k, other.k);
-    byte[] newM = HLLCounter.safeUnion(M, other.M);
     // newMinhash will hold at most newK elements, but possibly less
-    long[] newMinhash = new long[newK];
-    int i=0, j=0;
+    long[] newMinhash = new long[Math.min(newK, s + other.s)];
     int newS=0;
 
     try {
       if(newK > 0){
-        while ( i < s && j < other.s && newS < newK){
-          long left = minhash[i];
-          long right = other.minhash[j];
-          if(left < right){
-            newMinhash[newS] = left;
-            i++;
-          } else if(left > right){
-            newMinhash[newS] = right;
-            j++;
-          } else { // left == right
-            newMinhash[newS] = left;
-            i++;
-            j++;
-          }
-          newS++;
-        }
-        while( i < s && newS < newK){
-          newMinhash[newS] = minhash[i];
-          i++;
-          newS++;
-        }
-        while(j < other.s && newS < newK){
-          newMinhash[newS] = other.minhash[j];
-          j++;
-          newS++;
-        }
-        // We allocated an array of newK size, but it's possible we didn't fill it up.
+        newS = MinHash.merge(minhash, s, other.minhash, other.s, newMinhash, newK);
+        // It's possible we didn't fill the array up, since both share elements.
         // This would leave trailing 0's at the end of the array which we don't want to keep around.
-        if (newS < newK) {
+        if (newS < newMinhash.length) {
           newMinhash = Arrays.copyOf(newMinhash, newS);
         }
       }
-      return new HLLWritable(newP, newK, newS, newM, newMinhash);
+      // Unless the union fills its MinHash structure, both hold their
+      // HLL structures in their MinHash structures, and so does it
+      byte[] newM = null;
+      if(newS >= newK) {
+        newM = HLLCounter.safeUnion(registers(), other.registers());
+      }
+      HLLWritable r = new HLLWritable(newP, newK, newS, newM, newMinhash, h);
+      r.ownM = newM;
+      r.packed = packed;
+      r.compressed = compressed;
+      return r;
     } catch (Exception e){
       LOG.error("Failed combining", e);
       return null;
@@ -200,84 +353,515 @@ public class HLLWritable implements Writable {
      {@link java.io.DataOutput}.
      <p>
      Generally, this method should not be called on its own.
+     <p>
+     Records of MD5 structures are written in the original 
+     format. Other hashes, and packed registers, are recorded in
+     an extended header that precedes it.
 
      @param out the <code>DataOutput</code> object to write to
   */
   public void write(DataOutput out) throws IOException {
     try{
-      // minhash is not maxed out, M is redundant so don't write it
-      if (s < k) {
-        // Use -p to signify no M
-        out.writeByte(-p);
-        out.writeInt(k);
-        out.writeInt(s);
-        for(int i=0; i < s; i++){
-          out.writeLong(minhash[i]);
-        }
-      } else {
-        out.writeByte(p);
-        out.writeInt(k);
-        out.writeInt(s);
-        for(byte b : M){
-          out.writeByte(b);
-        }
-        for(int i=0; i < s; i++){
-          out.writeLong(minhash[i]);
-        }
-      }
+      buf = write(out, h, packed, compressed, p, k, s, s < k ? null : registers(), minhash, buf);
     } catch(Exception e){
       LOG.warn("Failed writing", e);
     }
   }
 
+  /**
+     Writes a record of the given fields, as
+     {@link #write(DataOutput out)} does.
+
+     @param out        the <code>DataOutput</code> to write to
+     @param h          the <code>byte</code> id of the hash
+     @param packed     <code>true</code> to pack the HLL structure
+     @param compressed <code>true</code> to compress the structures
+     @param p          the <code>byte</code> precision of the HLL
+                       structure
+     @param k          the <code>int</code> precision of the MinHash
+                       structure
+     @param s          the <code>int</code> number of elements in the
+                       MinHash structure
+     @param M          the <code>byte[]</code> HLL structure, of
+                       length 2^<code>p</code>
+     @param minhash    the <code>long[]</code> elements in the MinHash
+                       structure, at least <code>s</code>
+     @param buf        the <code>byte[]</code> scratch space to encode
+                       in, or <code>null</code>
+
+     @return           <code>buf</code>, or a larger scratch space to
+                       keep for the next record
+  */
+  static byte[] write(DataOutput out, byte h, boolean packed, boolean compressed, byte p, 
+                      int k, int s, byte[] M, long[] minhash, byte[] buf) throws IOException {
+    if (h != HLLHash.MD5_ID || packed || compressed) {
+      out.writeByte(EXTENDED);
+      out.writeByte(h);
+      out.writeByte((packed ? PACKED : 0) | (compressed ? COMPRESSED : 0));
+    }
+    // minhash is not maxed out, M is redundant so don't write it
+    // Use -p to signify no M
+    out.writeByte(s < k ? -p : p);
+    out.writeInt(k);
+    out.writeInt(s);
+    if (compressed) {
+      buf = grow(buf, Math.max(s >= k ? M.length : 0, maxEncodedHashes(s)));
+      if (s >= k) {
+        int n = encodeRuns(M, buf);
+        out.writeInt(n);
+        out.write(buf, 0, n);
+      }
+      int n = encodeHashes(minhash, s, buf);
+      out.writeInt(n);
+      out.write(buf, 0, n);
+      return buf;
+    }
+    int packedLength = s >= k && packed ? M.length / 4 * 3 : 0;
+    buf = grow(buf, Math.max(packedLength, 8 * s));
+    if (s >= k) {
+      if (packed) {
+        pack(M, buf);
+        out.write(buf, 0, packedLength);
+      } else {
+        out.write(M);
+      }
+    }
+    for(int i = 0; i < s; i++) {
+      putLong(buf, 8 * i, minhash[i]);
+    }
+    out.write(buf, 0, 8 * s);
+    return buf;
+  }
+
   /**
      Deserialize the fields of this <code>HLLWritable</code> 
      from the given {@link java.io.DataInput}.
      <p>
      Generally, this method should not be called on its own.
-     For efficiency, implementations should attempt to re-use
-     storage in the existing object where possible.
+     <p>
+     The HLL and MinHash structures of the previous record are
+     reused when they have the same size, unless the HLL structure
+     is shared with an <code>HLLCounter</code>, after
+     {@link #get()} or {@link #set(HLLCounter h)}. To merge many
+     records without allocating, see {@link HLLWritableAccumulator}.
      
      @param in the <code>DataInput</code> to read from
   */
   public void readFields(DataInput in) throws IOException {
     try {
       p = in.readByte(); 
+      h = HLLHash.MD5_ID;
+      packed = false;
+      compressed = false;
+      if (p == EXTENDED) {
+        h = in.readByte();
+        // Make sure we know about it
+        HLLHash.forId(h);
+        byte flags = in.readByte();
+        if ((flags & ~(PACKED | COMPRESSED)) != 0) {
+          throw new IOException("Unsupported HLLWritable flags " + flags);
+        }
+        packed = (flags & PACKED) != 0;
+        compressed = (flags & COMPRESSED) != 0;
+        p = in.readByte();
+      }
       k = in.readInt();
       s = in.readInt();
       if(k == 0) {
         s = 0;
       }
-      // If p is negative, M does not exist
-      if (p < 0) {
+      // If p is negative, M does not exist, and is only rebuilt
+      // from the MinHash structure when needed
+      boolean hasM = p >= 0;
+      if (!hasM) {
         p = (byte) -p;
-        int m = (int)Math.pow(2, p);
-        M = new byte[m];
-      } else {
-        int m = (int)Math.pow(2, p);
-        M = new byte[m];
-        for(int i = 0; i < m; i++) {
-          M[i] = in.readByte();
+      }
+      int m = 1 << p;
+      M = null;
+      if (hasM) {
+        if (ownM == null || ownM.length != m) {
+          ownM = new byte[m];
+        }
+        M = ownM;
+        if (compressed) {
+          int n = in.readInt();
+          byte[] b = buffer(n);
+          in.readFully(b, 0, n);
+          decodeRuns(b, 0, n, M);
+        } else if (packed) {
+          int n = m / 4 * 3;
+          byte[] b = buffer(n);
+          in.readFully(b, 0, n);
+          unpack(b, m, M);
+        } else {
+          in.readFully(M);
         }
       }
-      minhash = new long[s];
+      if (minhash == null || minhash.length != s) {
+        minhash = new long[s];
+      }
+      int n = compressed ? in.readInt() : 8 * s;
+      byte[] b = buffer(n);
+      in.readFully(b, 0, n);
+      if (compressed) {
+        decodeHashes(b, 0, n, minhash, s);
+      } else {
+        ByteBuffer.wrap(b, 0, n).asLongBuffer().get(minhash, 0, s);
+      }
 
-      for(int i = 0; i < s; i++) {
-        long x = in.readLong();
-        minhash[i] = x;
-        /**
-         * If p was negative, M is empty and we need to re-populate
-         * If p was positive and we read M, this won't change anything since it's just max
-         */
-        int idx = (int)(x >>> (64 - p));
-        long w = x << p;
-        M[idx] =  (byte)Math.max(M[idx], Long.numberOfLeadingZeros(w) + 1);
+      if (hasM) {
+        // This won't change anything since it's just max
+        raise(M, p, minhash, s);
       }
     } catch(Exception e) {
       throw new IOException(e);
     }
   }
 
+  /** Returns the scratch space, grown to at least <code>n</code> bytes. */
+  private byte[] buffer(int n) {
+    buf = grow(buf, n);
+    return buf;
+  }
+
+  /** Returns <code>b</code>, or a new array if it is shorter than <code>n</code>. */
+  private static byte[] grow(byte[] b, int n) {
+    return b != null && b.length >= n ? b : new byte[n];
+  }
+
+  /** Writes a <code>long</code> big-endian, as <code>DataOutput</code> does. */
+  private static void putLong(byte[] b, int i, long x) {
+    for(int j = 7; j >= 0; j--) {
+      b[i + j] = (byte)x;
+      x >>>= 8;
+    }
+  }
+
+  /**
+     Run-length encodes an HLL structure. Registers are written as
+     their value, except for runs of at least <code>MIN_RUN</code>
+     equal ones, which are written as their value with the high bit
+     set, followed by the length of the run as a varint. Encoded
+     structures are never longer than the original.
+
+     @param M the <code>byte[]</code> HLL structure
+     @param b the <code>byte[]</code> to write to, at least as long
+              as <code>M</code>
+
+     @return  the <code>int</code> number of bytes written
+  */
+  static int encodeRuns(byte[] M, byte[] b) {
+    int n = 0;
+    for(int i = 0; i < M.length;) {
+      int j = i + 1;
+      while(j < M.length && M[j] == M[i]) {
+        j++;
+      }
+      if(j - i >= MIN_RUN) {
+        b[n++] = (byte)(0x80 | M[i]);
+        n = writeVarint(j - i, b, n);
+      } else {
+        for(int r = i; r < j; r++) {
+          b[n++] = M[r];
+        }
+      }
+      i = j;
+    }
+    return n;
+  }
+
+  /**
+     Decodes an HLL structure encoded by
+     {@link #encodeRuns(byte[] M, byte[] b)}.
+
+     @param b   the <code>byte[]</code> holding the encoding
+     @param off the <code>int</code> offset of the encoding
+     @param len the <code>int</code> length of the encoding
+     @param M   the <code>byte[]</code> HLL structure to fill
+
+     @throws IOException if the encoding doesn't fill
+                         <code>M</code> exactly
+  */
+  static void decodeRuns(byte[] b, int off, int len, byte[] M) throws IOException {
+    int i = 0;
+    int[] pos = new int[] { off };
+    int end = off + len;
+    while(pos[0] < end) {
+      byte t = b[pos[0]++];
+      if((t & 0x80) == 0) {
+        if(i == M.length) {
+          throw new IOException("Run-length encoded HLL structure is too long.");
+        }
+        M[i++] = t;
+      } else {
+        long run = readVarint(b, pos, end);
+        if(run > M.length - i) {
+          throw new IOException("Run-length encoded HLL structure is too long.");
+        }
+        Arrays.fill(M, i, i + (int)run, (byte)(t & 0x7f));
+        i += (int)run;
+      }
+    }
+    if(i != M.length) {
+      throw new IOException("Run-length encoded HLL structure is too short.");
+    }
+  }
+
+  /**
+     Returns the greatest number of bytes
+     {@link #encodeHashes(long[] v, int s, byte[] b)} may write.
+
+     @param s the <code>int</code> number of hashes
+
+     @return  the <code>int</code> number of bytes
+  */
+  static int maxEncodedHashes(int s) {
+    return s == 0 ? 0 : 8 + 10 * (s - 1);
+  }
+
+  /**
+     Encodes sorted distinct hashes as the first one, followed by
+     the difference from each to the next as an unsigned varint.
+
+     @param v the <code>long[]</code> sorted hashes
+     @param s the <code>int</code> number of hashes in <code>v</code>
+     @param b the <code>byte[]</code> to write to, of length at least
+              {@link #maxEncodedHashes(int s)}
+
+     @return  the <code>int</code> number of bytes written
+  */
+  static int encodeHashes(long[] v, int s, byte[] b) {
+    if(s == 0) {
+      return 0;
+    }
+    putLong(b, 0, v[0]);
+    int n = 8;
+    for(int i = 1; i < s; i++) {
+      n = writeVarint(v[i] - v[i - 1], b, n);
+    }
+    return n;
+  }
+
+  /**
+     Decodes hashes encoded by
+     {@link #encodeHashes(long[] v, int s, byte[] b)}.
+
+     @param b   the <code>byte[]</code> holding the encoding
+     @param off the <code>int</code> offset of the encoding
+     @param len the <code>int</code> length of the encoding
+     @param v   the <code>long[]</code> to fill
+     @param s   the <code>int</code> number of hashes to decode
+
+     @throws IOException if the encoding doesn't hold exactly
+                         <code>s</code> hashes
+  */
+  static void decodeHashes(byte[] b, int off, int len, long[] v, int s) throws IOException {
+    int end = off + len;
+    if(s == 0) {
+      if(len != 0) {
+        throw new IOException("Encoded MinHash structure is too long.");
+      }
+      return;
+    }
+    if(len < 8) {
+      throw new IOException("Encoded MinHash structure is too short.");
+    }
+    v[0] = ByteBuffer.wrap(b, off, 8).getLong();
+    int[] pos = new int[] { off + 8 };
+    for(int i = 1; i < s; i++) {
+      v[i] = v[i - 1] + readVarint(b, pos, end);
+    }
+    if(pos[0] != end) {
+      throw new IOException("Encoded MinHash structure is too long.");
+    }
+  }
+
+  /**
+     Writes an unsigned varint, seven bits per byte with the high
+     bit set on all but the last.
+  */
+  private static int writeVarint(long x, byte[] b, int n) {
+    while((x & ~0x7fL) != 0) {
+      b[n++] = (byte)((x & 0x7f) | 0x80);
+      x >>>= 7;
+    }
+    b[n++] = (byte)x;
+    return n;
+  }
+
+  /**
+     Reads an unsigned varint from <code>b</code> at
+     <code>pos[0]</code>, and moves <code>pos[0]</code> past it.
+  */
+  static long readVarint(byte[] b, int[] pos, int end) throws IOException {
+    long x = 0;
+    for(int shift = 0; shift < 64; shift += 7) {
+      if(pos[0] >= end) {
+        throw new IOException("Truncated varint.");
+      }
+      byte t = b[pos[0]++];
+      x |= (long)(t & 0x7f) << shift;
+      if((t & 0x80) == 0) {
+        return x;
+      }
+    }
+    throw new IOException("Malformed varint.");
+  }
+
+  /**
+     Packs an HLL structure in 6 bits per register, four registers
+     to three bytes. Values are capped at the greatest rank of its
+     precision, see {@link Registers#cap(int v, int p)}, which fits.
+
+     @param M the <code>byte[]</code> HLL structure, of length a 
+              multiple of 4
+
+     @return  the packed <code>byte[]</code>
+  */
+  static byte[] pack(byte[] M) {
+    return pack(M, new byte[M.length / 4 * 3]);
+  }
+
+  /**
+     Packs an HLL structure like {@link #pack(byte[] M)}, into an
+     existing array.
+
+     @param M the <code>byte[]</code> HLL structure, of length a 
+              multiple of 4
+     @param b the <code>byte[]</code> to pack into, at least three
+              quarters as long as <code>M</code>
+
+     @return  <code>b</code>
+  */
+  static byte[] pack(byte[] M, byte[] b) {
+    int p = Integer.numberOfTrailingZeros(M.length);
+    for(int i = 0, j = 0; i < M.length; i += 4, j += 3) {
+      int w = (Registers.cap(M[i], p) << 18) | (Registers.cap(M[i + 1], p) << 12) | 
+        (Registers.cap(M[i + 2], p) << 6) | Registers.cap(M[i + 3], p);
+      b[j] = (byte)(w >>> 16);
+      b[j + 1] = (byte)(w >>> 8);
+      b[j + 2] = (byte)w;
+    }
+    return b;
+  }
+
+  /**
+     Unpacks an HLL structure packed by {@link #pack(byte[] M)}.
+
+     @param b the <code>byte[]</code> packed structure
+     @param m the <code>int</code> number of registers
+
+     @return  the <code>byte[]</code> HLL structure
+  */
+  static byte[] unpack(byte[] b, int m) {
+    return unpack(b, m, new byte[m]);
+  }
+
+  /**
+     Unpacks an HLL structure packed by {@link #pack(byte[] M)}
+     into an existing one, overwriting all its registers.
+
+     @param b the <code>byte[]</code> packed structure
+     @param m the <code>int</code> number of registers
+     @param M the <code>byte[]</code> HLL structure to unpack into
+
+     @return  <code>M</code>
+  */
+  static byte[] unpack(byte[] b, int m, byte[] M) {
+    for(int i = 0, j = 0; i < m; i += 4, j += 3) {
+      int w = ((b[j] & 0xff) << 16) | ((b[j + 1] & 0xff) << 8) | (b[j + 2] & 0xff);
+      M[i] = (byte)(w >>> 18);
+      M[i + 1] = (byte)((w >>> 12) & 0x3f);
+      M[i + 2] = (byte)((w >>> 6) & 0x3f);
+      M[i + 3] = (byte)(w & 0x3f);
+    }
+    return M;
+  }
+
+  /**
+     Compares this <code>HLLWritable</code> to another, by hash,
+     precisions, and MinHash size, then by the MinHash structures,
+     and last by the HLL structures when they are written. This is
+     consistent with {@link #equals(Object obj)}, and with the order
+     of serialized records given by {@link Comparator}, whatever
+     their format.
+
+     @param o the other <code>HLLWritable</code>
+
+     @return  the <code>int</code> result of the comparison
+  */
+  @Override
+  public int compareTo(HLLWritable o) {
+    int c = compareHeader(h, p, k, s, o.h, o.p, o.k, o.s);
+    for(int i = 0; c == 0 && i < s; i++) {
+      c = compare(minhash[i], o.minhash[i]);
+    }
+    if(c == 0 && s >= k) {
+      byte[] A = registers();
+      byte[] B = o.registers();
+      for(int i = 0; c == 0 && i < A.length; i++) {
+        c = A[i] - B[i];
+      }
+    }
+    return c;
+  }
+
+  private static int compareHeader(byte h1, byte p1, int k1, int s1, byte h2, byte p2, int k2, int s2) {
+    if(h1 != h2) {
+      return h1 - h2;
+    }
+    if(p1 != p2) {
+      return p1 - p2;
+    }
+    if(k1 != k2) {
+      return k1 < k2 ? -1 : 1;
+    }
+    if(s1 != s2) {
+      return s1 < s2 ? -1 : 1;
+    }
+    return 0;
+  }
+
+  private static int compare(long x, long y) {
+    return x < y ? -1 : (x == y ? 0 : 1);
+  }
+
+  /**
+     A raw comparator for serialized <code>HLLWritable</code>s,
+     which reads their structures in place. It orders records as
+     {@link HLLWritable#compareTo(HLLWritable o)} does, so that
+     records written packed, compressed or plain compare equal when
+     they hold the same structures.
+  */
+  public static class Comparator extends WritableComparator {
+
+    public Comparator() {
+      super(HLLWritable.class);
+    }
+
+    @Override
+    public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+      try {
+        HLLRecord x = new HLLRecord().parse(b1, s1, l1);
+        HLLRecord y = new HLLRecord().parse(b2, s2, l2);
+        int c = compareHeader(x.h, x.p, x.k, x.s, y.h, y.p, y.k, y.s);
+        for(int i = 0; c == 0 && i < x.s; i++) {
+          c = HLLWritable.compare(x.nextHash(), y.nextHash());
+        }
+        for(int i = 0; c == 0 && x.hasM && i < (1 << x.p); i++) {
+          c = x.nextRegister() - y.nextRegister();
+        }
+        return c;
+      } catch(IOException e) {
+        throw new IllegalArgumentException(e);
+      }
+    }
+  }
+
+  static {
+    WritableComparator.define(HLLWritable.class, new Comparator());
+  }
+
   /**
      Hashes this <code>HLLWritable</code> based on its
      internal structures.
@@ -288,11 +872,13 @@ public class HLLWritable implements Writable {
   public int hashCode() {
     final int prime = 31;
     int result = 1;
-    result = prime * result + Arrays.hashCode(M);
+    // Unless the MinHash structure is full, it determines M
+    result = prime * result + (s < k ? 0 : Arrays.hashCode(registers()));
     result = prime * result + k;
     result = prime * result + Arrays.hashCode(minhash);
     result = prime * result + p;
     result = prime * result + s;
+    result = prime * result + h;
     return result;
   }
 
@@ -304,7 +890,9 @@ public class HLLWritable implements Writable {
      the two are considered equivalent if all of their 
      fields are equivalent (that is, the two 
      <code>HLLCounters</code> likely saw the exact same
-     data).
+     data). HLL structures are only compared when the MinHash
+     structures are full, since they are otherwise rebuilt from 
+     them.
      
      @param obj the <code>Object</code> to compare to
      
@@ -322,9 +910,6 @@ public class HLLWritable implements Writable {
       return false;
     }
     HLLWritable other = (HLLWritable) obj;
-    if (!Arrays.equals(M, other.M)) {
-      return false;
-    }
     if (k != other.k) {
       return false;
     }
@@ -337,6 +922,13 @@ public class HLLWritable implements Writable {
     if (s != other.s) {
       return false;
     }
+    if (h != other.h) {
+      return false;
+    }
+    // Unless the MinHash structures are full, they determine M
+    if (s >= k && !Arrays.equals(registers(), other.registers())) {
+      return false;
+    }
     return true;
   }
 
@@ -345,12 +937,12 @@ public class HLLWritable implements Writable {
      <code>HLLWritable</code>.
      <p>
      The <code>String</code> encodes the <code>p</code>,
-     <code>k</code>, and <code>s</code> fields.
+     <code>k</code>, <code>s</code> and <code>h</code> fields.
 
      @return the <code>String</code> representation
   */
   @Override
   public String toString() {
-    return "HLLWritable [p=" + p + ", k=" + k + ", s=" + s + "]";
+    return "HLLWritable [p=" + p + ", k=" + k + ", s=" + s + ", h=" + h + "]";
   }
 }
@@ -0,0 +1,205 @@
+package com.adroll.cantor;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+   <code>HLLWritableAccumulator</code> unions any number of
+   {@link HLLWritable}s, or of their serialized records, in place,
+   for reducers that would otherwise chain
+   {@link HLLWritable#combine(HLLWritable other)} and get a new
+   <code>HLLWritable</code> for each value.
+   <p>
+   The union is kept in one HLL structure per precision and two
+   MinHash buffers, which are allocated as values need them and
+   kept when it is {@link #reset()}, so that after the first few
+   keys, accumulating allocates nothing. The result is the same as
+   combining the values in the order they were added, and is
+   written in the format of the first one.
+   <p>
+   An <code>HLLWritableAccumulator</code> should be reused, by one
+   thread at a time.
+*/
+public final class HLLWritableAccumulator {
+
+  private static final long[] NO_HASHES = new long[0];
+
+  private final HLLRecord record = new HLLRecord();
+  /** HLL structures to accumulate in, by precision */
+  private final byte[][] registers = new byte[HLLCounter.MAX_P + 1][];
+  /** MinHash structure of the union */
+  private long[] hashes = NO_HASHES;
+  /** Where the next MinHash structure of the union is merged */
+  private long[] spare = NO_HASHES;
+  /** Hashes of the last serialized record */
+  private long[] incoming = NO_HASHES;
+  /** Scratch space to encode the union in */
+  private byte[] buf;
+
+  private boolean empty = true;
+  private byte h;
+  private boolean packed;
+  private boolean compressed;
+  private byte p;
+  private int k;
+  private int s;
+
+  /**
+     Adds an <code>HLLWritable</code> to the union.
+
+     @param w the <code>HLLWritable</code> to add
+
+     @throws IllegalArgumentException if it was built with a
+                                      different hash than the
+                                      values already added
+  */
+  public void add(HLLWritable w) {
+    start(w.h, w.packed, w.compressed, w.p, w.k);
+    if(w.M == null) {
+      HLLWritable.raise(registers[p], p, w.minhash, w.s);
+    } else {
+      DenseRegisters.maxInto(w.M, registers[p]);
+    }
+    merge(w.minhash, w.s, w.k);
+  }
+
+  /**
+     Adds a serialized <code>HLLWritable</code> to the union,
+     reading it in place, in any of the formats it is written in.
+
+     @param b   the <code>byte[]</code> holding the record
+     @param off the <code>int</code> offset of the record
+     @param len the <code>int</code> length of the record
+
+     @throws IOException              if the record is malformed
+     @throws IllegalArgumentException if it was built with a
+                                      different hash than the
+                                      values already added
+  */
+  public void add(byte[] b, int off, int len) throws IOException {
+    HLLRecord r = record.parse(b, off, len);
+    start(r.h, r.packed, r.compressed, r.p, r.k);
+    if(incoming.length < r.s) {
+      incoming = new long[r.s];
+    }
+    for(int i = 0; i < r.s; i++) {
+      incoming[i] = r.nextHash();
+    }
+    HLLWritableMerger.raise(r, incoming, registers[p], p);
+    merge(incoming, r.s, r.k);
+  }
+
+  /**
+     Returns whether nothing was added since this
+     <code>HLLWritableAccumulator</code> was constructed or reset.
+
+     @return <code>true</code> if there is no union
+  */
+  public boolean isEmpty() {
+    return empty;
+  }
+
+  /**
+     Forgets the union, keeping the structures it was accumulated
+     in for the next one.
+  */
+  public void reset() {
+    empty = true;
+    s = 0;
+  }
+
+  /**
+     Returns a new <code>HLLWritable</code> that holds a copy of
+     the union.
+
+     @return the <code>HLLWritable</code> union
+
+     @throws IllegalStateException if nothing was added
+  */
+  public HLLWritable get() {
+    checkNotEmpty();
+    // Unless the MinHash structure is full, it holds the HLL structure
+    byte[] M = s < k ? null : Arrays.copyOf(registers[p], 1 << p);
+    HLLWritable w = new HLLWritable(p, k, s, M, Arrays.copyOf(hashes, s), h);
+    w.packed = packed;
+    w.compressed = compressed;
+    return w;
+  }
+
+  /**
+     Serializes the union, exactly as writing the
+     <code>HLLWritable</code> returned by {@link #get()} would,
+     without copying it.
+
+     @param out the <code>DataOutput</code> to write to
+
+     @throws IOException           if writing fails
+     @throws IllegalStateException if nothing was added
+  */
+  public void write(DataOutput out) throws IOException {
+    checkNotEmpty();
+    buf = HLLWritable.write(out, h, packed, compressed, p, k, s, registers[p], hashes, buf);
+  }
+
+  private void checkNotEmpty() {
+    if(empty) {
+      throw new IllegalStateException("Nothing was added to the HLLWritableAccumulator.");
+    }
+  }
+
+  /**
+     Takes the header of the first value, or checks the next one's
+     and lowers the precision of the union to its.
+  */
+  private void start(byte wh, boolean wpacked, boolean wcompressed, byte wp, int wk) {
+    if(empty) {
+      h = wh;
+      packed = wpacked;
+      compressed = wcompressed;
+      p = wp;
+      k = wk;
+      s = 0;
+      zeroed(p);
+      empty = false;
+      return;
+    }
+    if(h != wh) {
+      throw new IllegalArgumentException("Can't combine HLLWritables built with different hashes: " +
+                                         HLLHash.forId(h) + " and " + HLLHash.forId(wh) + ".");
+    }
+    if(wp < p) {
+      DenseRegisters.maxInto(registers[p], zeroed(wp));
+      p = wp;
+    }
+  }
+
+  /** Returns the HLL structure of precision <code>q</code>, zeroed. */
+  private byte[] zeroed(byte q) {
+    byte[] M = registers[q];
+    if(M == null) {
+      M = new byte[1 << q];
+      registers[q] = M;
+    } else {
+      Arrays.fill(M, (byte)0);
+    }
+    return M;
+  }
+
+  /** Merges a MinHash structure into the union's, with the lower precision. */
+  private void merge(long[] v, int vs, int wk) {
+    k = Math.min(k, wk);
+    if(k == 0) {
+      s = 0;
+      return;
+    }
+    int cap = (int)Math.min(k, (long)s + vs);
+    if(spare.length < cap) {
+      spare = new long[Math.max(cap, hashes.length)];
+    }
+    s = MinHash.merge(hashes, s, v, vs, spare, k);
+    long[] t = hashes;
+    hashes = spare;
+    spare = t;
+  }
+}
@@ -0,0 +1,127 @@
+package com.adroll.cantor;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+   <code>HLLWritableMerger</code> unions serialized
+   {@link HLLWritable} records straight from their bytes, for
+   combiners and reducers that would otherwise read each record,
+   combine it and write the result back out.
+   <p>
+   Records are read in place, in any of the formats
+   <code>HLLWritable</code> writes. The MinHash structures are
+   merged first, and the HLL structure of the union is only built
+   when it is written, that is when the union holds <code>k</code>
+   hashes. The arrays used to build it are kept for the next merge,
+   so an <code>HLLWritableMerger</code> should be reused, by one
+   thread at a time.
+*/
+public final class HLLWritableMerger {
+
+  private static final long[] NO_HASHES = new long[0];
+
+  private final HLLRecord x = new HLLRecord();
+  private final HLLRecord y = new HLLRecord();
+  /** HLL structures to build unions in, by precision */
+  private final byte[][] registers = new byte[HLLCounter.MAX_P + 1][];
+  private long[] xs = NO_HASHES;
+  private long[] ys = NO_HASHES;
+  private long[] merged = NO_HASHES;
+  /** Scratch space to encode the union in */
+  private byte[] buf;
+
+  /**
+     Writes the union of two serialized records, exactly as
+     reading both, combining them with
+     {@link HLLWritable#combine(HLLWritable other)} and writing the
+     result would. The union is written in the format of the first
+     record.
+
+     @param a    the <code>byte[]</code> holding the first record
+     @param aoff the <code>int</code> offset of the first record
+     @param alen the <code>int</code> length of the first record
+     @param b    the <code>byte[]</code> holding the second record
+     @param boff the <code>int</code> offset of the second record
+     @param blen the <code>int</code> length of the second record
+     @param out  the <code>DataOutput</code> to write the union to
+
+     @throws IOException              if a record is malformed, or
+                                      writing fails
+     @throws IllegalArgumentException if the two were built with
+                                      different hashes
+  */
+  public void merge(byte[] a, int aoff, int alen, byte[] b, int boff, int blen, DataOutput out) throws IOException {
+    x.parse(a, aoff, alen);
+    y.parse(b, boff, blen);
+    if(x.h != y.h) {
+      throw new IllegalArgumentException("Can't combine HLLWritables built with different hashes: " +
+                                         HLLHash.forId(x.h) + " and " + HLLHash.forId(y.h) + ".");
+    }
+    byte q = (byte)Math.min(x.p, y.p);
+    int newK = Math.min(x.k, y.k);
+    xs = hashes(x, xs);
+    ys = hashes(y, ys);
+    int newS = 0;
+    if(newK > 0) {
+      int cap = (int)Math.min(newK, (long)x.s + y.s);
+      if(merged.length < cap) {
+        merged = new long[cap];
+      }
+      newS = MinHash.merge(xs, x.s, ys, y.s, merged, newK);
+    }
+    byte[] M = null;
+    if(newS >= newK) {
+      M = registers[q];
+      if(M == null) {
+        M = new byte[1 << q];
+        registers[q] = M;
+      } else {
+        Arrays.fill(M, (byte)0);
+      }
+      raise(x, xs, M, q);
+      raise(y, ys, M, q);
+    }
+    buf = HLLWritable.write(out, x.h, x.packed, x.compressed, q, newK, newS, M, merged, buf);
+  }
+
+  /** Reads the hashes of a record into <code>v</code>, or a larger array. */
+  private static long[] hashes(HLLRecord r, long[] v) throws IOException {
+    if(v.length < r.s) {
+      v = new long[r.s];
+    }
+    for(int i = 0; i < r.s; i++) {
+      v[i] = r.nextHash();
+    }
+    return v;
+  }
+
+  /**
+     Raises an HLL structure of precision <code>q</code> with the
+     registers of a record, and with its hashes as reading it does.
+  */
+  static void raise(HLLRecord r, long[] v, byte[] M, byte q) throws IOException {
+    if(r.hasM) {
+      int m = 1 << r.p;
+      int d = r.p - q;
+      for(int j = 0; j < m; j++) {
+        int rank = r.nextRegister();
+        if(rank != 0) {
+          rank = Registers.foldRank(j, rank, d);
+          if(rank > M[j >>> d]) {
+            M[j >>> d] = (byte)rank;
+          }
+        }
+      }
+    }
+    for(int i = 0; i < r.s; i++) {
+      long x = v[i];
+      int idx = (int)(x >>> (64 - q));
+      int rank = Registers.rank(x, q);
+      if(rank > M[idx]) {
+        M[idx] = (byte)rank;
+      }
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package com.adroll.cantor;
+
+/**
+   Ertl's improved raw estimator. It replaces the sum over the
+   registers of the raw estimator with one that accounts for empty
+   and saturated registers, which makes it unbiased at low and high
+   cardinalities alike, without switching to LINEARCOUNTING.
+*/
+final class ImprovedEstimator extends HLLEstimator {
+
+  /** Limit of the HLL integral term as <code>m</code> grows */
+  private static final double ALPHA_INF = 0.5 / Math.log(2);
+
+  @Override
+  public double estimate(int[] hist, byte p) {
+    int m = 1 << p;
+    int q = 64 - p;
+    double z = m * tau(1.0 - (double)saturated(hist, p) / m);
+    for(int i = q; i >= 1; i--) {
+      z = 0.5 * (z + hist[i]);
+    }
+    z += m * sigma((double)hist[0] / m);
+    return ALPHA_INF * m * m / z;
+  }
+
+  /**
+     Returns x + sum over k &gt;= 1 of x^(2^k) 2^(k - 1), the
+     correction for empty registers.
+
+     @param x the <code>double</code> fraction of empty registers
+
+     @return  the <code>double</code> correction
+  */
+  static double sigma(double x) {
+    if(x == 1.0) {
+      return Double.POSITIVE_INFINITY;
+    }
+    double y = 1.0;
+    double z = x;
+    double old;
+    do {
+      x *= x;
+      old = z;
+      z += x * y;
+      y += y;
+    } while(z != old);
+    return z;
+  }
+
+  /**
+     Returns (1 - x - sum over k &gt;= 1 of (1 - x^(2^-k))^2
+     2^-k) / 3, the correction for saturated registers.
+
+     @param x the <code>double</code> fraction of registers that
+              are not saturated
+
+     @return  the <code>double</code> correction
+  */
+  static double tau(double x) {
+    if(x == 0.0 || x == 1.0) {
+      return 0.0;
+    }
+    double y = 1.0;
+    double z = 1.0 - x;
+    double old;
+    do {
+      x = Math.sqrt(x);
+      old = z;
+      y *= 0.5;
+      z -= (1.0 - x) * (1.0 - x) * y;
+    } while(z != old);
+    return z / 3.0;
+  }
+}
@@ -0,0 +1,71 @@
+package com.adroll.cantor;
+
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+   The first 64 bits of MD5, which is how <code>HLLCounter</code>
+   has always hashed its elements.
+   <p>
+   <code>MessageDigest</code> is not thread-safe, so each thread
+   keeps its own digest and output buffer.
+*/
+final class MD5Hash extends HLLHash {
+
+  private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+    @Override
+    protected MessageDigest initialValue() {
+      try {
+        return MessageDigest.getInstance("MD5");
+      } catch(NoSuchAlgorithmException e) {
+        throw new RuntimeException("Failed to instantiate hash algorithm.");
+      }
+    }
+  };
+
+  private static final ThreadLocal<byte[]> OUTPUT = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[16];
+    }
+  };
+
+  @Override
+  public byte getId() {
+    return MD5_ID;
+  }
+
+  @Override
+  public long hash(byte[] b, int off, int len) {
+    MessageDigest md = DIGEST.get();
+    byte[] d = OUTPUT.get();
+    md.update(b, off, len);
+    try {
+      md.digest(d, 0, d.length);
+    } catch(DigestException e) {
+      throw new RuntimeException("Failed to compute hash.", e);
+    }
+    return makelong(d);
+  }
+
+  /**
+     Returns the <code>long</code> that is the result
+     of a hash.
+     <p>
+     Only the first eight bytes of the digest are used. The
+     bytes are sign-extended before being summed, which is kept
+     as-is so that existing sketches stay compatible.
+
+     @param x the <code>byte[]</code> digest
+
+     @return  the <code>long</code> of this hash
+  */
+  static long makelong(byte[] x) {
+    long y = 0L;
+    for(int i = 0; i < 8; i++) {
+      y += ((long)x[i]) << (8*i);
+    }
+    return y;
+  }
+}
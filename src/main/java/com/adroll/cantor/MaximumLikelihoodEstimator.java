@@ -0,0 +1,80 @@
+package com.adroll.cantor;
+
+/**
+   Ertl's maximum-likelihood estimator. Under a Poisson model of the
+   number of elements per register, it finds the cardinality that
+   makes the histogram of the registers most likely. It is the most
+   accurate of the estimators, at the cost of a few iterations of
+   Newton's method.
+*/
+final class MaximumLikelihoodEstimator extends HLLEstimator {
+
+  /** Relative precision at which iterations stop */
+  private static final double EPSILON = 1e-12;
+  /** Most iterations, which are never needed in practice */
+  private static final int MAX_ITERATIONS = 100;
+
+  @Override
+  public double estimate(int[] hist, byte p) {
+    int m = 1 << p;
+    int q = 64 - p;
+    int top = saturated(hist, p);
+    if(top == m) {
+      return Double.POSITIVE_INFINITY;
+    }
+    // The load x of each register solves g(x) = a, where g sums
+    // c 2^-k / (e^(x 2^-k) - 1) over registers of value k, which
+    // count as q when saturated.
+    double a = hist[0];
+    double b = 0.0;
+    int n = top;
+    for(int i = 1; i <= q; i++) {
+      double w = hist[i] * Math.scalb(1.0, -i);
+      a += w;
+      b += w;
+      n += hist[i];
+    }
+    b += top * Math.scalb(1.0, -q);
+    if(n == 0) {
+      return 0.0;
+    }
+    // As 1 / y - 1 / 2 <= 1 / (e^y - 1) <= 1 / y, x lies between these
+    double lo = n / (a + b);
+    double hi = n / a;
+    double x = hi;
+    for(int it = 0; it < MAX_ITERATIONS; it++) {
+      double g = 0.0;
+      double dg = 0.0;
+      for(int i = 1; i <= q + 1; i++) {
+        int c = i <= q ? hist[i] : top;
+        if(c == 0) {
+          continue;
+        }
+        double s = Math.scalb(1.0, -Math.min(i, q));
+        double y = x * s;
+        if(y > 700.0) {
+          continue;
+        }
+        double t = Math.expm1(y);
+        g += c * s / t;
+        dg -= c * s * s * (t + 1.0) / (t * t);
+      }
+      double f = g - a;
+      if(f > 0) {
+        lo = x;
+      } else {
+        hi = x;
+      }
+      double next = x - f / dg;
+      if(!(next > lo && next < hi)) {
+        next = 0.5 * (lo + hi);
+      }
+      if(Math.abs(next - x) <= EPSILON * x) {
+        x = next;
+        break;
+      }
+      x = next;
+    }
+    return m * x;
+  }
+}
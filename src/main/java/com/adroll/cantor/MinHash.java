@@ -0,0 +1,352 @@
+package com.adroll.cantor;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.TreeSet;
+
+/**
+   <code>MinHash</code> is the bottom-<code>k</code> structure of an
+   intersectable {@link HLLCounter}: the <code>k</code> least
+   distinct hashes seen so far, kept in a sorted <code>long[]</code>.
+   <p>
+   Once <code>k</code> hashes have been kept, anything that isn't
+   smaller than the current greatest one is rejected with a single
+   comparison, which is what almost every insertion into a large
+   set does. The array grows up to <code>k</code> as needed, so small
+   sets stay small.
+   <p>
+   Hashes are ordered as signed <code>long</code>s, like the
+   <code>TreeSet&lt;Long&gt;</code> this replaces.
+*/
+final class MinHash implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Initial capacity of the hash array */
+  private static final int INITIAL_CAPACITY = 16;
+
+  /** maximum number of hashes to keep */
+  private int k;
+  /** number of hashes kept */
+  private int s;
+  /** sorted hashes, only the first <code>s</code> are valid */
+  private long[] v;
+
+  /**
+     Constructs an empty <code>MinHash</code>.
+
+     @param k the <code>int</code> number of least hashes to keep
+  */
+  MinHash(int k) {
+    this.k = k;
+    v = new long[Math.min(k, INITIAL_CAPACITY)];
+  }
+
+  /**
+     Constructs a <code>MinHash</code> from the first <code>s</code>
+     elements of a sorted array of distinct hashes, which is copied.
+
+     @param k the <code>int</code> number of least hashes to keep
+     @param x the <code>long[]</code> sorted hashes
+     @param s the <code>int</code> number of hashes in <code>x</code>
+              to use, at most <code>k</code>
+  */
+  MinHash(int k, long[] x, int s) {
+    if(s > k) {
+      throw new IllegalArgumentException("MinHash can't hold more than k = " + k + " elements.");
+    }
+    this.k = k;
+    this.s = s;
+    v = Arrays.copyOf(x, Math.max(s, Math.min(k, INITIAL_CAPACITY)));
+  }
+
+  /**
+     Constructs a <code>MinHash</code> from a set of hashes,
+     keeping at most the <code>k</code> least of them.
+
+     @param k  the <code>int</code> number of least hashes to keep
+     @param ts the <code>TreeSet&lt;Long&gt;</code> of hashes
+  */
+  MinHash(int k, TreeSet<Long> ts) {
+    this(k);
+    for(Long l : ts) {
+      if(s == k) {
+        break;
+      }
+      add(l);
+    }
+  }
+
+  /**
+     Offers a hash to this structure, which keeps it if it is one of
+     the <code>k</code> least distinct hashes seen so far.
+
+     @param x the <code>long</code> hash
+
+     @return  <code>true</code> if the structure changed
+  */
+  boolean offer(long x) {
+    if(s == k && x >= v[s - 1]) {
+      return false;
+    }
+    int i = Arrays.binarySearch(v, 0, s, x);
+    if(i >= 0) {
+      return false;
+    }
+    i = -i - 1;
+    if(s == k) {
+      System.arraycopy(v, i, v, i + 1, s - i - 1);
+    } else {
+      if(s == v.length) {
+        v = Arrays.copyOf(v, Math.min(k, 2 * s));
+      }
+      System.arraycopy(v, i, v, i + 1, s - i);
+      s++;
+    }
+    v[i] = x;
+    return true;
+  }
+
+  /**
+     Appends a hash greater than all the ones kept.
+
+     @param x the <code>long</code> hash
+  */
+  private void add(long x) {
+    if(s == v.length) {
+      v = Arrays.copyOf(v, Math.min(k, 2 * s));
+    }
+    v[s++] = x;
+  }
+
+  /**
+     Returns whether this structure holds the given hash.
+
+     @param x the <code>long</code> hash
+
+     @return  <code>true</code> if <code>x</code> is kept
+  */
+  boolean contains(long x) {
+    return Arrays.binarySearch(v, 0, s, x) >= 0;
+  }
+
+  /**
+     Merges another <code>MinHash</code> into this one, keeping the
+     <code>newK</code> least distinct hashes of both.
+
+     @param o    the other <code>MinHash</code>
+     @param newK the <code>int</code> new number of hashes to keep
+  */
+  void union(MinHash o, int newK) {
+    long[] r = new long[Math.min(newK, s + o.s)];
+    int n = merge(v, s, o.v, o.s, r, r.length);
+    k = newK;
+    s = n;
+    v = r;
+  }
+
+  /**
+     Merges other <code>MinHash</code>es into this one, keeping the
+     <code>newK</code> least distinct hashes of all of them. Merges
+     go back and forth between two buffers, whatever the number of
+     structures.
+
+     @param os   the other <code>MinHash[]</code>
+     @param newK the <code>int</code> new number of hashes to keep
+  */
+  void union(MinHash[] os, int newK) {
+    long n = s;
+    for(MinHash o : os) {
+      n += o.s;
+    }
+    int cap = (int)Math.min(newK, n);
+    long[] r = new long[cap];
+    long[] t = new long[cap];
+    int rs = Math.min(s, cap);
+    System.arraycopy(v, 0, r, 0, rs);
+    for(MinHash o : os) {
+      int ts = merge(r, rs, o.v, o.s, t, cap);
+      long[] x = r;
+      r = t;
+      t = x;
+      rs = ts;
+    }
+    k = newK;
+    s = rs;
+    v = r;
+  }
+
+  /**
+     Merges two sorted arrays of distinct hashes into
+     <code>r</code>, keeping at most <code>max</code> of the least.
+
+     @param x   the <code>long[]</code> first sorted hashes
+     @param xs  the <code>int</code> number of hashes in <code>x</code>
+     @param y   the <code>long[]</code> second sorted hashes
+     @param ys  the <code>int</code> number of hashes in <code>y</code>
+     @param r   the <code>long[]</code> to write to
+     @param max the <code>int</code> maximum number of hashes to write
+
+     @return    the <code>int</code> number of hashes written
+  */
+  static int merge(long[] x, int xs, long[] y, int ys, long[] r, int max) {
+    int i = 0, j = 0, n = 0;
+    while(i < xs && j < ys && n < max) {
+      long left = x[i];
+      long right = y[j];
+      if(left < right) {
+        r[n] = left;
+        i++;
+      } else if(left > right) {
+        r[n] = right;
+        j++;
+      } else {
+        r[n] = left;
+        i++;
+        j++;
+      }
+      n++;
+    }
+    while(i < xs && n < max) {
+      r[n++] = x[i++];
+    }
+    while(j < ys && n < max) {
+      r[n++] = y[j++];
+    }
+    return n;
+  }
+
+  /**
+     Counts how many of the <code>max</code> least distinct hashes
+     of the given structures are kept by all of them, in a single
+     n-way merge over their sorted arrays. Since the least hash
+     left at each step is the least of every structure's next one,
+     a structure keeps it exactly when its next hash is that one.
+
+     @param mhs the <code>MinHash[]</code> to intersect
+     @param max the <code>int</code> number of least distinct hashes
+                to look at
+
+     @return    the <code>int</code> number of those hashes kept by
+                every structure
+  */
+  static int common(MinHash[] mhs, int max) {
+    int n = mhs.length;
+    int[] c = new int[n];
+    int result = 0;
+    for(int i = 0; i < max; i++) {
+      long x = Long.MAX_VALUE;
+      boolean left = false;
+      for(int j = 0; j < n; j++) {
+        MinHash mh = mhs[j];
+        if(c[j] < mh.s && (!left || mh.v[c[j]] < x)) {
+          x = mh.v[c[j]];
+          left = true;
+        }
+      }
+      if(!left) {
+        break;
+      }
+      boolean all = true;
+      for(int j = 0; j < n; j++) {
+        MinHash mh = mhs[j];
+        if(c[j] < mh.s && mh.v[c[j]] == x) {
+          c[j]++;
+        } else {
+          all = false;
+        }
+      }
+      if(all) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  /**
+     Counts how many of the <code>max</code> least distinct hashes
+     of two structures are kept by both, like
+     {@link #common(MinHash[] mhs, int max)}.
+
+     @param a   the first <code>MinHash</code>
+     @param b   the second <code>MinHash</code>
+     @param max the <code>int</code> number of least distinct hashes
+                to look at
+
+     @return    the <code>int</code> number of those hashes kept by
+                both
+  */
+  static int common(MinHash a, MinHash b, int max) {
+    int i = 0, j = 0, n = 0, result = 0;
+    while(i < a.s && j < b.s && n < max) {
+      long left = a.v[i];
+      long right = b.v[j];
+      if(left < right) {
+        i++;
+      } else if(left > right) {
+        j++;
+      } else {
+        result++;
+        i++;
+        j++;
+      }
+      n++;
+    }
+    return result;
+  }
+
+  /** Removes all hashes. */
+  void clear() {
+    s = 0;
+  }
+
+  /**
+     Returns the number of hashes kept.
+
+     @return the <code>int</code> number of hashes
+  */
+  int size() {
+    return s;
+  }
+
+  /**
+     Returns the maximum number of hashes kept.
+
+     @return the <code>int</code> <code>k</code>
+  */
+  int getK() {
+    return k;
+  }
+
+  /**
+     Returns the sorted hashes. Only the first {@link #size()}
+     elements are valid, and the array must not be modified.
+
+     @return the <code>long[]</code> backing this structure
+  */
+  long[] values() {
+    return v;
+  }
+
+  /**
+     Returns a copy of the sorted hashes.
+
+     @return the <code>long[]</code> of length {@link #size()}
+  */
+  long[] toArray() {
+    return Arrays.copyOf(v, s);
+  }
+
+  /**
+     Returns the hashes as a <code>TreeSet&lt;Long&gt;</code>.
+
+     @return a new <code>TreeSet&lt;Long&gt;</code>
+  */
+  TreeSet<Long> toTreeSet() {
+    TreeSet<Long> ts = new TreeSet<Long>();
+    for(int i = 0; i < s; i++) {
+      ts.add(v[i]);
+    }
+    return ts;
+  }
+}
@@ -0,0 +1,295 @@
+package com.adroll.cantor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+   <code>MinHashIndex</code> finds, among many intersectable
+   {@link HLLCounter}s, the ones most similar to a query counter by
+   Jaccard index, without comparing the query to all of them.
+   <p>
+   It uses locality-sensitive hashing over the MinHash structures.
+   Hashes are split in <code>bands * rows</code> bins by their
+   value, and each bin is signed by the least hash of a counter that
+   falls in it. Since MinHash structures keep the least hashes of
+   their sets, the least one kept in a bin is the least of the whole
+   set in that bin, and two counters sign a bin alike with a
+   probability of their Jaccard index. Bins are grouped in
+   <code>bands</code> of <code>rows</code>, and counters that sign
+   all the bins of some band alike are candidates. Candidates are
+   then compared with the query through their MinHash structures,
+   like {@link HLLCounter#intersect(HLLCounter... hs)} does.
+   <p>
+   Counters should keep several times <code>bands * rows</code>
+   hashes, so that few of their bins are empty. Bands with an empty
+   bin are left out of the index. More rows per band make for fewer
+   and more similar candidates, and more bands for fewer misses.
+   <p>
+   Each counter's hashes are copied when added. To bound memory,
+   only the least <code>keep</code> of them can be kept.
+
+   @param <K> the type of the keys the counters are indexed by
+*/
+public class MinHashIndex<K> {
+
+  private final int bands;
+  private final int rows;
+  private final int keep;
+  private HLLHash hash;
+
+  private final List<K> keys = new ArrayList<K>();
+  private final List<MinHash> sketches = new ArrayList<MinHash>();
+  /** Counters with each signature, by band */
+  private final List<Map<Long, List<Integer>>> buckets;
+
+  /**
+     Constructs an empty <code>MinHashIndex</code> that keeps all
+     the hashes of the counters added to it.
+
+     @param bands the <code>int</code> number of bands
+     @param rows  the <code>int</code> number of bins per band
+  */
+  public MinHashIndex(int bands, int rows) {
+    this(bands, rows, Integer.MAX_VALUE);
+  }
+
+  /**
+     Constructs an empty <code>MinHashIndex</code>.
+
+     @param bands the <code>int</code> number of bands
+     @param rows  the <code>int</code> number of bins per band
+     @param keep  the <code>int</code> greatest number of hashes
+                  kept per counter, for comparisons with queries
+  */
+  public MinHashIndex(int bands, int rows, int keep) {
+    if(bands < 1 || rows < 1) {
+      throw new IllegalArgumentException("Bands and rows must be positive.");
+    }
+    if(keep < 1) {
+      throw new IllegalArgumentException("Must keep at least one hash per counter.");
+    }
+    this.bands = bands;
+    this.rows = rows;
+    this.keep = keep;
+    buckets = new ArrayList<Map<Long, List<Integer>>>(bands);
+    for(int b = 0; b < bands; b++) {
+      buckets.add(new HashMap<Long, List<Integer>>());
+    }
+  }
+
+  /**
+     Adds a counter to the index. Later changes to it are not seen.
+
+     @param key the <code>K</code> to return for this counter
+     @param h   the intersectable <code>HLLCounter</code>
+  */
+  public void add(K key, HLLCounter h) {
+    MinHash mh = check(h);
+    if(hash == null) {
+      hash = h.getHash();
+    }
+    int id = keys.size();
+    keys.add(key);
+    sketches.add(new MinHash(Math.min(keep, h.getK()), mh.values(), Math.min(keep, mh.size())));
+    long[] sig = sign(mh);
+    for(int b = 0; b < bands; b++) {
+      if(sig[2 * b] == 0) {
+        continue;
+      }
+      Long band = sig[2 * b + 1];
+      Map<Long, List<Integer>> bucket = buckets.get(b);
+      List<Integer> ids = bucket.get(band);
+      if(ids == null) {
+        ids = new ArrayList<Integer>(1);
+        bucket.put(band, ids);
+      }
+      ids.add(id);
+    }
+  }
+
+  /**
+     Returns the number of counters in the index.
+
+     @return the <code>int</code> number of counters
+  */
+  public int size() {
+    return keys.size();
+  }
+
+  /**
+     Returns the keys of the counters most similar to a query, by
+     decreasing Jaccard index. Only the candidates found through the
+     index are compared, so there may be fewer than <code>n</code>,
+     and similar counters are missed with a probability that
+     decreases with the number of bands.
+
+     @param q the intersectable <code>HLLCounter</code> to query
+     @param n the <code>int</code> greatest number of keys to return
+
+     @return  the <code>List&lt;K&gt;</code> of the keys of the most
+              similar counters
+  */
+  public List<K> query(HLLCounter q, int n) {
+    List<K> r = new ArrayList<K>();
+    for(Match<K> m : matches(q, n)) {
+      r.add(m.getKey());
+    }
+    return r;
+  }
+
+  /**
+     Returns the counters most similar to a query, with their
+     estimated Jaccard indices, like
+     {@link #query(HLLCounter q, int n)}.
+
+     @param q the intersectable <code>HLLCounter</code> to query
+     @param n the <code>int</code> greatest number of matches to
+              return
+
+     @return  the <code>List</code> of <code>Match</code>es, by
+              decreasing Jaccard index
+  */
+  public List<Match<K>> matches(HLLCounter q, int n) {
+    MinHash mh = check(q);
+    if(n < 1) {
+      return new ArrayList<Match<K>>();
+    }
+    long[] sig = sign(mh);
+    Set<Integer> seen = new HashSet<Integer>();
+    PriorityQueue<Match<K>> top = new PriorityQueue<Match<K>>(n + 1, BY_JACCARD);
+    for(int b = 0; b < bands; b++) {
+      if(sig[2 * b] == 0) {
+        continue;
+      }
+      List<Integer> ids = buckets.get(b).get(sig[2 * b + 1]);
+      if(ids == null) {
+        continue;
+      }
+      for(int id : ids) {
+        if(!seen.add(id)) {
+          continue;
+        }
+        MinHash o = sketches.get(id);
+        int mink = Math.min(Math.min(q.getK(), o.getK()), Math.max(mh.size(), o.size()));
+        int common = MinHash.common(mh, o, mink);
+        top.add(new Match<K>(keys.get(id), ((double)common)/((double)mink)));
+        if(top.size() > n) {
+          top.poll();
+        }
+      }
+    }
+    List<Match<K>> r = new ArrayList<Match<K>>(top);
+    Collections.sort(r, Collections.reverseOrder(BY_JACCARD));
+    return r;
+  }
+
+  private MinHash check(HLLCounter h) {
+    if(!h.isIntersectable()) {
+      throw new IllegalArgumentException("Can't index non-intersectable HLLCounters.");
+    }
+    // Set by add() only, queries on an empty index match nothing
+    if(hash != null && hash.getId() != h.getHash().getId()) {
+      throw new IllegalArgumentException("Can't mix HLLCounters built with different hashes: " +
+                                         hash + " and " + h.getHash() + ".");
+    }
+    return h.minHash();
+  }
+
+  /**
+     Returns the signature of each band, from the least hash of
+     each of its bins. Hashes are visited in increasing order, so
+     the first one of a bin is its least.
+
+     @return the <code>long[]</code> of a flag and a signature per
+             band, with a flag of 0 for bands with an empty bin
+  */
+  private long[] sign(MinHash mh) {
+    int bins = bands * rows;
+    long[] least = new long[bins];
+    boolean[] set = new boolean[bins];
+    long[] v = mh.values();
+    int filled = 0;
+    for(int i = 0; i < mh.size() && filled < bins; i++) {
+      int bin = (int)((v[i] & Long.MAX_VALUE) % bins);
+      if(!set[bin]) {
+        set[bin] = true;
+        least[bin] = v[i];
+        filled++;
+      }
+    }
+    long[] sig = new long[2 * bands];
+    for(int b = 0; b < bands; b++) {
+      long x = b;
+      sig[2 * b] = 1;
+      for(int j = b * rows; j < (b + 1) * rows; j++) {
+        if(!set[j]) {
+          sig[2 * b] = 0;
+          break;
+        }
+        x = mix(x * 31 + least[j]);
+      }
+      sig[2 * b + 1] = x;
+    }
+    return sig;
+  }
+
+  /** The finalizer of MurmurHash3 */
+  private static long mix(long x) {
+    x ^= x >>> 33;
+    x *= 0xff51afd7ed558ccdL;
+    x ^= x >>> 33;
+    x *= 0xc4ceb9fe1a85ec53L;
+    x ^= x >>> 33;
+    return x;
+  }
+
+  private static final Comparator<Match<?>> BY_JACCARD = new Comparator<Match<?>>() {
+      @Override
+      public int compare(Match<?> a, Match<?> b) {
+        return Double.compare(a.jaccard, b.jaccard);
+      }
+    };
+
+  /**
+     A counter found by a query, with its estimated Jaccard index
+     to the query.
+
+     @param <K> the type of the key
+  */
+  public static final class Match<K> {
+
+    private final K key;
+    private final double jaccard;
+
+    Match(K key, double jaccard) {
+      this.key = key;
+      this.jaccard = jaccard;
+    }
+
+    /**
+       Returns the key the counter was added with.
+
+       @return the <code>K</code> key
+    */
+    public K getKey() {
+      return key;
+    }
+
+    /**
+       Returns the estimated Jaccard index of the counter and the
+       query.
+
+       @return the <code>double</code> Jaccard index
+    */
+    public double getJaccard() {
+      return jaccard;
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package com.adroll.cantor;
+
+/**
+   The first 64 bits of the x64 variant of 128-bit MurmurHash3,
+   with a seed of 0.
+   <p>
+   The output matches the first eight bytes, read little-endian,
+   of the reference <code>MurmurHash3_x64_128</code>.
+*/
+final class Murmur3Hash extends HLLHash {
+
+  private static final long C1 = 0x87c37b91114253d5L;
+  private static final long C2 = 0x4cf5ad432745937fL;
+
+  @Override
+  public byte getId() {
+    return MURMUR3_128_ID;
+  }
+
+  @Override
+  @SuppressWarnings("fallthrough")
+  public long hash(byte[] b, int off, int len) {
+    long h1 = 0L;
+    long h2 = 0L;
+    int end = off + (len & ~15);
+    int i = off;
+    for(; i < end; i += 16) {
+      long k1 = getLong(b, i);
+      long k2 = getLong(b, i + 8);
+      h1 ^= mixK1(k1);
+      h1 = Long.rotateLeft(h1, 27);
+      h1 += h2;
+      h1 = h1 * 5 + 0x52dce729;
+      h2 ^= mixK2(k2);
+      h2 = Long.rotateLeft(h2, 31);
+      h2 += h1;
+      h2 = h2 * 5 + 0x38495ab5;
+    }
+    long k1 = 0L;
+    long k2 = 0L;
+    switch(len & 15) {
+    case 15: k2 ^= ((long)b[i + 14] & 0xff) << 48;
+    case 14: k2 ^= ((long)b[i + 13] & 0xff) << 40;
+    case 13: k2 ^= ((long)b[i + 12] & 0xff) << 32;
+    case 12: k2 ^= ((long)b[i + 11] & 0xff) << 24;
+    case 11: k2 ^= ((long)b[i + 10] & 0xff) << 16;
+    case 10: k2 ^= ((long)b[i + 9] & 0xff) << 8;
+    case 9:  k2 ^= ((long)b[i + 8] & 0xff);
+             h2 ^= mixK2(k2);
+    case 8:  k1 ^= ((long)b[i + 7] & 0xff) << 56;
+    case 7:  k1 ^= ((long)b[i + 6] & 0xff) << 48;
+    case 6:  k1 ^= ((long)b[i + 5] & 0xff) << 40;
+    case 5:  k1 ^= ((long)b[i + 4] & 0xff) << 32;
+    case 4:  k1 ^= ((long)b[i + 3] & 0xff) << 24;
+    case 3:  k1 ^= ((long)b[i + 2] & 0xff) << 16;
+    case 2:  k1 ^= ((long)b[i + 1] & 0xff) << 8;
+    case 1:  k1 ^= ((long)b[i] & 0xff);
+             h1 ^= mixK1(k1);
+    default: break;
+    }
+    h1 ^= len;
+    h2 ^= len;
+    h1 += h2;
+    h2 += h1;
+    h1 = fmix(h1);
+    h2 = fmix(h2);
+    h1 += h2;
+    return h1;
+  }
+
+  private static long mixK1(long k1) {
+    k1 *= C1;
+    k1 = Long.rotateLeft(k1, 31);
+    return k1 * C2;
+  }
+
+  private static long mixK2(long k2) {
+    k2 *= C2;
+    k2 = Long.rotateLeft(k2, 33);
+    return k2 * C1;
+  }
+
+  private static long fmix(long k) {
+    k ^= k >>> 33;
+    k *= 0xff51afd7ed558ccdL;
+    k ^= k >>> 33;
+    k *= 0xc4ceb9fe1a85ec53L;
+    k ^= k >>> 33;
+    return k;
+  }
+}
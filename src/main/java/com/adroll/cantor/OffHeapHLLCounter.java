@@ -0,0 +1,383 @@
+package com.adroll.cantor;
+
+import java.io.Closeable;
+import java.io.ObjectStreamException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+/**
+   <code>OffHeapHLLCounter</code> is an {@link HLLCounter} whose HLL
+   and MinHash structures live in a direct <code>ByteBuffer</code>,
+   outside of the Java heap.
+   <p>
+   Many resident high precision <code>HLLCounter</code>s are large,
+   long-lived arrays that the garbage collector has to promote and
+   scan. An <code>OffHeapHLLCounter</code> only keeps a small handle
+   on the heap. Its memory is released by {@link #close()}, or by the
+   garbage collector if it is never closed. A closed
+   <code>OffHeapHLLCounter</code> can't be used anymore.
+   <p>
+   The HLL structure is always dense, and keeps its memory when it
+   is folded. An <code>OffHeapHLLCounter</code> is serialized as an
+   <code>HLLCounter</code> holding a copy of its structures.
+*/
+public class OffHeapHLLCounter extends HLLCounter implements Closeable {
+
+  private static final long serialVersionUID = 1L;
+
+  /** the storage of both structures, <code>null</code> once closed */
+  private transient ByteBuffer storage;
+  /** whether closing releases <code>storage</code> */
+  private transient boolean owned;
+  /** HLL structure, at the start of <code>storage</code> */
+  private transient BufferRegisters R;
+  /** MinHash structure, after the HLL structure */
+  private transient BufferMinHash omh;
+
+  /**
+     Constructs a non-intersectable <code>OffHeapHLLCounter</code>
+     with precision <code>DEFAULT_P</code>.
+   */
+  public OffHeapHLLCounter() {
+    this(DEFAULT_P, false, 0, HLLHash.MD5);
+  }
+
+  /**
+     Constructs a non-intersectable <code>OffHeapHLLCounter</code>
+     with specified precision.
+
+     @param p the <code>byte</code> precision of the HLL structure,
+              <code>MIN_P &lt;= p &lt;= MAX_P</code>
+   */
+  public OffHeapHLLCounter(byte p) {
+    this(p, false, 0, HLLHash.MD5);
+  }
+
+  /**
+     Constructs an <code>OffHeapHLLCounter</code> with specified
+     precision and, if <code>intersectable</code> is
+     <code>true</code>, specified <code>k</code>.
+
+     @param p             the <code>byte</code> precision of the
+                          HLL structure, <code>MIN_P &lt;= p &lt;=
+                          MAX_P</code>
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structure
+   */
+  public OffHeapHLLCounter(byte p, boolean intersectable, int k) {
+    this(p, intersectable, k, HLLHash.MD5);
+  }
+
+  /**
+     Constructs an <code>OffHeapHLLCounter</code> with specified
+     precision and, if <code>intersectable</code> is
+     <code>true</code>, specified <code>k</code>, hashing its
+     elements with the given {@link HLLHash}.
+
+     @param p             the <code>byte</code> precision of the
+                          HLL structure, <code>MIN_P &lt;= p &lt;=
+                          MAX_P</code>
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structure
+     @param hash          the <code>HLLHash</code> used to hash
+                          inserted elements
+   */
+  public OffHeapHLLCounter(byte p, boolean intersectable, int k, HLLHash hash) {
+    this(p, intersectable, k, hash, null);
+  }
+
+  /**
+     Constructs an <code>OffHeapHLLCounter</code> over the given
+     zeroed storage, which it doesn't own, or over its own direct
+     storage if <code>storage</code> is <code>null</code>.
+
+     @param p             the <code>byte</code> precision of the
+                          HLL structure
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structure
+     @param hash          the <code>HLLHash</code> used to hash
+                          inserted elements
+     @param storage       the <code>ByteBuffer</code> with at least
+                          {@link #storageSize(byte, boolean, int)}
+                          bytes remaining, or <code>null</code>
+   */
+  OffHeapHLLCounter(byte p, boolean intersectable, int k, HLLHash hash, ByteBuffer storage) {
+    super(p, intersectable, k, null, hash);
+    owned = storage == null;
+    if(owned) {
+      storage = ByteBuffer.allocateDirect(storageSize(p, intersectable, k));
+    }
+    this.storage = storage;
+    ByteBuffer b = storage.duplicate();
+    R = new BufferRegisters(p, b);
+    if(intersectable) {
+      b.position(b.position() + (1 << p));
+      omh = new BufferMinHash(k, b);
+    }
+  }
+
+  /**
+     Returns the number of bytes of storage an
+     <code>OffHeapHLLCounter</code> needs.
+
+     @param p             the <code>byte</code> precision of the
+                          HLL structure
+     @param intersectable <code>boolean</code> whether the structure
+                          is intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structure
+
+     @return              the <code>int</code> number of bytes
+   */
+  static int storageSize(byte p, boolean intersectable, int k) {
+    return (1 << p) + (intersectable ? 8 * k : 0);
+  }
+
+  /**
+     Insert an already hashed element into the
+     <code>OffHeapHLLCounter</code> structure.
+
+     @param x the <code>long</code> hash of the element
+   */
+  @Override
+  public void putHash(long x) {
+    ensureOpen();
+    byte p = R.getP();
+    int idx = (int)(x >>> (64 - p));
+    putHash(x, idx, Registers.rank(x, p));
+  }
+
+  @Override
+  void putHash(long x, int idx, int v) {
+    ensureOpen();
+    if(omh != null) {
+      omh.offer(x);
+    }
+    R.setMax(idx, v);
+  }
+
+  /**
+     Returns the estimated number of unique insertions into
+     the <code>OffHeapHLLCounter</code> structure.
+
+     @param e the <code>HLLEstimator</code> to use
+
+     @return  the <code>long</code> estimated size of unique
+              insertions
+  */
+  @Override
+  public long size(HLLEstimator e) {
+    ensureOpen();
+    if(omh != null && omh.size() < omh.getK()) {
+      return omh.size();
+    }
+    int[] hist = new int[65];
+    R.histogram(hist);
+    return (long)Math.round(e.estimate(hist, R.getP()));
+  }
+
+  /**
+     Clears all data in the HLL and MinHash structures.
+  */
+  @Override
+  public void clear() {
+    ensureOpen();
+    R.clear();
+    if(omh != null) {
+      omh.clear();
+    }
+  }
+
+  /**
+     Performs a destructive union of this
+     <code>OffHeapHLLCounter</code> and the one passed in.
+     <p>
+     As with any <code>HLLCounter</code>, the precisions become the
+     smaller of the two, and the result is only intersectable if
+     both are.
+
+     @param h the <code>HLLCounter</code> to combine into this one
+   */
+  @Override
+  public void combine(HLLCounter h) {
+    ensureOpen();
+    checkHash(h);
+    R = R.foldInPlace(h.getP());
+    h.registers().maxInto(R);
+    if(omh != null) {
+      if(h.isIntersectable()) {
+        omh.union(h.minHash(), Math.min(omh.getK(), h.getK()));
+      } else {
+        omh = null;
+      }
+    }
+  }
+
+  /**
+     Reduces the precision from <code>p</code> to <code>q</code>,
+     within the same memory.
+
+     @param q the <code>byte</code> new precision
+  */
+  @Override
+  public void fold(byte q) {
+    ensureOpen();
+    R = R.foldInPlace(q);
+  }
+
+  /**
+     Returns a copy of the HLL structure.
+
+     @return a new <code>byte[]</code> of the HLL
+  */
+  @Override
+  public byte[] getByteArray() {
+    ensureOpen();
+    return R.toByteArray();
+  }
+
+  /**
+     Returns the precision of the HLL structure.
+
+     @return the <code>byte</code> precision of the HLL
+  */
+  @Override
+  public byte getP() {
+    ensureOpen();
+    return R.getP();
+  }
+
+  /**
+     Returns whether this structure is intersectable.
+
+     @return the <code>boolean</code> that indicates
+             whether this is intersectable
+  */
+  @Override
+  public boolean isIntersectable() {
+    ensureOpen();
+    return omh != null;
+  }
+
+  /**
+     Returns the precision of the MinHash structure.
+
+     @return the <code>int</code> precision of MinHash
+  */
+  @Override
+  public int getK() {
+    ensureOpen();
+    return omh == null ? 0 : omh.getK();
+  }
+
+  @Override
+  Registers registers() {
+    ensureOpen();
+    return R;
+  }
+
+  @Override
+  MinHash minHash() {
+    ensureOpen();
+    return omh == null ? null : omh.toMinHash();
+  }
+
+  /**
+     Returns a plain <code>HLLCounter</code> on the heap holding a
+     copy of this one's structures.
+
+     @return the new <code>HLLCounter</code>
+  */
+  public HLLCounter snapshot() {
+    MinHash mh = minHash();
+    if(mh == null) {
+      return new HLLCounter(getP(), false, 0, getByteArray(), (long[])null, 0, getHash());
+    }
+    return new HLLCounter(getP(), true, mh.getK(), getByteArray(), mh.values(), mh.size(), getHash());
+  }
+
+  /**
+     Releases the memory of this <code>OffHeapHLLCounter</code>.
+     It can't be used afterwards. Closing it again has no effect.
+  */
+  @Override
+  public void close() {
+    ByteBuffer b = storage;
+    storage = null;
+    R = null;
+    omh = null;
+    if(owned) {
+      free(b);
+    }
+  }
+
+  /**
+     Returns whether {@link #close()} was called.
+
+     @return <code>true</code> if this was closed
+  */
+  public boolean isClosed() {
+    return storage == null;
+  }
+
+  private void ensureOpen() {
+    if(storage == null) {
+      throw new IllegalStateException("OffHeapHLLCounter is closed.");
+    }
+  }
+
+  /**
+     Serializes this <code>OffHeapHLLCounter</code> as an
+     <code>HLLCounter</code> on the heap.
+
+     @return the <code>HLLCounter</code> to serialize instead
+  */
+  private Object writeReplace() throws ObjectStreamException {
+    return snapshot();
+  }
+
+  /**
+     Releases the memory of a direct buffer right away, rather than
+     when it is garbage collected. There is no public API for it, so
+     this tries the internal ones of the running JVM, and leaves it to
+     the garbage collector if neither is there.
+
+     @param b the direct <code>ByteBuffer</code> to release, which
+              must not be a slice or duplicate of another one
+  */
+  static void free(ByteBuffer b) {
+    if(b == null || !b.isDirect()) {
+      return;
+    }
+    try {
+      // Java 9 and later
+      Class<?> unsafe = Class.forName("sun.misc.Unsafe");
+      Method invokeCleaner = unsafe.getMethod("invokeCleaner", ByteBuffer.class);
+      Field f = unsafe.getDeclaredField("theUnsafe");
+      f.setAccessible(true);
+      invokeCleaner.invoke(f.get(null), b);
+      return;
+    } catch(NoSuchMethodException e) {
+      // Fall through to the Java 7 and 8 way
+    } catch(Exception e) {
+      return;
+    }
+    try {
+      Method cleaner = b.getClass().getMethod("cleaner");
+      cleaner.setAccessible(true);
+      Object c = cleaner.invoke(b);
+      if(c != null) {
+        c.getClass().getMethod("clean").invoke(c);
+      }
+    } catch(Exception e) {
+      // The garbage collector will release it
+    }
+  }
+}
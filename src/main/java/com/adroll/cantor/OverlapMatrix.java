@@ -0,0 +1,314 @@
+package com.adroll.cantor;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+   <code>OverlapMatrix</code> holds the estimated sizes of the
+   pairwise unions and intersections of a list of intersectable
+   {@link HLLCounter}s, computed in one batch.
+   <p>
+   Each counter's HLL and MinHash structures are read once, up front.
+   Every pair then costs one scan of its registers for the size of
+   the union and one merge of its sorted hashes for the fraction in
+   common, with no intermediate counters. The matrix is split in
+   square tiles that run on a <code>ForkJoinPool</code>. Estimates
+   are identical to those of
+   {@link HLLCounter#intersect(HLLEstimator e, HLLCounter... hs)}
+   on each pair.
+   <p>
+   The structures of all the counters are kept in memory as dense
+   HLL structures while computing, and the results take two
+   <code>double</code>s per pair.
+*/
+public final class OverlapMatrix {
+
+  /** Rows and columns of a tile */
+  private static final int TILE = 64;
+  /** Most counters in a matrix, so that pairs can be indexed by int */
+  private static final int MAX_COUNTERS = 65535;
+
+  private final int n;
+  /** Size of each counter */
+  private final long[] sizes;
+  /** Size of the union of each pair, upper triangle by row */
+  private final double[] unions;
+  /** Fraction of the union in the intersection of each pair */
+  private final double[] fractions;
+
+  private OverlapMatrix(int n) {
+    this.n = n;
+    sizes = new long[n];
+    unions = new double[index(n, n - 1, n - 1) + 1];
+    fractions = new double[unions.length];
+  }
+
+  /**
+     Computes the overlaps of the given <code>HLLCounter</code>s with
+     the HyperLogLog++ estimator.
+
+     @param pool the <code>ForkJoinPool</code> to run on
+     @param hs   the intersectable <code>HLLCounter...</code>, all
+                 built with the same hash
+
+     @return     the <code>OverlapMatrix</code> of the counters
+  */
+  public static OverlapMatrix compute(ForkJoinPool pool, HLLCounter ... hs) {
+    return compute(pool, HLLEstimator.HLL_PLUS_PLUS, hs);
+  }
+
+  /**
+     Computes the overlaps of the given <code>HLLCounter</code>s.
+
+     @param pool the <code>ForkJoinPool</code> to run on
+     @param e    the <code>HLLEstimator</code> to use
+     @param hs   the intersectable <code>HLLCounter...</code>, all
+                 built with the same hash
+
+     @return     the <code>OverlapMatrix</code> of the counters
+  */
+  public static OverlapMatrix compute(ForkJoinPool pool, HLLEstimator e, HLLCounter ... hs) {
+    if(hs.length == 0) {
+      throw new IllegalArgumentException("Can't compute the overlaps of no HLLCounters.");
+    }
+    if(hs.length > MAX_COUNTERS) {
+      throw new IllegalArgumentException("Can't compute the overlaps of more than " + MAX_COUNTERS + " HLLCounters.");
+    }
+    int n = hs.length;
+    byte[][] Ms = new byte[n][];
+    MinHash[] mhs = new MinHash[n];
+    int[] ks = new int[n];
+    boolean[] empty = new boolean[n];
+    OverlapMatrix om = new OverlapMatrix(n);
+    for(int i = 0; i < n; i++) {
+      HLLCounter h = hs[i];
+      hs[0].checkHash(h);
+      if(!h.isIntersectable()) {
+        throw new IllegalArgumentException("Can't compute the overlaps of non-intersectable HLLCounters.");
+      }
+      Ms[i] = h.registers().toByteArray();
+      mhs[i] = h.minHash();
+      ks[i] = h.getK();
+      om.sizes[i] = h.size(e);
+      empty[i] = om.sizes[i] == 0;
+    }
+    int t = (n + TILE - 1) / TILE;
+    int[] rows = new int[t * (t + 1) / 2];
+    int[] cols = new int[rows.length];
+    int c = 0;
+    for(int bi = 0; bi < t; bi++) {
+      for(int bj = bi; bj < t; bj++) {
+        rows[c] = bi;
+        cols[c] = bj;
+        c++;
+      }
+    }
+    pool.invoke(new Tiles(om, e, Ms, mhs, ks, empty, rows, cols, 0, c));
+    return om;
+  }
+
+  /**
+     Returns the number of counters.
+
+     @return the <code>int</code> number of rows and columns
+  */
+  public int count() {
+    return n;
+  }
+
+  /**
+     Returns the estimated size of a counter, as given by
+     {@link HLLCounter#size(HLLEstimator e)}.
+
+     @param i the <code>int</code> counter
+
+     @return  the <code>long</code> estimated size
+  */
+  public long size(int i) {
+    if(i < 0 || i >= n) {
+      throw new IllegalArgumentException("No counter " + i + " in " + n + ".");
+    }
+    return sizes[i];
+  }
+
+  /**
+     Returns the estimated size of the union of two counters.
+
+     @param i the <code>int</code> first counter
+     @param j the <code>int</code> second counter
+
+     @return  the <code>long</code> estimated size of the union
+  */
+  public long union(int i, int j) {
+    return (long)Math.round(unions[index(i, j)]);
+  }
+
+  /**
+     Returns the estimated size of the intersection of two
+     counters.
+
+     @param i the <code>int</code> first counter
+     @param j the <code>int</code> second counter
+
+     @return  the <code>long</code> estimated size of the
+              intersection
+  */
+  public long overlap(int i, int j) {
+    int x = index(i, j);
+    return (long)Math.round(fractions[x] * unions[x]);
+  }
+
+  /**
+     Returns the estimated Jaccard index of two counters, the size
+     of their intersection over that of their union.
+
+     @param i the <code>int</code> first counter
+     @param j the <code>int</code> second counter
+
+     @return  the <code>double</code> estimated Jaccard index
+  */
+  public double jaccard(int i, int j) {
+    return fractions[index(i, j)];
+  }
+
+  /**
+     Returns the estimated sizes of all pairwise intersections,
+     with the sizes of the counters on the diagonal.
+
+     @return the <code>long[][]</code> symmetric matrix
+  */
+  public long[][] overlaps() {
+    long[][] r = new long[n][n];
+    for(int i = 0; i < n; i++) {
+      r[i][i] = sizes[i];
+      for(int j = i + 1; j < n; j++) {
+        r[i][j] = r[j][i] = overlap(i, j);
+      }
+    }
+    return r;
+  }
+
+  /**
+     Returns the estimated Jaccard indices of all pairs.
+
+     @return the <code>double[][]</code> symmetric matrix
+  */
+  public double[][] jaccards() {
+    double[][] r = new double[n][n];
+    for(int i = 0; i < n; i++) {
+      for(int j = i; j < n; j++) {
+        r[i][j] = r[j][i] = jaccard(i, j);
+      }
+    }
+    return r;
+  }
+
+  private int index(int i, int j) {
+    if(i < 0 || j < 0 || i >= n || j >= n) {
+      throw new IllegalArgumentException("No counter " + Math.max(i, j) + " in " + n + ".");
+    }
+    return i <= j ? index(n, i, j) : index(n, j, i);
+  }
+
+  private static int index(int n, int i, int j) {
+    return (int)((long)i * n - (long)i * (i - 1) / 2 + (j - i));
+  }
+
+  /** Computes a run of tiles of the upper triangle. */
+  private static final class Tiles extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final OverlapMatrix om;
+    private final HLLEstimator e;
+    private final byte[][] Ms;
+    private final MinHash[] mhs;
+    private final int[] ks;
+    private final boolean[] empty;
+    private final int[] rows;
+    private final int[] cols;
+    private final int lo;
+    private final int hi;
+    private final int[] hist = new int[65];
+    /** Copies to fold into, by precision */
+    private final byte[][] scratch = new byte[HLLCounter.MAX_P + 1][];
+
+    Tiles(OverlapMatrix om, HLLEstimator e, byte[][] Ms, MinHash[] mhs, int[] ks,
+          boolean[] empty, int[] rows, int[] cols, int lo, int hi) {
+      this.om = om;
+      this.e = e;
+      this.Ms = Ms;
+      this.mhs = mhs;
+      this.ks = ks;
+      this.empty = empty;
+      this.rows = rows;
+      this.cols = cols;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected void compute() {
+      if(hi - lo > 1) {
+        int mid = (lo + hi) >>> 1;
+        invokeAll(new Tiles(om, e, Ms, mhs, ks, empty, rows, cols, lo, mid),
+                  new Tiles(om, e, Ms, mhs, ks, empty, rows, cols, mid, hi));
+        return;
+      }
+      int n = om.n;
+      int i0 = rows[lo] * TILE;
+      int j0 = cols[lo] * TILE;
+      for(int i = i0; i < Math.min(n, i0 + TILE); i++) {
+        for(int j = Math.max(i, j0); j < Math.min(n, j0 + TILE); j++) {
+          pair(i, j);
+        }
+      }
+    }
+
+    /**
+       Computes one pair. Registers of equal precision are counted
+       straight from both structures; otherwise the more precise
+       one is folded into a copy of the other.
+    */
+    private void pair(int i, int j) {
+      byte[] A = Ms[i];
+      byte[] B = Ms[j];
+      Arrays.fill(hist, 0);
+      int m;
+      if(A.length == B.length) {
+        m = A.length;
+        int q = Integer.numberOfTrailingZeros(m);
+        for(int r = 0; r < m; r++) {
+          hist[Registers.cap(A[r] > B[r] ? A[r] : B[r], q)]++;
+        }
+      } else {
+        if(A.length < B.length) {
+          byte[] x = A;
+          A = B;
+          B = x;
+        }
+        m = B.length;
+        int q = Integer.numberOfTrailingZeros(m);
+        if(scratch[q] == null) {
+          scratch[q] = new byte[m];
+        }
+        byte[] S = scratch[q];
+        System.arraycopy(B, 0, S, 0, m);
+        DenseRegisters.maxInto(A, S);
+        for(int r = 0; r < m; r++) {
+          hist[Registers.cap(S[r], q)]++;
+        }
+      }
+      int x = index(om.n, i, j);
+      om.unions[x] = e.estimate(hist, (byte)Integer.numberOfTrailingZeros(m));
+      if(empty[i] || empty[j]) {
+        return;
+      }
+      int mink = Math.min(Math.min(ks[i], ks[j]), Math.max(mhs[i].size(), mhs[j].size()));
+      if(mink > 0) {
+        om.fractions[x] = ((double)MinHash.common(mhs[i], mhs[j], mink))/((double)mink);
+      }
+    }
+  }
+}
@@ -0,0 +1,167 @@
+package com.adroll.cantor;
+
+import java.util.Arrays;
+
+/**
+   A dense HLL structure that packs its registers in 6 bits each,
+   ten to a <code>long</code>, instead of a byte each.
+   <p>
+   Keeping every register within a single word makes reads and
+   writes a shift and a mask, and lets unions take the maximum of
+   all ten registers of a word at once.
+   <p>
+   Ranks are at most <code>65 - p</code>, 61 at the lowest
+   precision, so they fit in 6 bits. Values stored are capped at
+   that, in case they come from structures written before ranks
+   were.
+*/
+final class PackedRegisters extends Registers {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Registers per word */
+  static final int PER_WORD = 10;
+
+  /** Registers 0, 2, 4, 6 and 8 of a word */
+  private static final long EVEN = 0x03F03F03F03F03FL;
+  /** The bit above each register of <code>EVEN</code> */
+  private static final long GUARD = 0x040040040040040L;
+
+  /** precision */
+  private final byte p;
+  /** packed HLL array, register <code>i</code> is at bit
+      <code>6 * (i % 10)</code> of word <code>i / 10</code> */
+  private final long[] W;
+
+  /**
+     Constructs empty registers.
+
+     @param p the <code>byte</code> precision
+  */
+  PackedRegisters(byte p) {
+    this.p = p;
+    W = new long[((1 << p) + PER_WORD - 1) / PER_WORD];
+  }
+
+  /**
+     Packs an HLL <code>byte[]</code>.
+
+     @param M the <code>byte[]</code> of length a power of 2
+  */
+  PackedRegisters(byte[] M) {
+    this((byte)(31 - Integer.numberOfLeadingZeros(M.length)));
+    for(int i = 0; i < M.length; i++) {
+      W[i / PER_WORD] |= (long)cap(M[i], p) << (6 * (i % PER_WORD));
+    }
+  }
+
+  private PackedRegisters(byte p, long[] W) {
+    this.p = p;
+    this.W = W;
+  }
+
+  @Override
+  byte getP() {
+    return p;
+  }
+
+  @Override
+  int get(int idx) {
+    return (int)(W[idx / PER_WORD] >>> (6 * (idx % PER_WORD))) & 0x3f;
+  }
+
+  @Override
+  int setMax(int idx, int v) {
+    v = cap(v, p);
+    int i = idx / PER_WORD;
+    int shift = 6 * (idx % PER_WORD);
+    int old = (int)(W[i] >>> shift) & 0x3f;
+    if(v > old) {
+      W[i] = (W[i] & ~(0x3fL << shift)) | ((long)v << shift);
+    }
+    return old;
+  }
+
+  @Override
+  byte[] toByteArray() {
+    byte[] M = new byte[1 << p];
+    for(int i = 0; i < W.length; i++) {
+      long w = W[i];
+      for(int j = i * PER_WORD; w != 0; j++) {
+        M[j] = (byte)(w & 0x3f);
+        w >>>= 6;
+      }
+    }
+    return M;
+  }
+
+  @Override
+  Registers fold(byte q) {
+    if(q >= p) {
+      return new PackedRegisters(p, Arrays.copyOf(W, W.length));
+    }
+    PackedRegisters R = new PackedRegisters(q);
+    maxInto(R);
+    return R;
+  }
+
+  @Override
+  void maxInto(Registers dest) {
+    int d = p - dest.getP();
+    if(d == 0 && dest instanceof PackedRegisters) {
+      long[] V = ((PackedRegisters)dest).W;
+      for(int i = 0; i < W.length; i++) {
+        if(W[i] != 0) {
+          V[i] = max(W[i], V[i]);
+        }
+      }
+      return;
+    }
+    for(int i = 0; i < W.length; i++) {
+      long w = W[i];
+      for(int j = i * PER_WORD; w != 0; j++) {
+        int v = (int)(w & 0x3f);
+        if(v != 0) {
+          dest.setMax(j >>> d, foldRank(j, v, d));
+        }
+        w >>>= 6;
+      }
+    }
+  }
+
+  @Override
+  void histogram(int[] hist) {
+    for(long w : W) {
+      if(w == 0) {
+        hist[0] += PER_WORD;
+        continue;
+      }
+      for(int j = 0; j < PER_WORD; j++) {
+        hist[(int)(w & 0x3f)]++;
+        w >>>= 6;
+      }
+    }
+    // The last word may be partly unused
+    hist[0] -= W.length * PER_WORD - (1 << p);
+  }
+
+  /**
+     Returns the register-wise maximum of two words.
+  */
+  static long max(long x, long y) {
+    return max5(x & EVEN, y & EVEN) | (max5((x >>> 6) & EVEN, (y >>> 6) & EVEN) << 6);
+  }
+
+  /**
+     Returns the register-wise maximum of two words that only have
+     the registers of <code>EVEN</code>. The subtraction sets the
+     guard bit of a register where <code>a</code> is the greater,
+     and the space between registers keeps it from borrowing from
+     its neighbours.
+  */
+  private static long max5(long a, long b) {
+    long ge = ((a | GUARD) - b) & GUARD;
+    long mask = (ge >>> 6) * 0x3f;
+    return (a & mask) | (b & ~mask);
+  }
+}
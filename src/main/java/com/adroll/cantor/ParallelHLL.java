@@ -0,0 +1,354 @@
+package com.adroll.cantor;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/**
+   <code>ParallelHLL</code> runs the unions and estimates of large
+   numbers of {@link HLLCounter}s or HLL structures on a
+   <code>ForkJoinPool</code>, to use every core for big merges.
+   <p>
+   Unions of <code>HLLCounter</code>s are tree reductions over the
+   list of counters: each task merges a run of them into its own
+   array, and the arrays are merged pairwise on the way back up.
+   Unions of raw HLL structures and register scans split the
+   register range instead. Either way, results are identical to
+   those of the sequential methods of <code>HLLCounter</code>.
+*/
+public final class ParallelHLL {
+
+  /** Fewest registers a task scans */
+  private static final int MIN_REGISTERS = 1 << 12;
+  /** Bytes of input a task reads, at least */
+  private static final int MIN_WORK = 1 << 16;
+
+  private ParallelHLL() {
+  }
+
+  /**
+     Returns a new <code>HLLCounter</code> that is the union of
+     the given ones, like {@link HLLCounter#union(HLLCounter... hs)}.
+
+     @param pool the <code>ForkJoinPool</code> to run on
+     @param hs   the <code>HLLCounter...</code> to union, at least
+                 one
+
+     @return     the <code>HLLCounter</code> of the union
+  */
+  public static HLLCounter union(ForkJoinPool pool, HLLCounter ... hs) {
+    if(hs.length == 0) {
+      throw new IllegalArgumentException("Can't union no HLLCounters.");
+    }
+    byte q = HLLCounter.MAX_P;
+    boolean intersectable = true;
+    boolean sparse = true;
+    int k = Integer.MAX_VALUE;
+    for(HLLCounter h : hs) {
+      hs[0].checkHash(h);
+      q = (byte)Math.min(q, h.getP());
+      sparse &= h.registers().isSparse();
+      if(h.isIntersectable()) {
+        k = Math.min(k, h.getK());
+      } else {
+        intersectable = false;
+      }
+    }
+    if(sparse) {
+      // Small enough that there is nothing to gain
+      return HLLCounter.union(hs);
+    }
+    byte[] M = unionInto(pool, new byte[1 << q], hs);
+    if(!intersectable) {
+      return new HLLCounter(q, false, 0, M, (long[])null, 0, hs[0].getHash());
+    }
+    MinHash[] mhs = new MinHash[hs.length];
+    for(int i = 0; i < hs.length; i++) {
+      mhs[i] = hs[i].minHash();
+    }
+    MinHash mh = pool.invoke(new MinHashUnion(mhs, 0, mhs.length, k, leaf(pool, hs.length)));
+    return new HLLCounter(q, true, k, M, mh.values(), mh.size(), hs[0].getHash());
+  }
+
+  /**
+     Raises an HLL structure with the union of the HLL structures
+     of the given <code>HLLCounter</code>s, like
+     {@link HLLCounter#unionInto(byte[] dest, HLLCounter... hs)}.
+
+     @param pool the <code>ForkJoinPool</code> to run on
+     @param dest the <code>byte[]</code> HLL structure to raise
+     @param hs   the <code>HLLCounter...</code> to union, each at
+                 least as precise as <code>dest</code>
+
+     @return     <code>dest</code>
+  */
+  public static byte[] unionInto(ForkJoinPool pool, byte[] dest, HLLCounter ... hs) {
+    HLLCounter.checkLength(dest);
+    for(HLLCounter h : hs) {
+      if((1 << h.getP()) < dest.length) {
+        throw new IllegalArgumentException("Can't union an HLL structure into a more precise one.");
+      }
+    }
+    if(hs.length > 0) {
+      pool.invoke(new CounterUnion(hs, 0, hs.length, leaf(pool, hs.length), dest));
+    }
+    return dest;
+  }
+
+  /**
+     Returns an estimate of the size of the intersection of the
+     given <code>HLLCounter</code>s, like
+     {@link HLLCounter#intersect(HLLEstimator e, HLLCounter... hs)}.
+     The union of their HLL structures is forked onto the pool,
+     while the calling thread merges their MinHash structures.
+
+     @param pool the <code>ForkJoinPool</code> to run on
+     @param e    the <code>HLLEstimator</code> to use
+     @param hs   the <code>HLLCounter...</code> to intersect
+
+     @return     the <code>long</code> estimated size of the
+                 intersection
+  */
+  public static long intersect(ForkJoinPool pool, HLLEstimator e, HLLCounter ... hs) {
+    if(!HLLCounter.checkIntersect(hs)) {
+      return 0;
+    }
+    byte q = HLLCounter.MAX_P;
+    for(HLLCounter h : hs) {
+      q = (byte)Math.min(q, h.getP());
+    }
+    byte[] M = new byte[1 << q];
+    ForkJoinTask<Void> union = pool.submit(new CounterUnion(hs, 0, hs.length, leaf(pool, hs.length), M));
+    double f = HLLCounter.commonFraction(hs);
+    union.join();
+    return (long)Math.round(f * estimate(pool, e, M));
+  }
+
+  /**
+     Returns an HLL structure that is the union of the given ones,
+     like {@link HLLCounter#union(byte[]... Ms)}.
+
+     @param pool the <code>ForkJoinPool</code> to run on
+     @param Ms   the <code>byte[]...</code> HLL structures to union,
+                 at least one
+
+     @return     the <code>byte[]</code> HLL structure of the union
+  */
+  public static byte[] union(ForkJoinPool pool, byte[] ... Ms) {
+    if(Ms.length == 0) {
+      throw new IllegalArgumentException("Can't union no HLL structures.");
+    }
+    int n = Integer.MAX_VALUE;
+    for(byte[] M : Ms) {
+      n = Math.min(n, M.length);
+    }
+    return unionInto(pool, new byte[n], Ms);
+  }
+
+  /**
+     Raises an HLL structure with the union of the given ones,
+     like {@link HLLCounter#unionInto(byte[] dest, byte[]... Ms)},
+     with each task raising a range of its registers.
+
+     @param pool the <code>ForkJoinPool</code> to run on
+     @param dest the <code>byte[]</code> HLL structure to raise
+     @param Ms   the <code>byte[]...</code> HLL structures to union,
+                 each at least as long as <code>dest</code>
+
+     @return     <code>dest</code>
+  */
+  public static byte[] unionInto(ForkJoinPool pool, byte[] dest, byte[] ... Ms) {
+    HLLCounter.checkLength(dest);
+    long total = 0;
+    for(byte[] M : Ms) {
+      HLLCounter.checkLength(M);
+      if(M.length < dest.length) {
+        throw new IllegalArgumentException("Can't union an HLL structure into a more precise one.");
+      }
+      total += M.length;
+    }
+    int grain = (int)Math.max(MIN_REGISTERS, MIN_WORK / Math.max(1L, total / dest.length));
+    pool.invoke(new ArrayUnion(Ms, dest, 0, dest.length, grain));
+    return dest;
+  }
+
+  /**
+     Counts the registers of an HLL structure by value, with each
+     task scanning a range of them.
+
+     @param pool the <code>ForkJoinPool</code> to run on
+     @param M    the <code>byte[]</code> HLL structure
+
+     @return     the <code>int[]</code> of length 65 of the number
+                 of registers holding each value
+  */
+  public static int[] histogram(ForkJoinPool pool, byte[] M) {
+    return pool.invoke(new Histogram(M, 0, M.length));
+  }
+
+  /**
+     Returns the estimated cardinality of an HLL structure, from a
+     parallel scan of its registers.
+
+     @param pool the <code>ForkJoinPool</code> to run on
+     @param e    the <code>HLLEstimator</code> to use
+     @param M    the <code>byte[]</code> HLL structure
+
+     @return     the <code>double</code> estimate of the cardinality
+  */
+  public static double estimate(ForkJoinPool pool, HLLEstimator e, byte[] M) {
+    return e.estimate(histogram(pool, M), (byte)Integer.numberOfTrailingZeros(M.length));
+  }
+
+  /**
+     Returns how many counters a tree reduction task merges by
+     itself, so that there are a few tasks per worker.
+  */
+  private static int leaf(ForkJoinPool pool, int n) {
+    return Math.max(1, n / (4 * pool.getParallelism()));
+  }
+
+  /** Merges a run of counters into <code>dest</code>. */
+  private static final class CounterUnion extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final HLLCounter[] hs;
+    private final int lo;
+    private final int hi;
+    private final int leaf;
+    private final byte[] dest;
+
+    CounterUnion(HLLCounter[] hs, int lo, int hi, int leaf, byte[] dest) {
+      this.hs = hs;
+      this.lo = lo;
+      this.hi = hi;
+      this.leaf = leaf;
+      this.dest = dest;
+    }
+
+    @Override
+    protected void compute() {
+      if(hi - lo <= leaf) {
+        DenseRegisters D = new DenseRegisters(dest);
+        for(int i = lo; i < hi; i++) {
+          hs[i].registers().maxInto(D);
+        }
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      CounterUnion right = new CounterUnion(hs, mid, hi, leaf, new byte[dest.length]);
+      right.fork();
+      new CounterUnion(hs, lo, mid, leaf, dest).compute();
+      right.join();
+      DenseRegisters.maxInto(right.dest, dest);
+    }
+  }
+
+  /** Merges a run of MinHash structures into a new one. */
+  private static final class MinHashUnion extends RecursiveTask<MinHash> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final MinHash[] mhs;
+    private final int lo;
+    private final int hi;
+    private final int k;
+    private final int leaf;
+
+    MinHashUnion(MinHash[] mhs, int lo, int hi, int k, int leaf) {
+      this.mhs = mhs;
+      this.lo = lo;
+      this.hi = hi;
+      this.k = k;
+      this.leaf = leaf;
+    }
+
+    @Override
+    protected MinHash compute() {
+      MinHash mh = new MinHash(k);
+      if(hi - lo <= leaf) {
+        MinHash[] run = new MinHash[hi - lo];
+        System.arraycopy(mhs, lo, run, 0, run.length);
+        mh.union(run, k);
+        return mh;
+      }
+      int mid = (lo + hi) >>> 1;
+      MinHashUnion right = new MinHashUnion(mhs, mid, hi, k, leaf);
+      right.fork();
+      MinHash left = new MinHashUnion(mhs, lo, mid, k, leaf).compute();
+      mh.union(new MinHash[] { left, right.join() }, k);
+      return mh;
+    }
+  }
+
+  /** Raises a range of registers of <code>dest</code>. */
+  private static final class ArrayUnion extends RecursiveAction {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[][] Ms;
+    private final byte[] dest;
+    private final int lo;
+    private final int hi;
+    private final int grain;
+
+    ArrayUnion(byte[][] Ms, byte[] dest, int lo, int hi, int grain) {
+      this.Ms = Ms;
+      this.dest = dest;
+      this.lo = lo;
+      this.hi = hi;
+      this.grain = grain;
+    }
+
+    @Override
+    protected void compute() {
+      if(hi - lo <= grain) {
+        for(byte[] M : Ms) {
+          DenseRegisters.maxInto(M, dest, lo, hi);
+        }
+        return;
+      }
+      int mid = (lo + hi) >>> 1;
+      invokeAll(new ArrayUnion(Ms, dest, lo, mid, grain), new ArrayUnion(Ms, dest, mid, hi, grain));
+    }
+  }
+
+  /** Counts a range of registers by value. */
+  private static final class Histogram extends RecursiveTask<int[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final byte[] M;
+    private final int lo;
+    private final int hi;
+
+    Histogram(byte[] M, int lo, int hi) {
+      this.M = M;
+      this.lo = lo;
+      this.hi = hi;
+    }
+
+    @Override
+    protected int[] compute() {
+      if(hi - lo <= MIN_WORK) {
+        int p = Integer.numberOfTrailingZeros(M.length);
+        int[] hist = new int[65];
+        for(int i = lo; i < hi; i++) {
+          hist[Registers.cap(M[i], p)]++;
+        }
+        return hist;
+      }
+      int mid = (lo + hi) >>> 1;
+      Histogram right = new Histogram(M, mid, hi);
+      right.fork();
+      int[] hist = new Histogram(M, lo, mid).compute();
+      int[] r = right.join();
+      for(int i = 0; i < hist.length; i++) {
+        hist[i] += r[i];
+      }
+      return hist;
+    }
+  }
+}
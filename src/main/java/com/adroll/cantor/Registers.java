@@ -0,0 +1,150 @@
+package com.adroll.cantor;
+
+import java.io.Serializable;
+
+/**
+   <code>Registers</code> is how an {@link HLLCounter} stores its HLL
+   structure: 2^<code>p</code> registers, each holding the greatest
+   rank seen for its index.
+   <p>
+   Implementations differ in how they lay the registers out, but all
+   of them can be raised, folded to a lower precision and merged
+   into one another.
+*/
+abstract class Registers implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  /**
+     Returns the precision of this structure.
+
+     @return the <code>byte</code> precision <code>p</code>
+  */
+  abstract byte getP();
+
+  /**
+     Returns the value of a register.
+
+     @param idx the <code>int</code> register, less than
+                2^<code>p</code>
+
+     @return    the <code>int</code> value of the register
+  */
+  abstract int get(int idx);
+
+  /**
+     Raises a register to <code>v</code>, if it is lower.
+
+     @param idx the <code>int</code> register, less than
+                2^<code>p</code>
+     @param v   the <code>int</code> new value, greater than 0
+
+     @return    the <code>int</code> previous value of the register
+  */
+  abstract int setMax(int idx, int v);
+
+  /**
+     Returns the registers as a new HLL <code>byte[]</code>.
+
+     @return the <code>byte[]</code> of length 2^<code>p</code>
+  */
+  abstract byte[] toByteArray();
+
+  /**
+     Returns a copy of these registers with reduced precision
+     <code>q</code>.
+
+     @param q the <code>byte</code> new precision, at most
+              <code>p</code>
+
+     @return  the folded <code>Registers</code>
+  */
+  abstract Registers fold(byte q);
+
+  /**
+     Raises the registers of <code>dest</code> with the values of
+     these, folded down to the precision of <code>dest</code>.
+
+     @param dest the <code>Registers</code> to raise, with a
+                 precision of at most <code>p</code>
+  */
+  abstract void maxInto(Registers dest);
+
+  /**
+     Counts the registers by value. Values written before ranks
+     were capped are counted as {@link #cap(int v, int p)} of them.
+
+     @param hist the <code>int[]</code> of length 65 to add the
+                 counts to, indexed by register value
+  */
+  abstract void histogram(int[] hist);
+
+  /**
+     Returns whether these registers are sparsely represented.
+
+     @return <code>true</code> for a sparse representation
+  */
+  boolean isSparse() {
+    return false;
+  }
+
+  /**
+     Returns the rank of a hash at precision <code>p</code>: the
+     position of the first set bit after the <code>p</code> bits
+     that pick its register. Hashes with none set get
+     <code>65 - p</code>, one past the last bit, so that registers
+     never go above 61 and always fit in 6 bits, at any precision
+     and once folded.
+
+     @param x the <code>long</code> hash
+     @param p the <code>int</code> precision
+
+     @return  the <code>int</code> rank, from 1 to
+              <code>65 - p</code>
+  */
+  static int rank(long x, int p) {
+    return cap(Long.numberOfLeadingZeros(x << p) + 1, p);
+  }
+
+  /**
+     Caps a register value at the greatest rank at precision
+     <code>p</code>, for structures that may have been written
+     before ranks were capped, with values of up to 65.
+
+     @param v the <code>int</code> register value
+     @param p the <code>int</code> precision
+
+     @return  the <code>int</code> value, at most <code>65 - p</code>
+  */
+  static int cap(int v, int p) {
+    return Math.min(v, 65 - p);
+  }
+
+  /**
+     Returns the value that register <code>j</code> at some
+     precision takes, once folded <code>d</code> levels down, to
+     register <code>j &gt;&gt;&gt; d</code>.
+     <p>
+     The <code>d</code> low bits of <code>j</code> become the
+     leading bits of the rest of the hash. If any is set, the
+     rank is given by the first one. Otherwise it grows by
+     <code>d</code>. This is equivalent to folding one level at
+     a time with {@link HLLCounter#safeFold(byte[] N, byte q)}.
+
+     @param j the <code>int</code> register at the higher precision
+     @param v the <code>int</code> value of the register
+     @param d the <code>int</code> number of levels to fold
+
+     @return  the <code>int</code> value at the lower precision
+  */
+  static int foldRank(int j, int v, int d) {
+    if(v == 0 || d == 0) {
+      return v;
+    }
+    int t = j & ((1 << d) - 1);
+    if(t == 0) {
+      return v + d;
+    }
+    return d - (32 - Integer.numberOfLeadingZeros(t)) + 1;
+  }
+}
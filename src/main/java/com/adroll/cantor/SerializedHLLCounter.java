@@ -0,0 +1,64 @@
+package com.adroll.cantor;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.ObjectStreamException;
+import java.nio.ByteBuffer;
+
+/**
+   <code>SerializedHLLCounter</code> is what an {@link HLLCounter}
+   is replaced with when written by
+   {@link java.io.ObjectOutputStream}: the length of its compact
+   form, see {@link HLLCounter#toByteBuffer()}, and the form
+   itself, rather than each of its fields and the classes of its
+   structures. It resolves back to an <code>HLLCounter</code> when
+   read.
+*/
+final class SerializedHLLCounter implements Externalizable {
+
+  private static final long serialVersionUID = 1L;
+
+  private HLLCounter h;
+
+  /**
+     Constructs an empty <code>SerializedHLLCounter</code>, for
+     deserialization.
+  */
+  public SerializedHLLCounter() {
+  }
+
+  SerializedHLLCounter(HLLCounter h) {
+    this.h = h;
+  }
+
+  @Override
+  public void writeExternal(ObjectOutput out) throws IOException {
+    ByteBuffer b = h.toByteBuffer();
+    out.writeInt(b.remaining());
+    out.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+  }
+
+  @Override
+  public void readExternal(ObjectInput in) throws IOException {
+    int n = in.readInt();
+    if(n < 0) {
+      throw new InvalidObjectException("Negative HLLCounter length " + n);
+    }
+    byte[] b = new byte[n];
+    in.readFully(b);
+    try {
+      h = HLLCounter.read(new HLLRecord().parse(b, 0, n));
+    } catch(IllegalArgumentException e) {
+      InvalidObjectException x = new InvalidObjectException(e.getMessage());
+      x.initCause(e);
+      throw x;
+    }
+  }
+
+  private Object readResolve() throws ObjectStreamException {
+    return h;
+  }
+}
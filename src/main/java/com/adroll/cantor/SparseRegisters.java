@@ -0,0 +1,203 @@
+package com.adroll.cantor;
+
+/**
+   The HLL++ sparse scheme: only registers that aren't 0 are kept,
+   as sorted <code>idx &lt;&lt; 7 | value</code> entries.
+   Values take 7 bits, so that the ranks of 65 that registers
+   written before ranks were capped may hold don't spill into the
+   index.
+   <p>
+   New entries go to a small sorted buffer, which is merged into
+   the main list once it is full, so that inserting doesn't shift
+   the whole list every time. Each register is in exactly one of
+   the two.
+   <p>
+   Unlike HLL++, the registers keep the precision of the
+   <code>HLLCounter</code>, so estimates are exactly those of the
+   dense structure. The <code>HLLCounter</code> promotes them to a
+   dense structure once they have grown past a fraction of its
+   size.
+*/
+final class SparseRegisters extends Registers {
+
+  private static final long serialVersionUID = 2L;
+
+  /** Smallest capacity of the buffer */
+  private static final int MIN_BUFFER = 16;
+
+  private static final int[] EMPTY = new int[0];
+
+  /** precision */
+  private final byte p;
+  /** sorted entries */
+  private int[] list;
+  /** number of entries in <code>list</code> */
+  private int n;
+  /** sorted entries not merged into <code>list</code> yet */
+  private int[] buf;
+  /** number of entries in <code>buf</code> */
+  private int b;
+
+  /**
+     Constructs empty registers.
+
+     @param p the <code>byte</code> precision
+  */
+  SparseRegisters(byte p) {
+    this.p = p;
+    list = EMPTY;
+    buf = new int[MIN_BUFFER];
+  }
+
+  @Override
+  byte getP() {
+    return p;
+  }
+
+  /**
+     Returns the number of registers that aren't 0.
+
+     @return the <code>int</code> number of entries
+  */
+  int size() {
+    return n + b;
+  }
+
+  @Override
+  int get(int idx) {
+    int i = find(list, n, idx);
+    if(i >= 0) {
+      return list[i] & 0x7f;
+    }
+    i = find(buf, b, idx);
+    return i >= 0 ? buf[i] & 0x7f : 0;
+  }
+
+  @Override
+  int setMax(int idx, int v) {
+    int i = find(list, n, idx);
+    if(i >= 0) {
+      return raise(list, i, v);
+    }
+    i = find(buf, b, idx);
+    if(i >= 0) {
+      return raise(buf, i, v);
+    }
+    i = -i - 1;
+    System.arraycopy(buf, i, buf, i + 1, b - i);
+    buf[i] = (idx << 7) | v;
+    b++;
+    if(b == buf.length) {
+      flush();
+    }
+    return 0;
+  }
+
+  private static int raise(int[] a, int i, int v) {
+    int old = a[i] & 0x7f;
+    if(v > old) {
+      a[i] = (a[i] & ~0x7f) | v;
+    }
+    return old;
+  }
+
+  /**
+     Binary search for the entry of register <code>idx</code>.
+
+     @return the <code>int</code> position of the entry if found,
+             <code>-(insertion point) - 1</code> otherwise
+  */
+  private static int find(int[] a, int len, int idx) {
+    int lo = 0;
+    int hi = len - 1;
+    while(lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int r = a[mid] >>> 7;
+      if(r < idx) {
+        lo = mid + 1;
+      } else if(r > idx) {
+        hi = mid - 1;
+      } else {
+        return mid;
+      }
+    }
+    return -(lo + 1);
+  }
+
+  /**
+     Merges the buffer into the main list, and resizes the buffer
+     to about the square root of the list, which balances the cost
+     of inserting into it against the cost of merging it.
+  */
+  private void flush() {
+    if(b == 0) {
+      return;
+    }
+    int[] r = new int[n + b];
+    int i = 0, j = 0, o = 0;
+    while(i < n && j < b) {
+      r[o++] = list[i] < buf[j] ? list[i++] : buf[j++];
+    }
+    while(i < n) {
+      r[o++] = list[i++];
+    }
+    while(j < b) {
+      r[o++] = buf[j++];
+    }
+    list = r;
+    n = o;
+    b = 0;
+    int size = Math.max(MIN_BUFFER, Integer.highestOneBit((int)Math.sqrt(n)) << 1);
+    if(size != buf.length) {
+      buf = new int[size];
+    }
+  }
+
+  @Override
+  byte[] toByteArray() {
+    byte[] M = new byte[1 << p];
+    for(int i = 0; i < n; i++) {
+      M[list[i] >>> 7] = (byte)(list[i] & 0x7f);
+    }
+    for(int i = 0; i < b; i++) {
+      M[buf[i] >>> 7] = (byte)(buf[i] & 0x7f);
+    }
+    return M;
+  }
+
+  @Override
+  Registers fold(byte q) {
+    SparseRegisters R = new SparseRegisters((byte)Math.min(p, q));
+    maxInto(R);
+    return R;
+  }
+
+  @Override
+  void maxInto(Registers dest) {
+    int d = p - dest.getP();
+    for(int i = 0; i < n; i++) {
+      int j = list[i] >>> 7;
+      dest.setMax(j >>> d, foldRank(j, list[i] & 0x7f, d));
+    }
+    for(int i = 0; i < b; i++) {
+      int j = buf[i] >>> 7;
+      dest.setMax(j >>> d, foldRank(j, buf[i] & 0x7f, d));
+    }
+  }
+
+  @Override
+  void histogram(int[] hist) {
+    hist[0] += (1 << p) - n - b;
+    for(int i = 0; i < n; i++) {
+      hist[cap(list[i] & 0x7f, p)]++;
+    }
+    for(int i = 0; i < b; i++) {
+      hist[cap(buf[i] & 0x7f, p)]++;
+    }
+  }
+
+  @Override
+  boolean isSparse() {
+    return true;
+  }
+}
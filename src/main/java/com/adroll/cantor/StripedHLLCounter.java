@@ -0,0 +1,451 @@
+package com.adroll.cantor;
+
+import java.io.ObjectStreamException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+   <code>StripedHLLCounter</code> is an {@link HLLCounter} for heavily
+   contended insertions from many threads.
+   <p>
+   Like <code>java.util.concurrent.atomic.LongAdder</code>, it spreads
+   insertions over stripes, each an ordinary <code>HLLCounter</code>
+   guarded by its own lock. Each thread sticks to a stripe until it
+   finds it busy, and then moves on to another one, so threads
+   rarely touch the same memory. Stripes are only allocated once they
+   are used.
+   <p>
+   The stripes are merged with {@link HLLCounter#combine(HLLCounter h)}
+   only when the whole structure is needed: {@link #size()},
+   {@link #getByteArray()}, {@link #getMinHash()}, serialization and
+   the like. The merged <code>HLLCounter</code> is kept until the next
+   insertion, so repeated reads are cheap. A
+   <code>StripedHLLCounter</code> is serialized as that merged
+   <code>HLLCounter</code>.
+*/
+public class StripedHLLCounter extends HLLCounter {
+
+  private static final long serialVersionUID = 1L;
+
+  /** Number of busy stripes a thread tries before waiting on one */
+  private static final int MAX_PROBES = 4;
+
+  /** Each thread's current stripe, before masking */
+  private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      int h = (int)Thread.currentThread().getId() * 0x9E3779B9;
+      return new int[] { h ^ (h >>> 16) };
+    }
+  };
+
+  /** the stripes, allocated on first use */
+  private final HLLCounter[] stripes;
+  /** one lock per stripe */
+  private final ReentrantLock[] locks;
+  /** current HLL precision */
+  private volatile byte sp;
+  /** current MinHash precision */
+  private volatile int sk;
+  /** whether the stripes keep MinHash structures */
+  private volatile boolean si;
+  /** whether anything changed since <code>merged</code> was built */
+  private volatile boolean dirty;
+  /** the last union of all stripes */
+  private HLLCounter merged;
+
+  /**
+     Constructs a non-intersectable <code>StripedHLLCounter</code>
+     with precision <code>DEFAULT_P</code>, and as many stripes
+     as there are processors.
+   */
+  public StripedHLLCounter() {
+    this(DEFAULT_P, false, 0, HLLHash.MD5);
+  }
+
+  /**
+     Constructs a non-intersectable <code>StripedHLLCounter</code>
+     with specified precision, and as many stripes as there are
+     processors.
+
+     @param p the <code>byte</code> precision of the HLL structure,
+              <code>MIN_P &lt;= p &lt;= MAX_P</code>
+   */
+  public StripedHLLCounter(byte p) {
+    this(p, false, 0, HLLHash.MD5);
+  }
+
+  /**
+     Constructs a <code>StripedHLLCounter</code> with
+     <code>DEFAULT_P</code> and, if <code>intersectable</code> is
+     <code>true</code>, <code>DEFAULT_K</code>, and as many stripes
+     as there are processors.
+
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+   */
+  public StripedHLLCounter(boolean intersectable) {
+    this(DEFAULT_P, intersectable, DEFAULT_K, HLLHash.MD5);
+  }
+
+  /**
+     Constructs a <code>StripedHLLCounter</code> with specified
+     precision and, if <code>intersectable</code> is
+     <code>true</code>, the same <code>k</code> as
+     {@link HLLCounter#HLLCounter(byte p, boolean intersectable)},
+     and as many stripes as there are processors.
+
+     @param p             the <code>byte</code> precision of the
+                          HLL structure, <code>MIN_P &lt;= p &lt;=
+                          MAX_P</code>
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+   */
+  public StripedHLLCounter(byte p, boolean intersectable) {
+    this(p, intersectable, (int)Math.max(Math.pow(2, p - 5), 128), HLLHash.MD5);
+  }
+
+  /**
+     Constructs a <code>StripedHLLCounter</code> with
+     <code>DEFAULT_P</code> and, if <code>intersectable</code> is
+     <code>true</code>, specified <code>k</code>, and as many
+     stripes as there are processors.
+
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structure
+   */
+  public StripedHLLCounter(boolean intersectable, int k) {
+    this(DEFAULT_P, intersectable, k, HLLHash.MD5);
+  }
+
+  /**
+     Constructs a <code>StripedHLLCounter</code> with specified
+     precision and, if <code>intersectable</code> is
+     <code>true</code>, specified <code>k</code>, and as many
+     stripes as there are processors.
+
+     @param p             the <code>byte</code> precision of the
+                          HLL structure, <code>MIN_P &lt;= p &lt;=
+                          MAX_P</code>
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structure
+   */
+  public StripedHLLCounter(byte p, boolean intersectable, int k) {
+    this(p, intersectable, k, HLLHash.MD5);
+  }
+
+  /**
+     Constructs a <code>StripedHLLCounter</code> with specified
+     precision and, if <code>intersectable</code> is
+     <code>true</code>, specified <code>k</code>, hashing its
+     elements with the given {@link HLLHash}, and as many stripes
+     as there are processors.
+
+     @param p             the <code>byte</code> precision of the
+                          HLL structure, <code>MIN_P &lt;= p &lt;=
+                          MAX_P</code>
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structure
+     @param hash          the <code>HLLHash</code> used to hash
+                          inserted elements
+   */
+  public StripedHLLCounter(byte p, boolean intersectable, int k, HLLHash hash) {
+    this(p, intersectable, k, hash, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+     Constructs a <code>StripedHLLCounter</code> with specified
+     precision and, if <code>intersectable</code> is
+     <code>true</code>, specified <code>k</code>, hashing its
+     elements with the given {@link HLLHash}, with at least the
+     given number of stripes.
+
+     @param p             the <code>byte</code> precision of the
+                          HLL structure, <code>MIN_P &lt;= p &lt;=
+                          MAX_P</code>
+     @param intersectable <code>boolean</code> to make the structure
+                          intersectable
+     @param k             the <code>int</code> precision of MinHash
+                          structure
+     @param hash          the <code>HLLHash</code> used to hash
+                          inserted elements
+     @param n             the <code>int</code> number of stripes,
+                          rounded up to a power of two
+   */
+  public StripedHLLCounter(byte p, boolean intersectable, int k, HLLHash hash, int n) {
+    super(p, intersectable, k, null, hash);
+    if(n < 1) {
+      throw new IllegalArgumentException("StripedHLLCounters need at least one stripe.");
+    }
+    n = Integer.highestOneBit((n << 1) - 1);
+    stripes = new HLLCounter[n];
+    locks = new ReentrantLock[n];
+    for(int i = 0; i < n; i++) {
+      locks[i] = new ReentrantLock();
+    }
+    sp = p;
+    si = intersectable;
+    sk = intersectable ? k : 0;
+  }
+
+  /**
+     Insert an already hashed element into one of the stripes.
+     This is safe to call from many threads at once, as are all
+     the <code>put</code> methods.
+
+     @param x the <code>long</code> hash of the element
+   */
+  @Override
+  public void putHash(long x) {
+    int[] probe = PROBE.get();
+    int mask = stripes.length - 1;
+    int i = probe[0] & mask;
+    for(int attempt = 1; !locks[i].tryLock(); attempt++) {
+      if(attempt == MAX_PROBES) {
+        locks[i].lock();
+        break;
+      }
+      // Busy, move this thread to another stripe
+      int h = probe[0];
+      h ^= h << 13;
+      h ^= h >>> 17;
+      h ^= h << 5;
+      probe[0] = h;
+      i = h & mask;
+    }
+    try {
+      HLLCounter s = stripes[i];
+      if(s == null) {
+        s = new HLLCounter(sp, si, sk, getHash());
+        stripes[i] = s;
+      }
+      s.putHash(x);
+    } finally {
+      locks[i].unlock();
+    }
+    if(!dirty) {
+      dirty = true;
+    }
+  }
+
+  /**
+     Stripes may be folded while this runs, so they rank the hash
+     themselves, under their lock.
+  */
+  @Override
+  void putHash(long x, int idx, int v) {
+    putHash(x);
+  }
+
+  /**
+     Returns the estimated number of unique insertions into all
+     the stripes. The estimate is made under the same lock as the
+     merge, since the merged counter counts its registers lazily.
+
+     @param e the <code>HLLEstimator</code> to use
+
+     @return  the <code>long</code> estimated size of unique
+              insertions
+  */
+  @Override
+  public synchronized long size(HLLEstimator e) {
+    return merged().size(e);
+  }
+
+  /**
+     Clears all data in the HLL and MinHash structures.
+  */
+  @Override
+  public void clear() {
+    lockAll();
+    try {
+      for(HLLCounter s : stripes) {
+        if(s != null) {
+          s.clear();
+        }
+      }
+      dirty = true;
+    } finally {
+      unlockAll();
+    }
+  }
+
+  /**
+     Performs a destructive union of this
+     <code>StripedHLLCounter</code> and the one passed in.
+     <p>
+     Insertions wait while the union is made.
+
+     @param h the <code>HLLCounter</code> to combine into this one
+   */
+  @Override
+  public void combine(HLLCounter h) {
+    checkHash(h);
+    if(h instanceof StripedHLLCounter) {
+      // Merging h takes its locks, which must not be taken under ours
+      h = ((StripedHLLCounter)h).snapshot();
+    }
+    lockAll();
+    try {
+      HLLCounter s = stripes[0];
+      if(s == null) {
+        s = new HLLCounter(sp, si, sk, getHash());
+        stripes[0] = s;
+      }
+      s.combine(h);
+      // Other stripes are folded when merged
+      sp = s.getP();
+      si = s.isIntersectable();
+      sk = si ? Math.min(sk, s.getK()) : 0;
+      dirty = true;
+    } finally {
+      unlockAll();
+    }
+  }
+
+  /**
+     Reduces the precision of all stripes from <code>p</code> to
+     <code>q</code>.
+     <p>
+     Insertions wait while the stripes are folded.
+
+     @param q the <code>byte</code> new precision
+  */
+  @Override
+  public void fold(byte q) {
+    lockAll();
+    try {
+      for(HLLCounter s : stripes) {
+        if(s != null && s.getP() > q) {
+          s.fold(q);
+        }
+      }
+      sp = (byte)Math.min(sp, q);
+      dirty = true;
+    } finally {
+      unlockAll();
+    }
+  }
+
+  /**
+     Returns the HLL structure of the union of all stripes.
+
+     @return a new <code>byte[]</code> of the HLL
+  */
+  @Override
+  public synchronized byte[] getByteArray() {
+    return merged().getByteArray().clone();
+  }
+
+  /**
+     Returns the precision of the HLL structure.
+
+     @return the <code>byte</code> precision of the HLL
+  */
+  @Override
+  public byte getP() {
+    return sp;
+  }
+
+  /**
+     Returns whether this structure is intersectable.
+
+     @return the <code>boolean</code> that indicates
+             whether this is intersectable
+  */
+  @Override
+  public boolean isIntersectable() {
+    return si;
+  }
+
+  /**
+     Returns the precision of the MinHash structure.
+
+     @return the <code>int</code> precision of MinHash
+  */
+  @Override
+  public int getK() {
+    return sk;
+  }
+
+  @Override
+  synchronized Registers registers() {
+    return merged().registers();
+  }
+
+  @Override
+  synchronized MinHash minHash() {
+    MinHash mh = merged().minHash();
+    return mh == null ? null : new MinHash(mh.getK(), mh.values(), mh.size());
+  }
+
+  /**
+     Returns a plain <code>HLLCounter</code> that is the union of
+     all stripes.
+
+     @return the new <code>HLLCounter</code>
+  */
+  public synchronized HLLCounter snapshot() {
+    HLLCounter m = merged();
+    MinHash mh = m.minHash();
+    if(mh == null) {
+      return new HLLCounter(m.getP(), false, 0, m.getByteArray().clone(), (long[])null, 0, getHash());
+    }
+    return new HLLCounter(m.getP(), true, mh.getK(), m.getByteArray().clone(), mh.values(), mh.size(), getHash());
+  }
+
+  /**
+     Serializes this <code>StripedHLLCounter</code> as the
+     <code>HLLCounter</code> union of its stripes.
+
+     @return the <code>HLLCounter</code> to serialize instead
+  */
+  private Object writeReplace() throws ObjectStreamException {
+    return snapshot();
+  }
+
+  /**
+     Returns the union of all stripes, merging them if anything
+     changed since the last time.
+     <p>
+     The result must not be modified.
+
+     @return the merged <code>HLLCounter</code>
+  */
+  private synchronized HLLCounter merged() {
+    if(merged == null || dirty) {
+      // Any insertion from now on will make the result dirty again
+      dirty = false;
+      HLLCounter r = new HLLCounter(sp, si, sk, getHash());
+      for(int i = 0; i < stripes.length; i++) {
+        locks[i].lock();
+        try {
+          if(stripes[i] != null) {
+            r.combine(stripes[i]);
+          }
+        } finally {
+          locks[i].unlock();
+        }
+      }
+      merged = r;
+    }
+    return merged;
+  }
+
+  private void lockAll() {
+    for(ReentrantLock l : locks) {
+      l.lock();
+    }
+  }
+
+  private void unlockAll() {
+    for(ReentrantLock l : locks) {
+      l.unlock();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+package com.adroll.cantor;
+
+/**
+   xxHash64, with a seed of 0.
+*/
+final class XXHash64 extends HLLHash {
+
+  private static final long P1 = 0x9E3779B185EBCA87L;
+  private static final long P2 = 0xC2B2AE3D27D4EB4FL;
+  private static final long P3 = 0x165667B19E3779F9L;
+  private static final long P4 = 0x85EBCA77C2B2AE63L;
+  private static final long P5 = 0x27D4EB2F165667C5L;
+
+  @Override
+  public byte getId() {
+    return XXHASH64_ID;
+  }
+
+  @Override
+  public long hash(byte[] b, int off, int len) {
+    int end = off + len;
+    int i = off;
+    long h;
+    if(len >= 32) {
+      long v1 = P1 + P2;
+      long v2 = P2;
+      long v3 = 0L;
+      long v4 = -P1;
+      int limit = end - 32;
+      do {
+        v1 = round(v1, getLong(b, i));
+        v2 = round(v2, getLong(b, i + 8));
+        v3 = round(v3, getLong(b, i + 16));
+        v4 = round(v4, getLong(b, i + 24));
+        i += 32;
+      } while(i <= limit);
+      h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7)
+        + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+      h = mergeRound(h, v1);
+      h = mergeRound(h, v2);
+      h = mergeRound(h, v3);
+      h = mergeRound(h, v4);
+    } else {
+      h = P5;
+    }
+    h += len;
+    for(; i + 8 <= end; i += 8) {
+      h ^= round(0L, getLong(b, i));
+      h = Long.rotateLeft(h, 27) * P1 + P4;
+    }
+    if(i + 4 <= end) {
+      h ^= getInt(b, i) * P1;
+      h = Long.rotateLeft(h, 23) * P2 + P3;
+      i += 4;
+    }
+    for(; i < end; i++) {
+      h ^= ((long)b[i] & 0xff) * P5;
+      h = Long.rotateLeft(h, 11) * P1;
+    }
+    h ^= h >>> 33;
+    h *= P2;
+    h ^= h >>> 29;
+    h *= P3;
+    h ^= h >>> 32;
+    return h;
+  }
+
+  private static long round(long acc, long input) {
+    acc += input * P2;
+    acc = Long.rotateLeft(acc, 31);
+    return acc * P1;
+  }
+
+  private static long mergeRound(long acc, long v) {
+    acc ^= round(0L, v);
+    return acc * P1 + P4;
+  }
+}
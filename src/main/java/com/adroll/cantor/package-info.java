@@ -7,8 +7,12 @@
    <p>
    It employs most of the HyperLogLog++ algorithm as seen in 
    <a href="http://research.google.com/pubs/pub40671.html">
-   this paper</a>, excluding the sparse scheme, and using
-   a simple linear interpolation instead of kNN. In addition, 
+   this paper</a>, using a simple linear interpolation instead 
+   of kNN. Ertl's improved and maximum-likelihood estimators,
+   which need no bias tables, can be used instead through
+   {@link com.adroll.cantor.HLLEstimator}. The sparse scheme
+   keeps the precision of the dense one, so it saves memory
+   for small sets without changing any estimate. In addition, 
    it can use MinHash structures to estimate cardinalities of 
    intersections of these sets, as described in 
    <a href="http://tech.adroll.com/blog/data/2013/07/10/hll-minhash.html">
@@ -0,0 +1,156 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.adroll.cantor.ConcurrentHLLCounter;
+import com.adroll.cantor.HLLCounter;
+
+public class TestConcurrentHLLCounter {
+
+  @Test
+  public void test_concurrent_puts() throws Exception {
+    final ConcurrentHLLCounter c = new ConcurrentHLLCounter((byte)14, true, 1024);
+    HLLCounter h = new HLLCounter((byte)14, true, 1024);
+    final int threads = 8;
+    final int n = 50000;
+    List<Thread> ts = new ArrayList<Thread>();
+    for(int t = 0; t < threads; t++) {
+      final int offset = t * n / 2;
+      ts.add(new Thread() {
+        @Override
+        public void run() {
+          // Threads overlap by half
+          for(int i = offset; i < offset + n; i++) {
+            c.put(String.valueOf(i));
+          }
+        }
+      });
+    }
+    for(Thread t : ts) {
+      t.start();
+    }
+    for(int i = 0; i < (threads + 1) * n / 2; i++) {
+      h.put(String.valueOf(i));
+    }
+    for(Thread t : ts) {
+      t.join();
+    }
+    assertArrayEquals(h.getByteArray(), c.getByteArray());
+    assertEquals(h.getMinHash(), c.getMinHash());
+    assertEquals(h.size(), c.size());
+    assertEquals(h.size(), c.snapshot().size());
+    assertEquals(HLLCounter.intersect(h, h), HLLCounter.intersect(c, h));
+  }
+
+  @Test
+  public void test_small() {
+    ConcurrentHLLCounter c = new ConcurrentHLLCounter((byte)10, true, 128);
+    c.put("a", "b", "c", "a");
+    assertEquals(3L, c.size());
+    c.clear();
+    assertEquals(0L, c.size());
+  }
+
+  @Test
+  public void test_combine() {
+    ConcurrentHLLCounter c = new ConcurrentHLLCounter((byte)10, true, 128);
+    HLLCounter h0 = new HLLCounter((byte)12, true, 256);
+    HLLCounter h1 = new HLLCounter((byte)10, true, 128);
+    for(int i = 0; i < 5000; i++) {
+      h0.put(String.valueOf(i));
+      h1.put(String.valueOf(i));
+    }
+    c.combine(h0);
+    assertArrayEquals(h1.getByteArray(), c.getByteArray());
+    assertEquals(h1.getMinHash(), c.getMinHash());
+    assertEquals(128, c.getK());
+    // The other way around is a plain combine
+    h0.combine(c);
+    assertEquals(h1.size(), h0.size());
+
+    // Less precise and non-intersectable counters are combined like plain ones
+    HLLCounter h2 = new HLLCounter((byte)8, false, 0);
+    h2.put("x", "y");
+    c.combine(h2);
+    h1.combine(h2);
+    assertEquals(8, c.getP());
+    assertFalse(c.isIntersectable());
+    assertEquals(0, c.getK());
+    assertArrayEquals(h1.getByteArray(), c.getByteArray());
+    assertEquals(h1.size(), c.size());
+    c.put("z");
+    h1.put("z");
+    assertArrayEquals(h1.getByteArray(), c.getByteArray());
+  }
+
+  @Test
+  public void test_fold() throws Exception {
+    final ConcurrentHLLCounter c = new ConcurrentHLLCounter((byte)14, true, 1024);
+    HLLCounter h = new HLLCounter((byte)14, true, 1024);
+    final int threads = 4;
+    final int n = 50000;
+    List<Thread> ts = new ArrayList<Thread>();
+    for(int t = 0; t < threads; t++) {
+      final int offset = t * n;
+      ts.add(new Thread() {
+        @Override
+        public void run() {
+          for(int i = offset; i < offset + n; i++) {
+            c.put(String.valueOf(i));
+          }
+        }
+      });
+    }
+    for(Thread t : ts) {
+      t.start();
+    }
+    // Fold while insertions go on
+    for(byte q = 13; q >= 10; q--) {
+      c.fold(q);
+    }
+    for(int i = 0; i < threads * n; i++) {
+      h.put(String.valueOf(i));
+    }
+    for(Thread t : ts) {
+      t.join();
+    }
+    h.fold((byte)10);
+    assertEquals(10, c.getP());
+    assertArrayEquals(h.getByteArray(), c.getByteArray());
+    assertEquals(h.getMinHash(), c.getMinHash());
+    assertEquals(h.size(), c.size());
+  }
+
+  @Test
+  public void test_constructors() {
+    HLLCounter[][] pairs = new HLLCounter[][] {
+      { new HLLCounter((byte)12), new ConcurrentHLLCounter((byte)12) },
+      { new HLLCounter(true), new ConcurrentHLLCounter(true) },
+      { new HLLCounter((byte)16, true), new ConcurrentHLLCounter((byte)16, true) },
+      { new HLLCounter(true, 512), new ConcurrentHLLCounter(true, 512) }
+    };
+    for(HLLCounter[] pair : pairs) {
+      assertEquals(pair[0].getP(), pair[1].getP());
+      assertEquals(pair[0].isIntersectable(), pair[1].isIntersectable());
+      assertEquals(pair[0].getK(), pair[1].getK());
+      assertEquals(pair[0].getHash(), pair[1].getHash());
+    }
+  }
+
+  @Test
+  public void test_rank_overflow() {
+    ConcurrentHLLCounter c = new ConcurrentHLLCounter((byte)4, false, 0);
+    for(long i = 0; i < 16; i++) {
+      c.putHash(i << 60);
+    }
+    c.putHash(0L);
+    c.putHash(1L << 63);
+    assertEquals(61, c.getByteArray()[8]);
+    assertTrue(c.size() > 0);
+  }
+}
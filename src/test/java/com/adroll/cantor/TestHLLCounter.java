@@ -1,11 +1,16 @@
 package com.adroll.cantor;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
 import java.util.Random;
 
 import static org.junit.Assert.*;
@@ -40,6 +45,121 @@ public class TestHLLCounter {
     assertTrue(f.delete());
   }
 
+  private static HLLCounter[] compactCounters() {
+    HLLCounter sparse = new HLLCounter((byte)16);
+    HLLCounter small = new HLLCounter((byte)16, true, 512, HLLHash.MURMUR3_128);
+    HLLCounter full = new HLLCounter((byte)12, true, 128, HLLHash.XXHASH64);
+    HLLCounter empty = new HLLCounter((byte)10, true, 64);
+    for(int i = 0; i < 300; i++) {
+      sparse.put(String.valueOf(i));
+      small.put(String.valueOf(i));
+    }
+    for(int i = 0; i < 20000; i++) {
+      full.put(String.valueOf(i));
+    }
+    return new HLLCounter[] { sparse, small, full, empty };
+  }
+
+  private static void assertSameCounter(HLLCounter expected, HLLCounter actual) {
+    assertEquals(HLLCounter.class, actual.getClass());
+    assertEquals(expected.getP(), actual.getP());
+    assertEquals(expected.getK(), actual.getK());
+    assertEquals(expected.isIntersectable(), actual.isIntersectable());
+    assertEquals(expected.getHash(), actual.getHash());
+    assertArrayEquals(expected.getByteArray(), actual.getByteArray());
+    assertArrayEquals(expected.getMinHashArray(), actual.getMinHashArray());
+    assertEquals(expected.size(), actual.size());
+  }
+
+  @Test
+  public void test_serialization_compact() throws Exception {
+    for(HLLCounter h : compactCounters()) {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ObjectOutputStream oos = new ObjectOutputStream(baos);
+      oos.writeObject(h);
+      oos.close();
+      ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+      HLLCounter d = (HLLCounter)ois.readObject();
+      assertSameCounter(h, d);
+      // Little more than the compact form and its class
+      assertTrue(baos.size() < h.toByteBuffer().remaining() + 200);
+      d.put("another");
+      assertTrue(d.size() >= h.size());
+    }
+  }
+
+  @Test
+  public void test_byte_buffer() throws Exception {
+    HLLCounter[] hs = compactCounters();
+    // A small sketch takes a few bytes per element
+    assertTrue(hs[1].toByteBuffer().remaining() < 300 * 9);
+    for(boolean direct : new boolean[] { false, true }) {
+      ByteBuffer buf = direct ? ByteBuffer.allocateDirect(1 << 16) : ByteBuffer.allocate(1 << 16);
+      buf.put((byte)7);
+      for(HLLCounter h : hs) {
+        buf.put(h.toByteBuffer());
+      }
+      buf.flip();
+      buf.get();
+      // Read from a slice, so that the array offset matters
+      ByteBuffer in = buf.slice();
+      for(HLLCounter h : hs) {
+        assertSameCounter(h, HLLCounter.fromByteBuffer(in));
+      }
+      assertEquals(0, in.remaining());
+    }
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void test_byte_buffer_truncated() {
+    ByteBuffer b = compactCounters()[2].toByteBuffer();
+    b.limit(b.limit() - 1);
+    HLLCounter.fromByteBuffer(b);
+  }
+
+  @Test
+  public void test_rank_overflow() throws Exception {
+    for(byte p = HLLCounter.MIN_P; p <= HLLCounter.MAX_P; p++) {
+      HLLCounter h = new HLLCounter(p);
+      // No bit set after the register's
+      h.putHash(0L);
+      h.putHash(1L << 63);
+      byte[] M = h.getByteArray();
+      assertEquals(65 - p, M[0]);
+      assertEquals(65 - p, M[1 << (p - 1)]);
+      assertEquals(2L, h.size());
+      for(long i = 0; i < 16; i++) {
+        h.putHash(i << 60);
+      }
+      assertTrue(h.size() > 0);
+      HLLWritable w = new HLLWritable(h);
+      w.setPacked(true);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      w.write(new DataOutputStream(baos));
+      HLLWritable r = new HLLWritable();
+      r.readFields(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+      assertArrayEquals(h.getByteArray(), r.get().getByteArray());
+    }
+  }
+
+  @Test
+  public void test_combine_many_different_hashes() {
+    HLLCounter h = new HLLCounter((byte)12, true, 512);
+    h.put("a", "b");
+    HLLCounter same = new HLLCounter((byte)12, false, 0);
+    HLLCounter other = new HLLCounter((byte)12, true, 256, HLLHash.MURMUR3_128);
+    try {
+      h.combine(same, other);
+      fail("Combined HLLCounters built with different hashes.");
+    } catch(IllegalArgumentException e) {
+      // Left as it was
+    }
+    assertTrue(h.isIntersectable());
+    assertEquals(512, h.getK());
+    assertEquals(2L, h.size());
+    assertEquals(2, h.getMinHashArray().length);
+  }
+
   @Test
   public void test_combination() throws Exception {
     HLLCounter h1 = new HLLCounter();
@@ -196,6 +316,190 @@ public class TestHLLCounter {
     
   }
 
+  @Test
+  public void test_put_overloads() throws Exception {
+    HLLCounter[] hs = new HLLCounter[6];
+    for(int i = 0; i < hs.length; i++) {
+      hs[i] = new HLLCounter((byte)12, true, 256);
+    }
+    byte[] buf = new byte[64];
+    ByteBuffer direct = ByteBuffer.allocateDirect(64);
+    for(int i = 0; i < 10000; i++) {
+      String s = "user-" + i;
+      byte[] b = s.getBytes("UTF-8");
+      System.arraycopy(b, 0, buf, 3, b.length);
+      direct.clear();
+      direct.put(b);
+      direct.flip();
+      hs[0].put(s);
+      hs[1].put(new StringBuilder(s));
+      hs[2].put(buf, 3, b.length);
+      hs[3].put(ByteBuffer.wrap(b));
+      hs[4].put(direct);
+      hs[5].putHash(HLLHash.MD5.hash(b));
+    }
+    for(int i = 1; i < hs.length; i++) {
+      assertArrayEquals(hs[0].getByteArray(), hs[i].getByteArray());
+      assertEquals(hs[0].getMinHash(), hs[i].getMinHash());
+      assertEquals(hs[0].size(), hs[i].size());
+    }
+  }
+
+  @Test
+  public void test_sparse() {
+    Random r = new Random(98765L);
+    HLLCounter h = new HLLCounter((byte)14);
+    assertTrue(h.registers().isSparse());
+    for(int n = 0; n < 1500; n++) {
+      h.put(String.valueOf(r.nextDouble()));
+      if(n % 100 == 0) {
+        byte[] M = h.getByteArray();
+        assertEquals(Math.round(HLLCounter.estimateSize(M, HLLCounter.getAlpha(M.length))), h.size());
+      }
+    }
+    assertTrue(h.registers().isSparse());
+    fillHLLCounter(h, r, 10000);
+    assertFalse(h.registers().isSparse());
+
+    // Values too large for 6 bits stay out of the index
+    SparseRegisters R = new SparseRegisters((byte)10);
+    assertEquals(0, R.setMax(512, 65));
+    assertEquals(65, R.get(512));
+    assertEquals(0, R.get(513));
+    R.setMax(513, 3);
+    assertEquals(65, R.toByteArray()[512]);
+    assertEquals(3, R.toByteArray()[513]);
+
+    // Folding and combining sparse registers match the dense results
+    r = new Random(4321L);
+    HLLCounter sparse = new HLLCounter((byte)16);
+    fillHLLCounter(sparse, r, 2000);
+    assertTrue(sparse.registers().isSparse());
+    byte[] folded = HLLCounter.safeFold(sparse.getByteArray(), (byte)10);
+    HLLCounter copy = new HLLCounter((byte)16, false, 0, sparse.getByteArray(), HLLHash.MD5);
+    sparse.fold((byte)10);
+    assertArrayEquals(folded, sparse.getByteArray());
+
+    HLLCounter dense = new HLLCounter((byte)12);
+    fillHLLCounter(dense, r, 100000);
+    byte[] union = HLLCounter.safeUnion(copy.getByteArray(), dense.getByteArray());
+    copy.combine(dense);
+    assertArrayEquals(union, copy.getByteArray());
+
+    HLLCounter other = new HLLCounter((byte)14);
+    fillHLLCounter(other, r, 500);
+    union = HLLCounter.safeUnion(dense.getByteArray(), other.getByteArray());
+    other.combine(dense);
+    assertArrayEquals(union, other.getByteArray());
+    assertEquals(12, other.getP());
+  }
+
+  @Test
+  public void test_fold_rank() {
+    byte p = 8;
+    for(int d = 0; d < p; d++) {
+      for(int j = 0; j < (1 << p); j++) {
+        for(int v = 0; v <= 64 - p + 1; v++) {
+          byte[] M = new byte[1 << p];
+          M[j] = (byte)v;
+          byte[] N = HLLCounter.safeFold(M, (byte)(p - d));
+          assertEquals(N[j >>> d], Registers.foldRank(j, v, d));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void test_tracked_size() {
+    Random r = new Random(24680L);
+    HLLCounter h = new HLLCounter((byte)12);
+    HLLCounter other = new HLLCounter((byte)14);
+    fillHLLCounter(other, r, 30000);
+    assertEquals(0L, h.size());
+    for(int n = 0; n < 20; n++) {
+      fillHLLCounter(h, r, 1000);
+      byte[] M = h.getByteArray();
+      assertEquals(Math.round(HLLCounter.estimateSize(M, HLLCounter.getAlpha(M.length))), h.size());
+    }
+    h.combine(other);
+    byte[] M = h.getByteArray();
+    assertEquals(Math.round(HLLCounter.estimateSize(M, HLLCounter.getAlpha(M.length))), h.size());
+    h.fold((byte)10);
+    M = h.getByteArray();
+    assertEquals(Math.round(HLLCounter.estimateSize(M, HLLCounter.getAlpha(M.length))), h.size());
+    fillHLLCounter(h, r, 5000);
+    M = h.getByteArray();
+    assertEquals(Math.round(HLLCounter.estimateSize(M, HLLCounter.getAlpha(M.length))), h.size());
+    h.clear();
+    assertEquals(0L, h.size());
+  }
+
+  @Test
+  public void test_kway_union() {
+    Random r = new Random(112358L);
+    HLLCounter[] hs = new HLLCounter[6];
+    byte[] ps = { 14, 12, 16, 10, 18, 12 };
+    int[] ns = { 100, 50000, 200, 20000, 3000, 10 };
+    for(int i = 0; i < hs.length; i++) {
+      hs[i] = new HLLCounter(ps[i], true, 256 << (i % 3));
+      fillHLLCounter(hs[i], r, ns[i]);
+    }
+    HLLCounter pairwise = new HLLCounter((byte)16, true, 1024);
+    fillHLLCounter(pairwise, r, 500);
+    HLLCounter kway = new HLLCounter((byte)16, true, 1024);
+    kway.combine(pairwise);
+    for(HLLCounter h : hs) {
+      pairwise.combine(h);
+    }
+    kway.combine(hs);
+    assertEquals(10, kway.getP());
+    assertEquals(256, kway.getK());
+    assertArrayEquals(pairwise.getByteArray(), kway.getByteArray());
+    assertEquals(pairwise.getMinHash(), kway.getMinHash());
+    assertEquals(pairwise.size(), kway.size());
+
+    HLLCounter seq = new HLLCounter(ps[0], true, 256);
+    for(HLLCounter h : hs) {
+      seq.combine(h);
+    }
+    HLLCounter u = HLLCounter.union(hs);
+    assertArrayEquals(seq.getByteArray(), u.getByteArray());
+    assertEquals(seq.getMinHash(), u.getMinHash());
+
+    // Raw arrays, folded on the fly
+    byte[][] Ms = new byte[hs.length][];
+    byte[] S = hs[0].getByteArray();
+    for(int i = 0; i < hs.length; i++) {
+      Ms[i] = hs[i].getByteArray();
+      S = HLLCounter.safeFold(S, (byte)Math.min(10, ps[i]));
+      byte[] T = HLLCounter.safeFold(Ms[i], (byte)10);
+      for(int j = 0; j < T.length; j++) {
+        S[j] = (byte)Math.max(S[j], T[j]);
+      }
+    }
+    byte[] before = Ms[1].clone();
+    assertArrayEquals(S, HLLCounter.union(Ms));
+    assertArrayEquals(before, Ms[1]);
+    assertArrayEquals(S, HLLCounter.unionInto(new byte[1 << 10], hs));
+    byte[] folded = HLLCounter.safeFold(S, (byte)6);
+    assertArrayEquals(folded, HLLCounter.unionInto(new byte[1 << 6], Ms));
+    try {
+      HLLCounter.unionInto(new byte[1 << 12], Ms);
+      fail("Can't union into a more precise structure.");
+    } catch(IllegalArgumentException e) {
+    }
+
+    // Sparse inputs stay sparse
+    HLLCounter s0 = new HLLCounter((byte)14);
+    HLLCounter s1 = new HLLCounter((byte)12);
+    s0.put("a", "b");
+    s1.put("c");
+    s0.combine(s1, new HLLCounter((byte)13));
+    assertTrue(s0.registers().isSparse());
+    assertFalse(s0.isIntersectable());
+    assertEquals(3L, s0.size());
+  }
+
   private void fillHLLCounter(HLLCounter h, Random r, int n) {
     for(int i = 0; i < n; i++) {
       h.put(String.valueOf(r.nextDouble()));
@@ -0,0 +1,100 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.HLLCounterArena;
+
+public class TestHLLCounterArena {
+
+  @Test
+  public void test_same_as_hllcounters() {
+    for(boolean direct : new boolean[] { false, true }) {
+      HLLCounterArena arena = new HLLCounterArena((byte)12, true, 256, HLLHash.MD5, 10, direct);
+      HLLCounter[] hs = new HLLCounter[10];
+      for(int i = 0; i < hs.length; i++) {
+        assertEquals(i, arena.allocate());
+        hs[i] = new HLLCounter((byte)12, true, 256);
+      }
+      for(int i = 0; i < 50000; i++) {
+        String s = String.valueOf(i);
+        // Slot j gets about 5000 * (j + 1) elements
+        int j = i % 10;
+        for(int id = j; id < 10; id++) {
+          arena.put(id, s);
+          hs[id].put(s);
+        }
+      }
+      long[] sizes = arena.sizes();
+      for(int id = 0; id < hs.length; id++) {
+        assertEquals(hs[id].size(), sizes[id]);
+        assertEquals(hs[id].size(), arena.size(id));
+        HLLCounter c = arena.get(id);
+        assertArrayEquals(hs[id].getByteArray(), c.getByteArray());
+        assertEquals(hs[id].getMinHash(), c.getMinHash());
+      }
+
+      HLLCounter u = new HLLCounter((byte)12, true, 256);
+      u.combine(hs[2], hs[5], hs[7]);
+      HLLCounter au = arena.union(2, 5, 7);
+      assertArrayEquals(u.getByteArray(), au.getByteArray());
+      assertEquals(u.getMinHash(), au.getMinHash());
+      assertEquals(HLLCounter.intersect(hs[1], hs[3]), HLLCounter.intersect(arena.get(1), arena.get(3)));
+
+      HLLCounter big = new HLLCounter((byte)14, true, 512);
+      big.put("a", "b", "c");
+      arena.combine(0, big);
+      hs[0].combine(big);
+      assertArrayEquals(hs[0].getByteArray(), arena.get(0).getByteArray());
+      assertEquals(hs[0].getMinHash(), arena.get(0).getMinHash());
+      arena.close();
+    }
+  }
+
+  @Test
+  public void test_release_and_reuse() {
+    HLLCounterArena arena = new HLLCounterArena((byte)8, 3);
+    int a = arena.allocate();
+    int b = arena.allocate();
+    int c = arena.allocate();
+    assertEquals(3, arena.allocated());
+    try {
+      arena.allocate();
+      fail("The arena is full.");
+    } catch(IllegalStateException e) {
+    }
+    for(int i = 0; i < 1000; i++) {
+      arena.put(b, String.valueOf(i));
+    }
+    assertTrue(arena.size(b) > 0);
+    arena.release(b);
+    assertEquals(0L, arena.sizes()[b]);
+    try {
+      arena.put(b, "x");
+      fail("Released slots can't be used.");
+    } catch(IllegalArgumentException e) {
+    }
+    assertEquals(b, arena.allocate());
+    assertEquals(0L, arena.size(b));
+    arena.put(a, "x");
+    arena.reset(a);
+    assertEquals(0L, arena.size(a));
+    assertEquals(0L, arena.size(c));
+  }
+
+  @Test
+  public void test_rank_overflow() {
+    HLLCounterArena arena = new HLLCounterArena((byte)4, 2);
+    int id = arena.allocate();
+    for(long i = 0; i < 16; i++) {
+      arena.putHash(id, i << 60);
+    }
+    arena.putHash(id, 0L);
+    arena.putHash(id, 1L << 63);
+    assertEquals(61, arena.get(id).getByteArray()[8]);
+    assertTrue(arena.size(id) > 0);
+    assertEquals(arena.size(id), arena.sizes()[id]);
+  }
+}
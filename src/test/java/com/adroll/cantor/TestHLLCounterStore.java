@@ -0,0 +1,156 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.HLLCounterStore;
+
+public class TestHLLCounterStore {
+
+  @Test
+  public void test_persistence() throws Exception {
+    File f = File.createTempFile("cantor", ".hlls");
+    f.deleteOnExit();
+    HLLCounterStore store = HLLCounterStore.create(f, (byte)12, true, 256, HLLHash.MURMUR3_128, 4, 16);
+    HLLCounter a = new HLLCounter((byte)12, true, 256, HLLHash.MURMUR3_128);
+    HLLCounter b = new HLLCounter((byte)12, true, 256, HLLHash.MURMUR3_128);
+    for(int i = 0; i < 20000; i++) {
+      store.put("a", String.valueOf(i));
+      a.put(String.valueOf(i));
+      if(i % 100 == 0) {
+        store.put("b", String.valueOf(i));
+        b.put(String.valueOf(i));
+      }
+    }
+    store.put("small", "x");
+    assertEquals(a.size(), store.size("a"));
+    assertEquals(b.size(), store.size("b"));
+    assertEquals(1L, store.size("small"));
+    assertEquals(0L, store.size("missing"));
+    assertNull(store.get("missing"));
+    store.flush();
+    store.close();
+
+    store = HLLCounterStore.open(f);
+    assertEquals(3, store.keys().size());
+    assertTrue(store.contains("a"));
+    assertEquals(a.size(), store.size("a"));
+    assertEquals(b.size(), store.size("b"));
+    assertEquals(1L, store.size("small"));
+    HLLCounter c = store.get("a");
+    assertArrayEquals(a.getByteArray(), c.getByteArray());
+    assertEquals(a.getMinHash(), c.getMinHash());
+    assertEquals(HLLHash.MURMUR3_128, c.getHash());
+
+    HLLCounter big = new HLLCounter((byte)14, true, 512, HLLHash.MURMUR3_128);
+    big.put("p", "q", "r");
+    store.combine("b", big);
+    b.combine(big);
+    assertArrayEquals(b.getByteArray(), store.get("b").getByteArray());
+    assertEquals(b.getMinHash(), store.get("b").getMinHash());
+    assertEquals(b.size(), store.size("b"));
+    try {
+      store.combine("b", new HLLCounter((byte)14, true, 512));
+      fail("Can't mix hashes.");
+    } catch(IllegalArgumentException e) {
+    }
+    store.close();
+  }
+
+  @Test
+  public void test_remove_and_reuse() throws Exception {
+    File f = File.createTempFile("cantor", ".hlls");
+    f.deleteOnExit();
+    HLLCounterStore store = HLLCounterStore.create(f, (byte)8, false, 0, HLLHash.MD5, 2, 8);
+    assertTrue(store.add("a"));
+    assertFalse(store.add("a"));
+    store.put("b", "x");
+    try {
+      store.add("c");
+      fail("The store is full.");
+    } catch(IllegalStateException e) {
+    }
+    try {
+      store.add("much too long");
+      fail("Keys can't be longer than the directory allows.");
+    } catch(IllegalArgumentException e) {
+    }
+    assertTrue(store.remove("b"));
+    assertFalse(store.remove("b"));
+    store.put("c", "y");
+    assertEquals(1L, store.size("c"));
+    store.clear("c");
+    assertEquals(0L, store.size("c"));
+    store.close();
+
+    store = HLLCounterStore.open(f);
+    assertEquals(2, store.keys().size());
+    assertTrue(store.contains("c"));
+    assertFalse(store.contains("b"));
+    store.close();
+    try {
+      store.size("c");
+      fail("Closed stores can't be used.");
+    } catch(IllegalStateException e) {
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void test_not_a_store() throws Exception {
+    File f = File.createTempFile("cantor", ".hlls");
+    f.deleteOnExit();
+    FileOutputStream out = new FileOutputStream(f);
+    out.write(new byte[128]);
+    out.close();
+    HLLCounterStore.open(f);
+  }
+
+  private static void corrupt(int offset, int value, boolean asInt) throws Exception {
+    File f = File.createTempFile("cantor", ".hlls");
+    f.deleteOnExit();
+    HLLCounterStore.create(f, (byte)8, true, 64, HLLHash.MD5, 2, 8).close();
+    RandomAccessFile raf = new RandomAccessFile(f, "rw");
+    raf.seek(offset);
+    if(asInt) {
+      raf.writeInt(value);
+    } else {
+      raf.writeByte(value);
+    }
+    raf.close();
+    try {
+      HLLCounterStore.open(f).close();
+      fail("Opened a store with a corrupt header.");
+    } catch(IOException e) {
+      // Rejected before mapping anything
+    }
+  }
+
+  @Test
+  public void test_corrupt_header() throws Exception {
+    corrupt(8, 30, false);
+    corrupt(8, 2, false);
+    corrupt(12, -1, true);
+  }
+
+  @Test
+  public void test_rank_overflow() throws Exception {
+    File f = File.createTempFile("cantor", ".hlls");
+    f.deleteOnExit();
+    HLLCounterStore store = HLLCounterStore.create(f, (byte)4, false, 0, HLLHash.MD5, 2, 8);
+    for(long i = 0; i < 16; i++) {
+      store.putHash("a", i << 60);
+    }
+    store.putHash("a", 0L);
+    store.putHash("a", 1L << 63);
+    assertEquals(61, store.get("a").getByteArray()[8]);
+    assertTrue(store.size("a") > 0);
+    store.close();
+  }
+}
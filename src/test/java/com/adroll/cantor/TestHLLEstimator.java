@@ -0,0 +1,75 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.HLLEstimator;
+
+public class TestHLLEstimator {
+
+  @Test
+  public void test_accuracy() {
+    Random r = new Random(13579L);
+    HLLEstimator[] es = { HLLEstimator.HLL_PLUS_PLUS, HLLEstimator.IMPROVED, HLLEstimator.MAXIMUM_LIKELIHOOD };
+    HLLCounter h = new HLLCounter((byte)14);
+    int n = 0;
+    for(int target : new int[] { 10, 100, 1000, 10000, 100000, 1000000, 5000000 }) {
+      for(; n < target; n++) {
+        h.putHash(r.nextLong());
+      }
+      for(HLLEstimator e : es) {
+        // 2.5% is the 99.7% confidence error at p = 14
+        assertEquals(e + " at " + n, n, h.size(e), Math.max(1.0, 0.025 * n));
+      }
+    }
+    assertEquals(h.size(), h.size(HLLEstimator.HLL_PLUS_PLUS));
+  }
+
+  @Test
+  public void test_edge_cases() {
+    int[] hist = new int[65];
+    hist[0] = 1 << 10;
+    for(HLLEstimator e : new HLLEstimator[] { HLLEstimator.IMPROVED, HLLEstimator.MAXIMUM_LIKELIHOOD }) {
+      assertEquals(0.0, e.estimate(hist, (byte)10), 0.0);
+    }
+    hist[0] = 0;
+    hist[64 - 10 + 1] = 1 << 10;
+    assertTrue(Double.isInfinite(HLLEstimator.IMPROVED.estimate(hist, (byte)10)));
+    assertTrue(Double.isInfinite(HLLEstimator.MAXIMUM_LIKELIHOOD.estimate(hist, (byte)10)));
+
+    // A single non-empty register is about one element
+    hist = new int[65];
+    hist[0] = (1 << 10) - 1;
+    hist[1] = 1;
+    assertEquals(1.0, HLLEstimator.IMPROVED.estimate(hist, (byte)10), 0.01);
+    assertEquals(1.0, HLLEstimator.MAXIMUM_LIKELIHOOD.estimate(hist, (byte)10), 0.01);
+  }
+
+  @Test
+  public void test_intersect() {
+    HLLCounter h0 = new HLLCounter((byte)12, true, 1024);
+    HLLCounter h1 = new HLLCounter((byte)12, true, 1024);
+    for(int i = 0; i < 100000; i++) {
+      h0.put(String.valueOf(i));
+      h1.put(String.valueOf(i + 50000));
+    }
+    assertEquals(HLLCounter.intersect(h0, h1), HLLCounter.intersect(HLLEstimator.HLL_PLUS_PLUS, h0, h1));
+    long i = HLLCounter.intersect(HLLEstimator.MAXIMUM_LIKELIHOOD, h0, h1);
+    assertEquals(50000.0, i, 0.15 * 50000);
+  }
+
+  @Test
+  public void test_bias_tables() {
+    for(byte p = HLLCounter.MIN_P; p <= HLLCounter.MAX_P; p++) {
+      int m = 1 << p;
+      // The bias is largest for the smallest estimates, and gone past 5m
+      assertTrue(BiasTables.bias(0.0, p) > BiasTables.bias(m, p));
+      assertEquals(0.0, BiasTables.bias(6.0 * m, p), 0.0);
+    }
+    assertEquals(10.0, BiasTables.bias(0.0, (byte)4), 0.0);
+  }
+}
@@ -0,0 +1,88 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.HLLExpression;
+import com.adroll.cantor.HLLWritable;
+
+public class TestHLLExpression {
+
+  private static HLLCounter range(int lo, int hi) {
+    HLLCounter h = new HLLCounter(true);
+    for(int i = lo; i < hi; i++) {
+      h.put(String.valueOf(i));
+    }
+    return h;
+  }
+
+  @Test
+  public void test_same_as_counters() {
+    HLLCounter a = range(0, 50000);
+    HLLCounter b = range(25000, 75000);
+    HLLCounter c = range(40000, 100000);
+    HLLExpression A = HLLExpression.of(a);
+    HLLExpression B = HLLExpression.of(b);
+    HLLExpression C = HLLExpression.of(c);
+
+    assertEquals(a.size(), A.size());
+    assertEquals(HLLCounter.union(a, b, c).size(), HLLExpression.union(A, B, HLLExpression.union(C, A)).size());
+    assertEquals(HLLCounter.intersect(a, b), HLLExpression.intersect(A, B).size());
+    assertEquals(HLLCounter.intersect(a, b, c), HLLExpression.intersect(A, HLLExpression.intersect(B, C)).size());
+    HLLCounter u = HLLCounter.union(a, b);
+    assertEquals(HLLCounter.intersect(u, c), HLLExpression.intersect(HLLExpression.union(B, A), C).size());
+  }
+
+  @Test
+  public void test_expressions() {
+    HLLExpression A = HLLExpression.of(range(0, 50000));
+    HLLExpression B = HLLExpression.of(range(25000, 75000));
+    HLLExpression C = HLLExpression.of(range(40000, 100000));
+    HLLExpression D = HLLExpression.of(new HLLWritable(range(60000, 70000)));
+
+    // (A u B) n C \ D = [40000, 60000) u [70000, 75000)
+    HLLExpression x = HLLExpression.difference(HLLExpression.intersect(HLLExpression.union(A, B), C), D);
+    assertEquals(25000, x.size(), 25000 * 0.05);
+    // A \ B u A \ (B u C) = [0, 25000)
+    HLLExpression y = HLLExpression.union(HLLExpression.difference(A, B), HLLExpression.difference(A, HLLExpression.union(B, C)));
+    assertEquals(25000, y.size(), 25000 * 0.05);
+    // (A u B) \ (A u B) = nothing
+    assertEquals(0, HLLExpression.difference(HLLExpression.union(A, B), HLLExpression.union(B, A)).size());
+
+    ForkJoinPool pool = new ForkJoinPool(4);
+    assertEquals(x.size(), x.size(pool, HLLEstimator.HLL_PLUS_PLUS));
+    assertEquals(y.size(), y.size(pool, HLLEstimator.HLL_PLUS_PLUS));
+    pool.shutdown();
+  }
+
+  @Test
+  public void test_writable_changes() {
+    HLLWritable w = new HLLWritable(range(0, 1000));
+    HLLExpression W = HLLExpression.of(w);
+    HLLExpression x = HLLExpression.intersect(W, W);
+    assertEquals(1000, x.size(), 1000 * 0.05);
+    w.set(range(0, 5000));
+    assertEquals(5000, W.size(), 5000 * 0.05);
+    assertEquals(5000, x.size(), 5000 * 0.05);
+  }
+
+  @Test
+  public void test_non_intersectable() {
+    HLLCounter a = new HLLCounter(false);
+    HLLCounter b = new HLLCounter(false);
+    for(int i = 0; i < 1000; i++) {
+      a.put(String.valueOf(i));
+      b.put(String.valueOf(i + 500));
+    }
+    assertEquals(HLLCounter.union(a, b).size(), HLLExpression.union(HLLExpression.of(a), HLLExpression.of(b)).size());
+    try {
+      HLLExpression.intersect(HLLExpression.of(a), HLLExpression.of(b)).size();
+      fail();
+    } catch(IllegalArgumentException e) {
+    }
+  }
+}
@@ -0,0 +1,54 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.HLLFanOut;
+
+public class TestHLLFanOut {
+
+  @Test
+  public void test_same_as_put() {
+    HLLCounter[] hs = new HLLCounter[] {
+      new HLLCounter((byte)12, true, 512, HLLHash.MURMUR3_128),
+      new HLLCounter((byte)14, true, 256, HLLHash.MURMUR3_128),
+      new HLLCounter((byte)12, false, 0, HLLHash.MURMUR3_128),
+      new HLLCounter((byte)14, true, 1024, HLLHash.MD5),
+      new PackedHLLCounter((byte)12, true, 512, HLLHash.MURMUR3_128),
+      new ConcurrentHLLCounter((byte)10, true, 128, HLLHash.MURMUR3_128),
+      new OffHeapHLLCounter((byte)10, true, 128, HLLHash.MURMUR3_128),
+      new StripedHLLCounter((byte)12, true, 512, HLLHash.MURMUR3_128, 2)
+    };
+    HLLCounter[] expected = new HLLCounter[hs.length];
+    for(int i = 0; i < hs.length; i++) {
+      expected[i] = new HLLCounter(hs[i].getP(), hs[i].isIntersectable(), hs[i].getK(), hs[i].getHash());
+    }
+    HLLFanOut fan = new HLLFanOut(hs);
+    for(int i = 0; i < 20000; i++) {
+      String s = String.valueOf(i);
+      fan.put(s);
+      for(HLLCounter e : expected) {
+        e.put(s);
+      }
+      if(i == 10000) {
+        // Folded counters still get the right registers
+        hs[1].fold((byte)11);
+        expected[1].fold((byte)11);
+      }
+    }
+    fan.put(new byte[] { 1, 2, 3 });
+    fan.putHash(HLLHash.MD5, 42L);
+    for(HLLCounter e : expected) {
+      e.put(new byte[] { 1, 2, 3 });
+    }
+    expected[3].putHash(42L);
+    for(int i = 0; i < hs.length; i++) {
+      assertArrayEquals(expected[i].getByteArray(), hs[i].getByteArray());
+      assertEquals(expected[i].getMinHash(), hs[i].getMinHash());
+      assertEquals(expected[i].size(), hs[i].size());
+    }
+    ((OffHeapHLLCounter)hs[6]).close();
+  }
+}
@@ -0,0 +1,129 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.google.common.hash.Hashing;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.HLLHash;
+import com.adroll.cantor.HLLWritable;
+
+public class TestHLLHash {
+
+  @Test
+  public void test_murmur3() {
+    Random r = new Random(1234L);
+    for(int len = 0; len < 100; len++) {
+      byte[] b = new byte[len];
+      r.nextBytes(b);
+      assertEquals(Hashing.murmur3_128().hashBytes(b).asLong(), HLLHash.MURMUR3_128.hash(b));
+    }
+  }
+
+  @Test
+  public void test_xxhash64() {
+    assertEquals(0xEF46DB3751D8E999L, HLLHash.XXHASH64.hash("".getBytes()));
+    assertEquals(0xD24EC4F1A98C6E5BL, HLLHash.XXHASH64.hash("a".getBytes()));
+    assertEquals(0x44BC2CF5AD770999L, HLLHash.XXHASH64.hash("abc".getBytes()));
+    assertEquals(0xFBCEA83C8A378BF1L,
+                 HLLHash.XXHASH64.hash("Nobody inspects the spammish repetition".getBytes()));
+  }
+
+  @Test
+  public void test_offsets() {
+    byte[] b = "__hello world__".getBytes();
+    byte[] c = "hello world".getBytes();
+    for(byte id = 0; id < 3; id++) {
+      HLLHash hash = HLLHash.forId(id);
+      assertEquals(id, hash.getId());
+      assertEquals(hash.hash(c), hash.hash(b, 2, c.length));
+    }
+  }
+
+  @Test
+  public void test_char_sequences() throws Exception {
+    String[] ss = { "", "plain", "caf\u00e9", "\u20ac100", "\ud83d\ude00 smile",
+                    "unpaired \ud83d", "\ude00 unpaired", "\ud83d\ud83d" };
+    for(byte id = 0; id < 3; id++) {
+      HLLHash hash = HLLHash.forId(id);
+      for(String s : ss) {
+        byte[] b = s.getBytes("UTF-8");
+        assertEquals(s, hash.hash(b), hash.hash(s));
+        assertEquals(s, hash.hash(b), hash.hash(new StringBuilder(s)));
+      }
+    }
+  }
+
+  @Test
+  public void test_byte_buffers() {
+    byte[] b = "__hello world__".getBytes();
+    ByteBuffer direct = ByteBuffer.allocateDirect(b.length);
+    direct.put(b);
+    direct.position(2);
+    direct.limit(b.length - 2);
+    ByteBuffer heap = ByteBuffer.wrap(b, 2, b.length - 4).slice();
+    for(byte id = 0; id < 3; id++) {
+      HLLHash hash = HLLHash.forId(id);
+      long expected = hash.hash("hello world".getBytes());
+      assertEquals(expected, hash.hash(heap));
+      assertEquals(expected, hash.hash(direct));
+      assertEquals(2, direct.position());
+    }
+  }
+
+  @Test
+  public void test_counters() throws Exception {
+    HLLCounter md5 = new HLLCounter((byte)14, true, 1024);
+    HLLCounter murmur = new HLLCounter((byte)14, true, 1024, HLLHash.MURMUR3_128);
+    HLLCounter xx = new HLLCounter((byte)14, true, 1024, HLLHash.XXHASH64);
+    for(int i = 0; i < 100000; i++) {
+      String s = String.valueOf(i);
+      md5.put(s);
+      murmur.put(s);
+      xx.put(s);
+    }
+    assertSame(HLLHash.MD5, md5.getHash());
+    assertEquals(100000, md5.size(), 5000);
+    assertEquals(100000, murmur.size(), 5000);
+    assertEquals(100000, xx.size(), 5000);
+
+    try {
+      md5.combine(murmur);
+      fail("Combined HLLCounters with different hashes");
+    } catch(IllegalArgumentException e) {
+    }
+    try {
+      HLLCounter.intersect(murmur, xx);
+      fail("Intersected HLLCounters with different hashes");
+    } catch(IllegalArgumentException e) {
+    }
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    new HLLWritable(murmur).write(out);
+    new HLLWritable(md5).write(out);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    HLLWritable w0 = new HLLWritable();
+    w0.readFields(in);
+    HLLWritable w1 = new HLLWritable();
+    w1.readFields(in);
+    assertSame(HLLHash.MURMUR3_128, w0.get().getHash());
+    assertEquals(murmur.size(), w0.get().size());
+    assertSame(HLLHash.MD5, w1.get().getHash());
+    assertEquals(md5.size(), w1.get().size());
+    try {
+      w0.combine(w1);
+      fail("Combined HLLWritables with different hashes");
+    } catch(IllegalArgumentException e) {
+    }
+  }
+}
@@ -6,6 +6,9 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
 
 import org.junit.Test;
 
@@ -232,4 +235,252 @@ public class TestHLLWritable {
     assertEquals(0, empty.get().getMinHash().size());
     assertEquals(0, empty.get().size());
   }
+
+  @Test
+  public void test_serialization_packed() throws Exception {
+    HLLCounter hll = new HLLCounter((byte)12, true, 64);
+    for(int i = 0; i < 20000; i++) {
+      hll.put(String.valueOf(i));
+    }
+    HLLWritable hllw = new HLLWritable(hll);
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    hllw.write(new DataOutputStream(plain));
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    hllw.setPacked(true);
+    hllw.write(new DataOutputStream(baos));
+    assertEquals(plain.size() - 4096 / 4 + 3, baos.size());
+
+    HLLWritable deserialized = new HLLWritable();
+    deserialized.readFields(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    assertTrue(deserialized.isPacked());
+    assertEquals(hllw, deserialized);
+    HLLCounter d = deserialized.get();
+    assertArrayEquals(hll.getByteArray(), d.getByteArray());
+    assertEquals(hll.size(), d.size());
+
+    deserialized.readFields(new DataInputStream(new ByteArrayInputStream(plain.toByteArray())));
+    assertFalse(deserialized.isPacked());
+    assertEquals(hllw, deserialized);
+  }
+
+  @Test
+  public void test_serialization_compressed() throws Exception {
+    HLLCounter hll = new HLLCounter((byte)18, true, 1024);
+    for(int i = 0; i < 5000; i++) {
+      hll.put(String.valueOf(i));
+    }
+    HLLWritable hllw = new HLLWritable(hll);
+    ByteArrayOutputStream plain = new ByteArrayOutputStream();
+    hllw.write(new DataOutputStream(plain));
+    assertEquals(1 + 4 + 4 + (1 << 18) + 8 * 1024, plain.size());
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    hllw.setCompressed(true);
+    hllw.write(new DataOutputStream(baos));
+    assertTrue(baos.size() < plain.size() / 8);
+
+    HLLWritable deserialized = new HLLWritable();
+    deserialized.readFields(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    assertTrue(deserialized.isCompressed());
+    assertEquals(hllw, deserialized);
+    assertEquals(hll.size(), deserialized.get().size());
+
+    deserialized.readFields(new DataInputStream(new ByteArrayInputStream(plain.toByteArray())));
+    assertFalse(deserialized.isCompressed());
+    assertEquals(hllw, deserialized);
+
+    // MinHash only, with hashes across the whole range
+    HLLCounter few = new HLLCounter((byte)10, true, 16);
+    for(long x : new long[] { Long.MIN_VALUE + 1, -1L, 1L, Long.MAX_VALUE }) {
+      few.putHash(x);
+    }
+    HLLWritable small = new HLLWritable(few);
+    small.setCompressed(true);
+    baos.reset();
+    small.write(new DataOutputStream(baos));
+    deserialized.readFields(new DataInputStream(new ByteArrayInputStream(baos.toByteArray())));
+    assertEquals(small, deserialized);
+    assertEquals(4, deserialized.get().size());
+  }
+
+  @Test
+  public void test_run_length() throws Exception {
+    byte[] M = new byte[64];
+    M[3] = 5;
+    M[4] = 5;
+    M[40] = 1;
+    M[41] = 1;
+    M[42] = 1;
+    Arrays.fill(M, 50, 64, (byte)63);
+    byte[] b = new byte[M.length];
+    int n = HLLWritable.encodeRuns(M, b);
+    assertTrue(n < 16);
+    byte[] N = new byte[M.length];
+    HLLWritable.decodeRuns(b, 0, n, N);
+    assertArrayEquals(M, N);
+  }
+
+  @Test
+  public void test_read_reuses_buffers() throws Exception {
+    HLLCounter full = new HLLCounter((byte)12, true, 64);
+    HLLCounter small = new HLLCounter((byte)12, true, 64);
+    for(int i = 0; i < 5000; i++) {
+      full.put(String.valueOf(i));
+    }
+    for(int i = 0; i < 40; i++) {
+      small.put(String.valueOf(i));
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    HLLWritable[] ws = { new HLLWritable(full), new HLLWritable(small), 
+                         new HLLWritable(full), new HLLWritable(full),
+                         new HLLWritable(small), new HLLWritable(full) };
+    ws[2].setPacked(true);
+    ws[3].setCompressed(true);
+    ws[4].setCompressed(true);
+    for(HLLWritable w : ws) {
+      w.write(out);
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    HLLWritable w = new HLLWritable();
+    w.readFields(in);
+    assertEquals(ws[0], w);
+    byte[] M = w.M;
+    for(int i = 1; i < ws.length - 1; i++) {
+      w.readFields(in);
+      assertEquals(ws[i], w);
+      if(ws[i] == ws[1] || ws[i] == ws[4]) {
+        assertNull(w.M);
+      } else {
+        assertSame(M, w.M);
+      }
+    }
+    // The counter keeps M, so the next record is read elsewhere
+    w.readFields(in);
+    assertSame(M, w.M);
+    HLLCounter h = w.get();
+    long size = h.size();
+    in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    w.readFields(in);
+    assertEquals(ws[0], w);
+    assertNotSame(M, w.M);
+    assertEquals(size, h.size());
+    assertEquals(full.size(), h.size());
+  }
+
+  @Test
+  public void test_minhash_only() throws Exception {
+    HLLCounter small = new HLLCounter((byte)16, true, 256, HLLHash.MURMUR3_128);
+    HLLCounter more = new HLLCounter((byte)14, true, 256, HLLHash.MURMUR3_128);
+    HLLCounter full = new HLLCounter((byte)14, true, 256, HLLHash.MURMUR3_128);
+    for(int i = 0; i < 100; i++) {
+      small.put(String.valueOf(i));
+      more.put(String.valueOf(i + 50));
+    }
+    for(int i = 0; i < 3000; i++) {
+      full.put(String.valueOf(i));
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    new HLLWritable(small).write(out);
+    new HLLWritable(more).write(out);
+    new HLLWritable(full).write(out);
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    HLLWritable a = new HLLWritable();
+    HLLWritable b = new HLLWritable();
+    HLLWritable c = new HLLWritable();
+    a.readFields(in);
+    b.readFields(in);
+    c.readFields(in);
+    assertNull(a.M);
+    assertNull(b.M);
+    assertNotNull(c.M);
+
+    // The counters stay sparse, yet count and combine the same
+    HLLCounter h = a.get();
+    assertEquals(100L, h.size());
+    assertEquals(small.size(), h.size());
+    assertArrayEquals(small.getByteArray(), h.getByteArray());
+    assertNull(a.M);
+    assertEquals(new HLLWritable(small), a);
+    assertEquals(new HLLWritable(small).hashCode(), a.hashCode());
+
+    // Unions that don't fill the MinHash structure don't build M
+    HLLWritable ab = a.combine(b);
+    assertNull(ab.M);
+    HLLCounter union = HLLCounter.union(small, more);
+    assertEquals(new HLLWritable(union), ab);
+    assertEquals(150L, ab.get().size());
+
+    HLLWritable abc = ab.combine(c);
+    assertNotNull(abc.M);
+    union.combine(full);
+    assertEquals(new HLLWritable(union), abc);
+    assertEquals(union.size(), abc.get().size());
+
+    // Built on demand, as reading it whole would have
+    assertArrayEquals(HLLCounter.safeFold(small.getByteArray(), (byte)16), a.registers());
+  }
+
+  @Test
+  public void test_write_reuses_scratch() throws Exception {
+    HLLCounter full = new HLLCounter((byte)14, true, 1024);
+    HLLCounter small = new HLLCounter((byte)10, true, 64);
+    for(int i = 0; i < 20000; i++) {
+      full.put(String.valueOf(i));
+    }
+    for(int i = 0; i < 100; i++) {
+      small.put(String.valueOf(-i));
+    }
+    for(int format = 0; format < 3; format++) {
+      // The second record is written over what is left of the first
+      HLLWritable w = new HLLWritable(full);
+      w.setPacked(format == 1);
+      w.setCompressed(format == 2);
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(baos);
+      w.write(out);
+      w.set(small);
+      w.write(out);
+      DataInputStream in = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+      HLLWritable r = new HLLWritable();
+      r.readFields(in);
+      assertEquals(new HLLWritable(full), r);
+      r.readFields(in);
+      assertEquals(new HLLWritable(small), r);
+      assertEquals(0, in.available());
+    }
+  }
+
+  @Test
+  public void test_legacy_rank_overflow() throws Exception {
+    // Records written before ranks were capped can hold registers of 65
+    byte p = 10;
+    byte[] M = new byte[1 << p];
+    byte[] capped = new byte[1 << p];
+    for(int i = 0; i < M.length; i++) {
+      M[i] = (byte)(i % 16 == 0 ? 65 : 1 + i % 7);
+      capped[i] = (byte)Math.min(M[i], 65 - p);
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(baos);
+    out.writeByte(p);
+    out.writeInt(0);
+    out.writeInt(0);
+    out.write(M);
+    byte[] b = baos.toByteArray();
+
+    long expected = new HLLCounter(p, false, 0, capped, (TreeSet<Long>)null).size();
+    assertEquals(expected, new HLLCounter(p, false, 0, M, (TreeSet<Long>)null).size());
+    HLLWritable w = new HLLWritable();
+    w.readFields(new DataInputStream(new ByteArrayInputStream(b)));
+    assertEquals(expected, w.get().size());
+    HLLWritable v = new HLLWritable();
+    v.readFields(new DataInputStream(new ByteArrayInputStream(b)));
+    assertEquals(expected, w.combine(v).get().size());
+    HLLCounter h = new HLLCounter(p, false, 0, M, (TreeSet<Long>)null);
+    assertEquals(expected, Math.round(HLLCounter.totalSize(HLLEstimator.HLL_PLUS_PLUS, h)));
+    assertEquals(expected, Math.round(ParallelHLL.estimate(new ForkJoinPool(2), HLLEstimator.HLL_PLUS_PLUS, M)));
+  }
 }
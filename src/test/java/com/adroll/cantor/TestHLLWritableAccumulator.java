@@ -0,0 +1,76 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.HLLWritable;
+import com.adroll.cantor.HLLWritableAccumulator;
+
+public class TestHLLWritableAccumulator {
+
+  private static byte[] write(HLLWritableAccumulator a) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    a.write(new DataOutputStream(baos));
+    return baos.toByteArray();
+  }
+
+  @Test
+  public void test_same_as_combine() throws Exception {
+    Random r = new Random(3L);
+    HLLWritableAccumulator acc = new HLLWritableAccumulator();
+    HLLWritableAccumulator raw = new HLLWritableAccumulator();
+    for(int t = 0; t < 20; t++) {
+      acc.reset();
+      raw.reset();
+      assertTrue(acc.isEmpty());
+      HLLWritable expected = null;
+      for(int i = 0; i < 6; i++) {
+        HLLWritable w = TestHLLWritableMerger.writable(r, (byte)(10 + (t + i) % 4),
+                                                       (t + i) % 7 == 0 ? 0 : 64 + 64 * (i % 2),
+                                                       (t + i) % 3 == 0 ? 20 : 1500, i % 3 == 1, (t + i) % 2 == 1);
+        byte[] b = TestHLLWritableMerger.write(w);
+        HLLWritable v = TestHLLWritableMerger.read(b);
+        expected = expected == null ? v : expected.combine(v);
+        acc.add(TestHLLWritableMerger.read(b));
+        byte[] buf = new byte[b.length + 5];
+        System.arraycopy(b, 0, buf, 2, b.length);
+        raw.add(buf, 2, b.length);
+      }
+      assertFalse(acc.isEmpty());
+      assertEquals(expected, acc.get());
+      assertArrayEquals(TestHLLWritableMerger.write(expected), write(acc));
+      assertArrayEquals(TestHLLWritableMerger.write(expected), write(raw));
+      assertEquals(expected.get().size(), acc.get().get().size());
+    }
+  }
+
+  @Test
+  public void test_get_is_a_copy() throws Exception {
+    Random r = new Random(5L);
+    HLLWritableAccumulator acc = new HLLWritableAccumulator();
+    acc.add(TestHLLWritableMerger.writable(r, (byte)12, 128, 3000, false, false));
+    HLLWritable first = acc.get();
+    byte[] before = TestHLLWritableMerger.write(first);
+    acc.add(TestHLLWritableMerger.writable(r, (byte)12, 128, 3000, false, false));
+    assertArrayEquals(before, TestHLLWritableMerger.write(first));
+    assertFalse(first.equals(acc.get()));
+  }
+
+  @Test(expected=IllegalStateException.class)
+  public void test_empty() {
+    new HLLWritableAccumulator().get();
+  }
+
+  @Test(expected=IllegalArgumentException.class)
+  public void test_different_hashes() {
+    HLLWritableAccumulator acc = new HLLWritableAccumulator();
+    acc.add(new HLLWritable(new HLLCounter(true)));
+    acc.add(new HLLWritable(new HLLCounter((byte)14, true, 128, HLLHash.MURMUR3_128)));
+  }
+}
@@ -0,0 +1,90 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Random;
+
+import org.apache.hadoop.io.WritableComparator;
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.HLLWritable;
+import com.adroll.cantor.HLLWritableMerger;
+
+public class TestHLLWritableMerger {
+
+  static byte[] write(HLLWritable w) throws Exception {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    w.write(new DataOutputStream(baos));
+    return baos.toByteArray();
+  }
+
+  static HLLWritable read(byte[] b) throws Exception {
+    HLLWritable w = new HLLWritable();
+    w.readFields(new DataInputStream(new ByteArrayInputStream(b)));
+    return w;
+  }
+
+  static HLLWritable writable(Random r, byte p, int k, int n, boolean packed, boolean compressed) {
+    HLLCounter h = new HLLCounter(p, k > 0, k, HLLHash.MURMUR3_128);
+    for(int i = 0; i < n; i++) {
+      h.put(String.valueOf(r.nextInt(20000)));
+    }
+    HLLWritable w = new HLLWritable(h);
+    w.setPacked(packed);
+    w.setCompressed(compressed);
+    return w;
+  }
+
+  @Test
+  public void test_same_as_combine() throws Exception {
+    Random r = new Random(7L);
+    HLLWritableMerger merger = new HLLWritableMerger();
+    for(int t = 0; t < 60; t++) {
+      HLLWritable a = writable(r, (byte)(10 + t % 3), t % 5 == 0 ? 0 : 64 + 64 * (t % 2), t % 4 == 0 ? 40 : 5000, t % 3 == 1, t % 2 == 1);
+      HLLWritable b = writable(r, (byte)(10 + t % 4), t % 7 == 0 ? 0 : 128, t % 6 == 0 ? 30 : 3000, t % 5 == 2, t % 3 == 0);
+      byte[] ab = write(a);
+      byte[] bb = write(b);
+      // Records in a larger buffer
+      byte[] buf = new byte[ab.length + bb.length + 3];
+      System.arraycopy(ab, 0, buf, 1, ab.length);
+      System.arraycopy(bb, 0, buf, 2 + ab.length, bb.length);
+
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      merger.merge(buf, 1, ab.length, buf, 2 + ab.length, bb.length, new DataOutputStream(baos));
+      byte[] expected = write(read(ab).combine(read(bb)));
+      assertArrayEquals(expected, baos.toByteArray());
+    }
+  }
+
+  @Test
+  public void test_raw_comparator() throws Exception {
+    Random r = new Random(11L);
+    WritableComparator c = WritableComparator.get(HLLWritable.class);
+    assertTrue(c instanceof HLLWritable.Comparator);
+    HLLWritable[] ws = new HLLWritable[24];
+    for(int i = 0; i < ws.length; i++) {
+      ws[i] = writable(r, (byte)(10 + i % 2), 64 * (i % 3), i % 4 == 0 ? 20 : 2000, i % 2 == 0, i % 3 == 1);
+    }
+    for(HLLWritable a : ws) {
+      byte[] ab = write(a);
+      for(HLLWritable b : ws) {
+        byte[] bb = write(b);
+        int raw = Integer.signum(c.compare(ab, 0, ab.length, bb, 0, bb.length));
+        assertEquals(Integer.signum(a.compareTo(b)), raw);
+        assertEquals(a.equals(b), raw == 0);
+      }
+    }
+    // The same structures compare equal whatever their format
+    HLLWritable a = ws[1];
+    byte[] plain = write(a);
+    a.setPacked(true);
+    a.setCompressed(true);
+    byte[] compressed = write(a);
+    assertEquals(0, c.compare(plain, 0, plain.length, compressed, 0, compressed.length));
+  }
+}
@@ -0,0 +1,73 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class TestMinHash {
+
+  @Test
+  public void test_offer() {
+    Random r = new Random(42L);
+    MinHash mh = new MinHash(100);
+    TreeSet<Long> ts = new TreeSet<Long>();
+    for(int i = 0; i < 100000; i++) {
+      // Plenty of duplicates
+      long x = r.nextInt(5000) * 0x9E3779B97F4A7C15L;
+      mh.offer(x);
+      ts.add(x);
+      if(ts.size() > 100) {
+        ts.pollLast();
+      }
+      assertEquals(ts.size(), mh.size());
+    }
+    assertEquals(ts, mh.toTreeSet());
+    assertTrue(mh.contains(ts.first()));
+    assertFalse(mh.offer(ts.first()));
+    assertFalse(mh.offer(ts.last() + 1));
+
+    mh.clear();
+    assertEquals(0, mh.size());
+    assertTrue(mh.offer(5L));
+    assertArrayEquals(new long[] { 5L }, mh.toArray());
+  }
+
+  @Test
+  public void test_union() {
+    MinHash a = new MinHash(4, new long[] { -7L, 1L, 3L }, 3);
+    MinHash b = new MinHash(3, new long[] { -9L, 1L, 10L }, 3);
+    a.union(b, 3);
+    assertEquals(3, a.getK());
+    assertArrayEquals(new long[] { -9L, -7L, 1L }, a.toArray());
+
+    MinHash c = new MinHash(10);
+    c.union(new MinHash(10), 10);
+    assertEquals(0, c.size());
+  }
+
+  @Test
+  public void test_common() {
+    MinHash a = new MinHash(5, new long[] { -7L, 1L, 3L, 8L, 12L }, 5);
+    MinHash b = new MinHash(5, new long[] { -9L, 1L, 3L, 12L }, 4);
+    MinHash c = new MinHash(5, new long[] { 1L, 2L, 12L }, 3);
+    assertEquals(2, MinHash.common(new MinHash[] { a, b }, 4));
+    assertEquals(3, MinHash.common(new MinHash[] { a, b }, 10));
+    assertEquals(1, MinHash.common(new MinHash[] { a, b, c }, 5));
+    assertEquals(2, MinHash.common(new MinHash[] { a, b, c }, 8));
+    assertEquals(5, MinHash.common(new MinHash[] { a }, 5));
+    assertEquals(0, MinHash.common(new MinHash[] { a, new MinHash(5) }, 5));
+  }
+
+  @Test
+  public void test_tree_set() {
+    TreeSet<Long> ts = new TreeSet<Long>();
+    for(long l = 0; l < 10; l++) {
+      ts.add(l);
+    }
+    MinHash mh = new MinHash(5, ts);
+    assertArrayEquals(new long[] { 0L, 1L, 2L, 3L, 4L }, mh.toArray());
+  }
+}
@@ -0,0 +1,72 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.MinHashIndex;
+
+public class TestMinHashIndex {
+
+  private static HLLCounter range(int lo, int hi) {
+    HLLCounter h = new HLLCounter((byte)12, true, 1024, HLLHash.MURMUR3_128);
+    for(int i = lo; i < hi; i++) {
+      h.put(String.valueOf(i));
+    }
+    return h;
+  }
+
+  @Test
+  public void test_top_similar() {
+    MinHashIndex<String> index = new MinHashIndex<String>(32, 4);
+    for(int i = 0; i < 200; i++) {
+      // Disjoint segments, save for the ones overlapping the query
+      index.add("s" + i, range(1000000 + 10000 * i, 1000000 + 10000 * i + 5000));
+    }
+    index.add("same", range(0, 5000));
+    index.add("most", range(250, 5250));
+    index.add("half", range(1700, 6700));
+    assertEquals(203, index.size());
+
+    HLLCounter q = range(0, 5000);
+    List<MinHashIndex.Match<String>> ms = index.matches(q, 3);
+    assertEquals(3, ms.size());
+    assertEquals("same", ms.get(0).getKey());
+    assertEquals(1.0, ms.get(0).getJaccard(), 0.0);
+    assertEquals("most", ms.get(1).getKey());
+    assertEquals(4750.0 / 5250.0, ms.get(1).getJaccard(), 0.05);
+    assertEquals("half", ms.get(2).getKey());
+    assertEquals(3300.0 / 6700.0, ms.get(2).getJaccard(), 0.05);
+    assertEquals(HLLCounter.intersect(q, range(250, 5250)),
+                 Math.round(ms.get(1).getJaccard() * HLLCounter.union(q, range(250, 5250)).size()), 50);
+
+    assertEquals(ms.get(0).getKey(), index.query(q, 1).get(0));
+    assertTrue(index.query(range(-100000, -90000), 5).isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_not_intersectable() {
+    new MinHashIndex<String>(8, 2).add("x", new HLLCounter(false));
+  }
+
+  @Test
+  public void test_hash_set_by_add() {
+    MinHashIndex<String> index = new MinHashIndex<String>(8, 2);
+    HLLCounter md5 = new HLLCounter((byte)12, true, 256);
+    for(int i = 0; i < 5000; i++) {
+      md5.put(String.valueOf(i));
+    }
+    // Querying an empty index doesn't tie it to the query's hash
+    assertTrue(index.matches(range(0, 100), 1).isEmpty());
+    index.add("md5", md5);
+    assertEquals("md5", index.query(md5, 1).get(0));
+    try {
+      index.add("murmur", range(0, 100));
+      fail("Mixed hashes in a MinHashIndex");
+    } catch(IllegalArgumentException e) {
+    }
+  }
+}
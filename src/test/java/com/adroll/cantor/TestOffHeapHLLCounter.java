@@ -0,0 +1,109 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.OffHeapHLLCounter;
+
+public class TestOffHeapHLLCounter {
+
+  @Test
+  public void test_same_as_hllcounter() {
+    OffHeapHLLCounter o = new OffHeapHLLCounter((byte)14, true, 1024);
+    HLLCounter h = new HLLCounter((byte)14, true, 1024);
+    for(int i = 0; i < 100000; i++) {
+      o.put(String.valueOf(i));
+      h.put(String.valueOf(i));
+      if(i % 10000 == 0) {
+        assertEquals(h.size(), o.size());
+      }
+    }
+    assertArrayEquals(h.getByteArray(), o.getByteArray());
+    assertEquals(h.getMinHash(), o.getMinHash());
+    assertEquals(h.size(), o.size());
+    assertEquals(HLLCounter.intersect(h, h), HLLCounter.intersect(o, h));
+    o.close();
+  }
+
+  @Test
+  public void test_combine_and_fold() {
+    OffHeapHLLCounter o = new OffHeapHLLCounter((byte)14, true, 1024);
+    HLLCounter h = new HLLCounter((byte)14, true, 1024);
+    HLLCounter other = new HLLCounter((byte)12, true, 512);
+    for(int i = 0; i < 50000; i++) {
+      o.put(String.valueOf(i));
+      h.put(String.valueOf(i));
+      other.put(String.valueOf(i + 25000));
+    }
+    o.combine(other);
+    h.combine(other);
+    assertEquals(12, o.getP());
+    assertEquals(512, o.getK());
+    assertArrayEquals(h.getByteArray(), o.getByteArray());
+    assertEquals(h.getMinHash(), o.getMinHash());
+    assertEquals(h.size(), o.size());
+
+    HLLCounter plain = new HLLCounter((byte)12, true, 512);
+    plain.combine(o);
+    assertArrayEquals(h.getByteArray(), plain.getByteArray());
+
+    o.fold((byte)8);
+    h.fold((byte)8);
+    assertArrayEquals(h.getByteArray(), o.getByteArray());
+    assertEquals(h.size(), o.size());
+
+    o.combine(new HLLCounter((byte)10));
+    assertFalse(o.isIntersectable());
+    assertNull(o.getMinHash());
+    o.close();
+  }
+
+  @Test
+  public void test_clear_and_close() throws Exception {
+    OffHeapHLLCounter o = new OffHeapHLLCounter((byte)10, true, 128);
+    o.put("a", "b", "c", "a");
+    assertEquals(3L, o.size());
+
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(baos);
+    out.writeObject(o);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    HLLCounter d = (HLLCounter)in.readObject();
+    assertEquals(HLLCounter.class, d.getClass());
+    assertArrayEquals(o.getByteArray(), d.getByteArray());
+    assertEquals(3L, d.size());
+
+    o.clear();
+    assertEquals(0L, o.size());
+    assertFalse(o.isClosed());
+    o.close();
+    assertTrue(o.isClosed());
+    o.close();
+    try {
+      o.put("d");
+      fail("Closed counters can't be used.");
+    } catch(IllegalStateException e) {
+    }
+  }
+
+  @Test
+  public void test_rank_overflow() {
+    OffHeapHLLCounter o = new OffHeapHLLCounter((byte)4);
+    for(long i = 0; i < 16; i++) {
+      o.putHash(i << 60);
+    }
+    o.putHash(0L);
+    o.putHash(1L << 63);
+    assertEquals(61, o.getByteArray()[8]);
+    assertTrue(o.size() > 0);
+    o.close();
+  }
+}
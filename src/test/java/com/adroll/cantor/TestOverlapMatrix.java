@@ -0,0 +1,76 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.OverlapMatrix;
+
+public class TestOverlapMatrix {
+
+  @Test
+  public void test_same_as_pairwise() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    HLLCounter[] hs = new HLLCounter[150];
+    for(int i = 0; i < hs.length; i++) {
+      hs[i] = new HLLCounter((byte)(10 + i % 3), true, 256 + 256 * (i % 2), HLLHash.MURMUR3_128);
+      for(int j = 100 * (i % 10); j < 100 * (i % 10) + 50 * (i % 7); j++) {
+        hs[i].put(String.valueOf(j));
+      }
+    }
+    OverlapMatrix om = OverlapMatrix.compute(pool, hs);
+    assertEquals(hs.length, om.count());
+    long[][] overlaps = om.overlaps();
+    double[][] jaccards = om.jaccards();
+    for(int i = 0; i < hs.length; i++) {
+      assertEquals(hs[i].size(), om.size(i));
+      for(int j = 0; j < hs.length; j++) {
+        assertEquals(HLLCounter.intersect(hs[i], hs[j]), om.overlap(i, j));
+        assertEquals(unionSize(hs[i], hs[j]), om.union(i, j));
+        // The diagonal holds the sizes of the counters
+        assertEquals(i == j ? hs[i].size() : om.overlap(i, j), overlaps[j][i]);
+        assertEquals(om.jaccard(i, j), jaccards[i][j], 0.0);
+      }
+    }
+    pool.shutdown();
+  }
+
+  private static long unionSize(HLLCounter a, HLLCounter b) {
+    byte q = (byte)Math.min(a.getP(), b.getP());
+    byte[] M = HLLCounter.unionInto(new byte[1 << q], a, b);
+    int[] hist = new int[65];
+    for(byte x : M) {
+      hist[x]++;
+    }
+    return Math.round(HLLEstimator.HLL_PLUS_PLUS.estimate(hist, q));
+  }
+
+  @Test
+  public void test_jaccard() {
+    ForkJoinPool pool = new ForkJoinPool(2);
+    HLLCounter a = new HLLCounter(true);
+    HLLCounter b = new HLLCounter(true);
+    for(int i = 0; i < 30000; i++) {
+      a.put(String.valueOf(i));
+      b.put(String.valueOf(i + 10000));
+    }
+    OverlapMatrix om = OverlapMatrix.compute(pool, a, b);
+    assertEquals(1.0, om.jaccard(0, 0), 0.0);
+    assertEquals(0.5, om.jaccard(0, 1), 0.05);
+    assertEquals(20000, om.overlap(1, 0), 20000 * 0.05);
+    pool.shutdown();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_not_intersectable() {
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      OverlapMatrix.compute(pool, new HLLCounter(true), new HLLCounter(false));
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
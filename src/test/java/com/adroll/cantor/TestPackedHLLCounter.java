@@ -0,0 +1,118 @@
+package com.adroll.cantor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TestPackedHLLCounter {
+
+  @Test
+  public void test_same_as_hllcounter() {
+    HLLCounter h = new HLLCounter((byte)14, true, 512);
+    PackedHLLCounter ph = new PackedHLLCounter((byte)14, true, 512);
+    Random r = new Random(1234L);
+    for(int i = 0; i < 200000; i++) {
+      String s = String.valueOf(r.nextDouble());
+      h.put(s);
+      ph.put(s);
+      if(i % 20000 == 0) {
+        assertEquals(h.size(), ph.size());
+      }
+    }
+    assertTrue(ph.registers() instanceof PackedRegisters);
+    assertArrayEquals(h.getByteArray(), ph.getByteArray());
+    assertEquals(h.size(), ph.size());
+    assertEquals(h.getMinHash(), ph.getMinHash());
+
+    PackedHLLCounter other = new PackedHLLCounter((byte)16);
+    HLLCounter plain = new HLLCounter((byte)16);
+    for(int i = 0; i < 100000; i++) {
+      String s = String.valueOf(r.nextDouble());
+      other.put(s);
+      plain.put(s);
+    }
+    byte[] union = HLLCounter.safeUnion(h.getByteArray(), plain.getByteArray());
+    ph.combine(other);
+    assertArrayEquals(union, ph.getByteArray());
+    h.combine(other);
+    assertArrayEquals(union, h.getByteArray());
+
+    ph.fold((byte)9);
+    assertArrayEquals(HLLCounter.safeFold(union, (byte)9), ph.getByteArray());
+  }
+
+  @Test
+  public void test_word_max() {
+    Random r = new Random(42L);
+    for(int n = 0; n < 10000; n++) {
+      byte[] M = new byte[16];
+      byte[] N = new byte[16];
+      // Any rank at precision 4, up to 61
+      for(int i = 0; i < 10; i++) {
+        M[i] = (byte)r.nextInt(62);
+        N[i] = (byte)(r.nextBoolean() ? M[i] : r.nextInt(62));
+      }
+      PackedRegisters a = new PackedRegisters(M);
+      PackedRegisters b = new PackedRegisters(N);
+      b.maxInto(a);
+      for(int i = 0; i < 16; i++) {
+        assertEquals(Math.max(M[i], N[i]), a.get(i));
+      }
+    }
+  }
+
+  @Test
+  public void test_rank_cap() {
+    // Structures written before ranks were capped may hold 65
+    byte[] M = new byte[1 << 10];
+    M[3] = 65;
+    M[4] = 7;
+    M[12] = 2;
+    PackedRegisters R = new PackedRegisters(M);
+    assertEquals(55, R.get(3));
+    assertEquals(7, R.get(4));
+    assertEquals(0, R.get(2));
+    R.setMax(12, 65);
+    assertEquals(55, R.get(12));
+    assertEquals(0, R.get(11));
+    assertEquals(0, R.get(13));
+    byte[] N = HLLWritable.unpack(HLLWritable.pack(M), M.length);
+    assertEquals(55, N[3]);
+    assertEquals(7, N[4]);
+    assertEquals(0, N[2]);
+
+    PackedHLLCounter ph = new PackedHLLCounter((byte)10);
+    for(int i = 0; i < 2000; i++) {
+      ph.put(String.valueOf(i));
+    }
+    ph.putHash(0L);
+    ph.putHash(1L << 63);
+    assertEquals(55, ph.registers().get(0));
+    assertEquals(55, ph.registers().get(512));
+  }
+
+  @Test
+  public void test_serialization() throws Exception {
+    PackedHLLCounter ph = new PackedHLLCounter((byte)10, true, 128);
+    for(int i = 0; i < 5000; i++) {
+      ph.put(String.valueOf(i));
+    }
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream out = new ObjectOutputStream(baos);
+    out.writeObject(ph);
+    out.close();
+    ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    HLLCounter d = (HLLCounter)in.readObject();
+    assertTrue(d instanceof PackedHLLCounter);
+    assertArrayEquals(ph.getByteArray(), d.getByteArray());
+    assertEquals(ph.size(), d.size());
+    d.put("more");
+    assertTrue(d.size() >= ph.size());
+  }
+}
@@ -0,0 +1,91 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.ParallelHLL;
+
+public class TestParallelHLL {
+
+  @Test
+  public void test_same_as_sequential() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    Random r = new Random(31415L);
+    HLLCounter[] hs = new HLLCounter[40];
+    byte[][] Ms = new byte[hs.length][];
+    for(int i = 0; i < hs.length; i++) {
+      hs[i] = new HLLCounter((byte)(12 + i % 5), i != 7, 256 + 128 * (i % 3), HLLHash.XXHASH64);
+      int n = i % 4 == 0 ? 50 : 20000;
+      for(int j = 0; j < n; j++) {
+        hs[i].putHash(r.nextLong());
+      }
+      Ms[i] = hs[i].getByteArray();
+    }
+
+    HLLCounter seq = HLLCounter.union(hs);
+    HLLCounter par = ParallelHLL.union(pool, hs);
+    assertFalse(par.isIntersectable());
+    assertEquals(seq.getP(), par.getP());
+    assertArrayEquals(seq.getByteArray(), par.getByteArray());
+    assertEquals(seq.size(), par.size());
+
+    HLLCounter[] inter = new HLLCounter[hs.length - 8];
+    System.arraycopy(hs, 8, inter, 0, inter.length);
+    seq = HLLCounter.union(inter);
+    par = ParallelHLL.union(pool, inter);
+    assertEquals(256, par.getK());
+    assertArrayEquals(seq.getByteArray(), par.getByteArray());
+    assertEquals(seq.getMinHash(), par.getMinHash());
+    assertEquals(seq.size(), par.size());
+
+    byte[] U = HLLCounter.union(Ms);
+    assertArrayEquals(U, ParallelHLL.union(pool, Ms));
+    assertArrayEquals(HLLCounter.unionInto(new byte[1 << 8], Ms),
+                      ParallelHLL.unionInto(pool, new byte[1 << 8], Ms));
+    assertArrayEquals(U, ParallelHLL.unionInto(pool, new byte[U.length], hs));
+
+    int[] hist = new int[65];
+    for(byte b : U) {
+      hist[b]++;
+    }
+    assertArrayEquals(hist, ParallelHLL.histogram(pool, U));
+    HLLCounter big = new HLLCounter((byte)18);
+    for(int j = 0; j < 1000000; j++) {
+      big.putHash(r.nextLong());
+    }
+    assertEquals(big.size(), Math.round(ParallelHLL.estimate(pool, HLLEstimator.HLL_PLUS_PLUS, big.getByteArray())));
+    pool.shutdown();
+  }
+
+  @Test
+  public void test_intersect() {
+    ForkJoinPool pool = new ForkJoinPool(4);
+    HLLCounter[] hs = new HLLCounter[6];
+    for(int i = 0; i < hs.length; i++) {
+      hs[i] = new HLLCounter((byte)(12 + i % 3), true, 4096, HLLHash.XXHASH64);
+      for(int j = 1000 * i; j < 200000; j++) {
+        hs[i].put(String.valueOf(j));
+      }
+    }
+    long seq = HLLCounter.intersect(hs);
+    assertEquals(seq, ParallelHLL.intersect(pool, HLLEstimator.HLL_PLUS_PLUS, hs));
+    assertEquals(195000, seq, 195000 * 0.05);
+    assertEquals(0, ParallelHLL.intersect(pool, HLLEstimator.HLL_PLUS_PLUS, hs[0], new HLLCounter((byte)12, true, 4096, HLLHash.XXHASH64)));
+    pool.shutdown();
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void test_more_precise_dest() {
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      ParallelHLL.unionInto(pool, new byte[1 << 14], new HLLCounter((byte)12));
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package com.adroll.cantor;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.adroll.cantor.HLLCounter;
+import com.adroll.cantor.StripedHLLCounter;
+
+public class TestStripedHLLCounter {
+
+  @Test
+  public void test_striped_puts() throws Exception {
+    final StripedHLLCounter c = new StripedHLLCounter((byte)14, true, 1024, HLLHash.MD5, 4);
+    HLLCounter h = new HLLCounter((byte)14, true, 1024);
+    final int threads = 8;
+    final int n = 50000;
+    List<Thread> ts = new ArrayList<Thread>();
+    for(int t = 0; t < threads; t++) {
+      final int offset = t * n / 2;
+      ts.add(new Thread() {
+        @Override
+        public void run() {
+          for(int i = offset; i < offset + n; i++) {
+            c.put(String.valueOf(i));
+            if(i % 10000 == 0) {
+              // Reads in between are fine
+              c.size();
+            }
+          }
+        }
+      });
+    }
+    for(Thread t : ts) {
+      t.start();
+    }
+    for(int i = 0; i < (threads + 1) * n / 2; i++) {
+      h.put(String.valueOf(i));
+    }
+    for(Thread t : ts) {
+      t.join();
+    }
+    assertArrayEquals(h.getByteArray(), c.getByteArray());
+    assertEquals(h.getMinHash(), c.getMinHash());
+    assertEquals(h.size(), c.size());
+    assertEquals(HLLCounter.intersect(h, h), HLLCounter.intersect(c, h));
+
+    c.put("one more");
+    h.put("one more");
+    assertEquals(h.size(), c.size());
+  }
+
+  @Test
+  public void test_combine_fold() {
+    StripedHLLCounter c = new StripedHLLCounter((byte)12, false, 0);
+    HLLCounter h = new HLLCounter((byte)12);
+    HLLCounter o = new HLLCounter((byte)10);
+    for(int i = 0; i < 20000; i++) {
+      c.put(String.valueOf(i));
+      h.put(String.valueOf(i));
+      o.put(String.valueOf(-i));
+    }
+    c.combine(o);
+    h.combine(o);
+    assertEquals(10, c.getP());
+    assertArrayEquals(h.getByteArray(), c.getByteArray());
+    c.fold((byte)8);
+    h.fold((byte)8);
+    assertEquals(h.size(), c.size());
+    c.clear();
+    assertEquals(0L, c.size());
+  }
+
+  @Test
+  public void test_serialization() throws Exception {
+    StripedHLLCounter c = new StripedHLLCounter((byte)10, true, 128);
+    c.put("a", "b", "c");
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ObjectOutputStream oos = new ObjectOutputStream(baos);
+    oos.writeObject(c);
+    oos.close();
+    ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(baos.toByteArray()));
+    HLLCounter d = (HLLCounter)ois.readObject();
+    assertEquals(HLLCounter.class, d.getClass());
+    assertEquals(3L, d.size());
+    assertEquals(c.getMinHash(), d.getMinHash());
+  }
+
+  @Test
+  public void test_constructors() {
+    HLLCounter[][] pairs = new HLLCounter[][] {
+      { new HLLCounter((byte)12), new StripedHLLCounter((byte)12) },
+      { new HLLCounter(true), new StripedHLLCounter(true) },
+      { new HLLCounter((byte)16, true), new StripedHLLCounter((byte)16, true) },
+      { new HLLCounter(true, 512), new StripedHLLCounter(true, 512) }
+    };
+    for(HLLCounter[] pair : pairs) {
+      assertEquals(pair[0].getP(), pair[1].getP());
+      assertEquals(pair[0].isIntersectable(), pair[1].isIntersectable());
+      assertEquals(pair[0].getK(), pair[1].getK());
+      assertEquals(pair[0].getHash(), pair[1].getHash());
+    }
+  }
+
+  @Test
+  public void test_concurrent_sizes() throws Exception {
+    for(int round = 0; round < 20; round++) {
+      final StripedHLLCounter c = new StripedHLLCounter((byte)14, false, 0);
+      HLLCounter h = new HLLCounter((byte)14);
+      for(int i = 0; i < 200000; i++) {
+        c.put(String.valueOf(i));
+        h.put(String.valueOf(i));
+      }
+      final long[] sizes = new long[8];
+      List<Thread> ts = new ArrayList<Thread>();
+      for(int t = 0; t < sizes.length; t++) {
+        final int j = t;
+        ts.add(new Thread() {
+          @Override
+          public void run() {
+            sizes[j] = c.size();
+          }
+        });
+      }
+      for(Thread t : ts) {
+        t.start();
+      }
+      for(Thread t : ts) {
+        t.join();
+      }
+      for(long size : sizes) {
+        assertEquals(h.size(), size);
+      }
+    }
+  }
+
+  @Test(timeout=30000)
+  public void test_cross_combine() throws Exception {
+    final StripedHLLCounter a = new StripedHLLCounter((byte)12, true, 256);
+    final StripedHLLCounter b = new StripedHLLCounter((byte)12, true, 256);
+    for(int i = 0; i < 5000; i++) {
+      a.put(String.valueOf(i));
+      b.put(String.valueOf(-i));
+    }
+    Thread t = new Thread() {
+      @Override
+      public void run() {
+        for(int i = 0; i < 500; i++) {
+          a.combine(b);
+        }
+      }
+    };
+    t.start();
+    for(int i = 0; i < 500; i++) {
+      b.combine(a);
+    }
+    t.join();
+    HLLCounter h = new HLLCounter((byte)12, true, 256);
+    for(int i = -4999; i < 5000; i++) {
+      h.put(String.valueOf(i));
+    }
+    assertArrayEquals(h.getByteArray(), a.getByteArray());
+    assertArrayEquals(h.getByteArray(), b.getByteArray());
+  }
+}